@@ -0,0 +1,44 @@
+package net.rcode.nanomaps.io;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * ConnectivityMonitor driven by the platform CONNECTIVITY_ACTION broadcast.
+ * Requires the ACCESS_NETWORK_STATE permission.  Call release() to
+ * unregister the receiver.
+ * 
+ * @author stella
+ *
+ */
+public class AndroidConnectivityMonitor extends SimpleConnectivityMonitor {
+	private Context context;
+	private BroadcastReceiver receiver=new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			setConnected(queryConnected());
+		}
+	};
+	
+	public AndroidConnectivityMonitor(Context context) {
+		super(true);
+		this.context=context.getApplicationContext();
+		setConnected(queryConnected());
+		this.context.registerReceiver(receiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+	}
+	
+	private boolean queryConnected() {
+		ConnectivityManager cm=(ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		if (cm==null) return true;
+		NetworkInfo info=cm.getActiveNetworkInfo();
+		return info!=null && info.isConnected();
+	}
+	
+	public void release() {
+		context.unregisterReceiver(receiver);
+	}
+}
@@ -0,0 +1,68 @@
+package net.rcode.nanomaps.io;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * An InputStream over a resource body that has been read fully into
+ * memory.  DataHandlers that can work on an array directly (ie. with
+ * BitmapFactory.decodeByteArray) should check for this class and use
+ * getBuffer()/getOffset()/getLength() to avoid copying.
+ * <p>
+ * The array may belong to a ByteArrayPool.  The loader that created the
+ * stream releases it after the DataHandler returns, so handlers must not
+ * hold on to the array.
+ *
+ * @author stella
+ *
+ */
+public class BufferInputStream extends ByteArrayInputStream {
+	private ByteArrayPool pool;
+	private final int offset;
+	private final int length;
+	
+	public BufferInputStream(byte[] buffer, int offset, int length) {
+		this(buffer, offset, length, null);
+	}
+	
+	public BufferInputStream(byte[] buffer, int offset, int length, ByteArrayPool pool) {
+		super(buffer, offset, length);
+		this.offset=offset;
+		this.length=length;
+		this.pool=pool;
+	}
+	
+	/**
+	 * @return the underlying array.  Valid from getOffset() for getLength() bytes.
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+	
+	public int getOffset() {
+		return offset;
+	}
+	
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * @return a new stream over the same bytes, positioned at the start.  It
+	 * does not own the array.
+	 */
+	public BufferInputStream duplicate() {
+		return new BufferInputStream(buf, offset, length, null);
+	}
+	
+	/**
+	 * Return the array to its pool.  The stream must not be used afterwards.
+	 */
+	public void release() {
+		ByteArrayPool localPool;
+		synchronized (this) {
+			localPool=pool;
+			pool=null;
+		}
+		if (localPool!=null) localPool.release(buf);
+	}
+}
@@ -0,0 +1,137 @@
+package net.rcode.nanomaps.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Pool of byte arrays in power of two size classes.  Response bodies are
+ * read fully into a pooled array (pre-sized from Content-Length when known)
+ * and decoded from memory, after which the array is returned for the next
+ * response.  This keeps per-resource garbage down and lets the network
+ * side finish with a response before it is decoded.
+ * <p>
+ * Arrays larger than the largest size class are allocated exactly and not
+ * pooled.  All methods are thread safe.
+ *
+ * @author stella
+ *
+ */
+public class ByteArrayPool {
+	static final int MIN_CLASS_SHIFT=12;	// 4KB
+	static final int MAX_CLASS_SHIFT=19;	// 512KB
+	static final int DEFAULT_SIZE=16384;
+	
+	private static ByteArrayPool DEFAULT;
+	
+	/**
+	 * @return the process wide pool
+	 */
+	public static synchronized ByteArrayPool getDefault() {
+		if (DEFAULT==null) DEFAULT=new ByteArrayPool(1024*1024);
+		return DEFAULT;
+	}
+	
+	private ArrayList<ArrayList<byte[]>> classes;
+	private long maxPooledBytes;
+	private long pooledBytes;
+	
+	/**
+	 * @param maxPooledBytes upper bound on the bytes held while idle
+	 */
+	public ByteArrayPool(long maxPooledBytes) {
+		this.maxPooledBytes=maxPooledBytes;
+		classes=new ArrayList<ArrayList<byte[]>>(MAX_CLASS_SHIFT-MIN_CLASS_SHIFT+1);
+		for (int i=MIN_CLASS_SHIFT; i<=MAX_CLASS_SHIFT; i++) {
+			classes.add(new ArrayList<byte[]>(4));
+		}
+	}
+	
+	private static int classIndex(int size) {
+		int shift=MIN_CLASS_SHIFT;
+		while ((1<<shift) < size) shift++;
+		return shift-MIN_CLASS_SHIFT;
+	}
+	
+	/**
+	 * Get an array of at least minSize bytes
+	 * @param minSize
+	 * @return array.  Its length may be larger than requested.
+	 */
+	public byte[] get(int minSize) {
+		int index=classIndex(minSize);
+		if (index>=classes.size()) return new byte[minSize];
+		
+		synchronized (this) {
+			ArrayList<byte[]> free=classes.get(index);
+			if (!free.isEmpty()) {
+				byte[] ret=free.remove(free.size()-1);
+				pooledBytes-=ret.length;
+				return ret;
+			}
+		}
+		return new byte[1<<(index+MIN_CLASS_SHIFT)];
+	}
+	
+	/**
+	 * Return an array to the pool.  Arrays that did not come from get()
+	 * are ignored.
+	 * @param buffer
+	 */
+	public void release(byte[] buffer) {
+		if (buffer==null) return;
+		int length=buffer.length;
+		if ((length & (length-1))!=0) return;	// Not a size class
+		int index=classIndex(length);
+		if (index>=classes.size() || (1<<(index+MIN_CLASS_SHIFT))!=length) return;
+		
+		synchronized (this) {
+			if (pooledBytes+length > maxPooledBytes) return;
+			classes.get(index).add(buffer);
+			pooledBytes+=length;
+		}
+	}
+	
+	/**
+	 * @return bytes currently held idle in the pool
+	 */
+	public synchronized long getPooledBytes() {
+		return pooledBytes;
+	}
+	
+	/**
+	 * Read a stream fully into a pooled array
+	 * @param in
+	 * @param expectedLength the length if known (ie. Content-Length) or &lt;=0
+	 * @return the body.  Call release() on it when done.
+	 * @throws IOException
+	 */
+	public BufferInputStream readFully(InputStream in, int expectedLength) throws IOException {
+		byte[] buffer=get(expectedLength>0 ? expectedLength : DEFAULT_SIZE);
+		int length=0;
+		try {
+			for (;;) {
+				if (length==buffer.length) {
+					// Content-Length was wrong or unknown.  Grow.
+					byte[] larger=get(buffer.length*2);
+					System.arraycopy(buffer, 0, larger, 0, length);
+					release(buffer);
+					buffer=larger;
+				}
+				int r=in.read(buffer, length, buffer.length-length);
+				if (r<0) break;
+				length+=r;
+				if (length==expectedLength) {
+					// Don't block waiting for an eof that has already
+					// been accounted for
+					break;
+				}
+			}
+		} catch (IOException e) {
+			release(buffer);
+			throw e;
+		}
+		
+		return new BufferInputStream(buffer, 0, length, this);
+	}
+}
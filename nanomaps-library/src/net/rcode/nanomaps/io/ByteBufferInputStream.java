@@ -0,0 +1,60 @@
+package net.rcode.nanomaps.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream over a ByteBuffer (ie. a slice of a memory mapped file).
+ * DataHandlers that can use the buffer directly can get it with getBuffer()
+ * instead of reading.
+ *
+ * @author stella
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+	private ByteBuffer buffer;
+
+	/**
+	 * @param buffer bytes between position and limit are read.  The
+	 * stream takes ownership of the buffer's position.
+	 */
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer=buffer;
+	}
+
+	/**
+	 * @return the buffer.  Remaining bytes are those not yet read.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public int read() {
+		if (!buffer.hasRemaining()) return -1;
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len==0) return 0;
+		int remaining=buffer.remaining();
+		if (remaining==0) return -1;
+		if (len>remaining) len=remaining;
+		buffer.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n<=0) return 0;
+		int count=(int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position()+count);
+		return count;
+	}
+}
@@ -0,0 +1,589 @@
+package net.rcode.nanomaps.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.rcode.nanomaps.util.Constants;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * ResourceLoader that keeps the raw bytes of loaded resources in a
+ * DiskCache and delegates misses to another ResourceLoader (typically
+ * the DefaultResourceLoader).
+ * <p>
+ * The decision of hit or miss is made on the calling thread against the
+ * in-memory cache index.  Hits are read and decoded on a single local
+ * worker thread and never touch the delegate's queues.  Misses are passed
+ * to the delegate with a DataHandler that captures the bytes, stores them
+ * if they decode successfully and then hands them to the original
+ * DataHandler.
+ * <p>
+ * Entries carry the validators and freshness reported by the server (or
+ * defaultTtl if it reported none).  Expired entries are revalidated with a
+ * conditional request when the delegate supports it (DefaultResourceLoader
+ * does) and a 304 is served from the cache with its expiry refreshed.  If
+ * revalidation fails, the stale entry is served rather than an error.
+ *
+ * @author stella
+ *
+ */
+public class CachingResourceLoader extends ResourceLoader {
+	static final int DEFAULT_IDLE_LINGER=30000;
+	
+	/**
+	 * Freshness of entries whose response did not specify any
+	 */
+	public static final long DEFAULT_TTL=24 * 3600 * 1000L;
+
+	private ResourceLoader delegate;
+	private DiskCache cache;
+	private PriorityHeap<CacheRequest> hitQueue=new PriorityHeap<CacheRequest>(32);
+	private Thread hitWorker;
+	private long defaultTtl=DEFAULT_TTL;
+	private ByteArrayPool bufferPool=ByteArrayPool.getDefault();
+	private DecodeExecutor decodeExecutor=DecodeExecutor.getDefault();
+
+	/**
+	 * Construct a loader with a cache in the given directory.  The cache
+	 * journal is read immediately.
+	 * @param delegate
+	 * @param directory
+	 * @param maxBytes
+	 * @throws IOException
+	 */
+	public CachingResourceLoader(ResourceLoader delegate, File directory, long maxBytes) throws IOException {
+		this(delegate, new DiskCache(directory, maxBytes));
+		cache.open();
+	}
+
+	/**
+	 * Construct a loader around an already opened cache
+	 * @param delegate
+	 * @param cache
+	 */
+	public CachingResourceLoader(ResourceLoader delegate, DiskCache cache) {
+		if (delegate==null) delegate=DefaultResourceLoader.getInstance();
+		this.delegate=delegate;
+		this.cache=cache;
+	}
+
+	public ResourceLoader getDelegate() {
+		return delegate;
+	}
+
+	public DiskCache getCache() {
+		return cache;
+	}
+	
+	public long getDefaultTtl() {
+		return defaultTtl;
+	}
+	
+	/**
+	 * Set how long (ms) entries are considered fresh if the server did
+	 * not say
+	 * @param defaultTtl
+	 */
+	public void setDefaultTtl(long defaultTtl) {
+		this.defaultTtl=defaultTtl;
+	}
+
+	/**
+	 * @param key uri string
+	 * @return true if the resource is cached and does not need revalidation
+	 */
+	public boolean isFresh(String key) {
+		Validators validators=cache.getValidators(key);
+		return validators!=null && validators.isFresh(System.currentTimeMillis());
+	}
+	
+	@Override
+	public void preconnect(Uri uri) {
+		delegate.preconnect(uri);
+	}
+	
+	@Override
+	public Request loadResource(Uri uri, DataHandler dataHandler, Callback callback) {
+		CacheRequest request=new CacheRequest();
+		request.originatingLooper=Looper.myLooper();
+		request.key=uri.toString();
+		request.uri=uri;
+		request.dataHandler=dataHandler;
+		request.callback=callback;
+
+		Validators validators=cache.getValidators(request.key);
+		if (validators!=null && validators.isFresh(System.currentTimeMillis())) {
+			enqueueHit(request);
+		} else {
+			// Miss or expired.  If expired, the delegate will revalidate.
+			request.staleValidators=validators;
+			request.delegateToLoader();
+		}
+		return request;
+	}
+
+	/**
+	 * Hits go onto the hit queue together and misses go to the delegate as
+	 * one batch
+	 */
+	@Override
+	public void loadResources(List<BatchEntry> entries) {
+		Looper looper=Looper.myLooper();
+		long now=System.currentTimeMillis();
+		ArrayList<CacheRequest> hits=null;
+		ArrayList<CacheRequest> misses=null;
+		ArrayList<BatchEntry> delegateEntries=null;
+		for (int i=0; i<entries.size(); i++) {
+			BatchEntry entry=entries.get(i);
+			CacheRequest request=new CacheRequest();
+			request.originatingLooper=looper;
+			request.key=entry.uri.toString();
+			request.dataHandler=entry.dataHandler;
+			request.callback=entry.callback;
+			request.priority=entry.priority;
+			entry.request=request;
+
+			Validators validators=cache.getValidators(request.key);
+			if (validators!=null && validators.isFresh(now)) {
+				if (hits==null) hits=new ArrayList<CacheRequest>();
+				hits.add(request);
+			} else {
+				request.staleValidators=validators;
+				if (misses==null) {
+					misses=new ArrayList<CacheRequest>();
+					delegateEntries=new ArrayList<BatchEntry>();
+				}
+				misses.add(request);
+				delegateEntries.add(request.delegateEntry());
+			}
+		}
+
+		if (hits!=null) {
+			synchronized (hitQueue) {
+				for (int i=0; i<hits.size(); i++) {
+					hitQueue.add(hits.get(i));
+				}
+				hitQueue.notify();
+				startHitWorkerLocked();
+			}
+		}
+		if (misses!=null) {
+			delegate.loadResources(delegateEntries);
+			for (int i=0; i<misses.size(); i++) {
+				misses.get(i).delegated(delegateEntries.get(i).request);
+			}
+		}
+	}
+
+	private void enqueueHit(CacheRequest request) {
+		synchronized (hitQueue) {
+			hitQueue.add(request);
+			hitQueue.notify();
+			startHitWorkerLocked();
+		}
+	}
+
+	private void startHitWorkerLocked() {
+		if (hitWorker==null) {
+			hitWorker=new Thread(new HitWorker());
+			hitWorker.setName("nmcache");
+			hitWorker.start();
+		}
+	}
+
+	private void removeHit(CacheRequest request) {
+		synchronized (hitQueue) {
+			hitQueue.remove(request);
+		}
+	}
+
+	private void reprioritizeHit(CacheRequest request, int priority) {
+		synchronized (hitQueue) {
+			hitQueue.update(request, priority);
+		}
+	}
+
+	private class HitWorker implements Runnable {
+		private CacheRequest next() {
+			synchronized (hitQueue) {
+				if (hitQueue.isEmpty()) {
+					try {
+						hitQueue.wait(DEFAULT_IDLE_LINGER);
+					} catch (InterruptedException e) {
+						// Exit below
+					}
+					if (hitQueue.isEmpty()) {
+						hitWorker=null;
+						return null;
+					}
+				}
+				return hitQueue.poll();
+			}
+		}
+
+		@Override
+		public void run() {
+			for (;;) {
+				CacheRequest request=next();
+				if (request==null) break;
+				try {
+					request.processHit();
+				} catch (Throwable t) {
+					Log.e(Constants.LOG_TAG, "Error processing cache hit " + request.key, t);
+					request.finish(true, false, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fill in an expiry if the server did not give one
+	 * @param validators may be null
+	 * @return validators
+	 */
+	private Validators withDefaultExpiry(Validators validators) {
+		if (validators==null) validators=new Validators();
+		if (validators.expires<=0) validators.expires=System.currentTimeMillis() + defaultTtl;
+		return validators;
+	}
+
+	/**
+	 * DataHandler passed to the delegate on a miss or revalidation.  Captures
+	 * the raw bytes so that they can be stored.
+	 */
+	private class StoringDataHandler implements ValidatingDataHandler {
+		private String key;
+		private DataHandler target;
+		private Validators staleValidators;
+
+		public StoringDataHandler(String key, DataHandler target, Validators staleValidators) {
+			this.key=key;
+			this.target=target;
+			this.staleValidators=staleValidators;
+		}
+
+		@Override
+		public Validators getRequestValidators() {
+			return staleValidators;
+		}
+
+		@Override
+		public Object transformResult(InputStream input, int size) {
+			return transformValidatedResult(input, size, null);
+		}
+
+		@Override
+		public Object transformNotModified(Validators responseValidators) {
+			BufferInputStream body=cache.getBody(key, bufferPool);
+			if (body==null) {
+				Log.e(Constants.LOG_TAG, "Cache entry for revalidated resource disappeared " + key);
+				return null;
+			}
+
+			Object result;
+			try {
+				result=target.transformResult(body, body.getLength());
+			} finally {
+				body.release();
+			}
+			if (responseValidators!=null && responseValidators.noStore) {
+				// No longer allowed to keep it
+				cache.remove(key);
+			} else if (result!=null) {
+				if (responseValidators==null) responseValidators=new Validators();
+				responseValidators.merge(staleValidators);
+				cache.updateValidators(key, withDefaultExpiry(responseValidators));
+			}
+			return result;
+		}
+
+		@Override
+		public Object transformValidatedResult(InputStream input, int size, Validators responseValidators) {
+			// Loaders that read the body into memory hand it to us directly
+			BufferInputStream body=null;
+			if (input instanceof BufferInputStream) {
+				body=(BufferInputStream) input;
+			} else {
+				try {
+					body=bufferPool.readFully(input, size);
+				} catch (IOException e) {
+					Log.e(Constants.LOG_TAG, "Error reading resource " + key, e);
+					return null;
+				}
+			}
+
+			try {
+				Object result=target.transformResult(body.duplicate(), body.getLength());
+				if (responseValidators!=null && responseValidators.noStore) {
+					// Drop any copy stored before the server said not to
+					if (staleValidators!=null) cache.remove(key);
+				} else if (result!=null) {
+					// Only store things that decode
+					cache.put(key, body.getBuffer(), body.getOffset(), body.getLength(), withDefaultExpiry(responseValidators));
+				}
+				return result;
+			} finally {
+				if (body!=input) body.release();
+			}
+		}
+
+		/**
+		 * Equal handlers are coalesced by the DefaultResourceLoader
+		 */
+		@Override
+		public int hashCode() {
+			return key.hashCode() ^ target.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof StoringDataHandler)) return false;
+			StoringDataHandler other=(StoringDataHandler) o;
+			return other.key.equals(key) && other.target.equals(target) && other.owner()==owner();
+		}
+		
+		private CachingResourceLoader owner() {
+			return CachingResourceLoader.this;
+		}
+	}
+
+	/**
+	 * Decodes a cache hit off of the hit worker
+	 */
+	static class HitDecodeTask extends DecodeExecutor.Task {
+		CacheRequest request;
+		DataHandler dataHandler;
+		BufferInputStream body;
+		
+		HitDecodeTask(CacheRequest request, DataHandler dataHandler, BufferInputStream body) {
+			this.request=request;
+			this.dataHandler=dataHandler;
+			this.body=body;
+		}
+		
+		@Override
+		public boolean isCancelled() {
+			synchronized (request) {
+				return request.cancelled;
+			}
+		}
+		
+		@Override
+		public void discard() {
+			if (body!=null) {
+				body.release();
+				body=null;
+			}
+		}
+		
+		@Override
+		public void run() {
+			try {
+				request.decodeHit(dataHandler, body);
+			} finally {
+				discard();
+			}
+		}
+	}
+	
+	class CacheRequest extends PriorityHeap.Entry implements ResourceLoader.Request, ResourceLoader.Callback, LoadTracer.Traced {
+		Looper originatingLooper;
+		String key;
+		Uri uri;
+		DataHandler dataHandler;
+		Callback callback;
+		Request delegateRequest;
+		Validators staleValidators;
+		boolean cancelled;
+		boolean complete;
+		boolean loaded;
+		Object results;
+		
+		/**
+		 * Trace of the delegate's load, if sampled
+		 */
+		LoadTracer.Trace trace;
+
+		@Override
+		public Object getResults() {
+			return results;
+		}
+
+		@Override
+		public boolean isComplete() {
+			return complete;
+		}
+
+		@Override
+		public boolean isLoaded() {
+			return loaded;
+		}
+
+		@Override
+		public LoadTracer.Trace getTrace() {
+			return trace;
+		}
+
+		@Override
+		public void cancel() {
+			Request localDelegateRequest;
+			synchronized (this) {
+				cancelled=true;
+				callback=null;
+				dataHandler=null;
+				localDelegateRequest=delegateRequest;
+				delegateRequest=null;
+			}
+			if (localDelegateRequest!=null) localDelegateRequest.cancel();
+			else removeHit(this);
+		}
+
+		@Override
+		public int getPriority() {
+			return priority;
+		}
+
+		@Override
+		public void setPriority(int priority) {
+			Request localDelegateRequest;
+			synchronized (this) {
+				localDelegateRequest=delegateRequest;
+			}
+			if (localDelegateRequest!=null) {
+				this.priority=priority;
+				localDelegateRequest.setPriority(priority);
+			} else {
+				reprioritizeHit(this, priority);
+			}
+		}
+
+		/**
+		 * Pass the request on to the delegate.  Must be called on the
+		 * originating thread since the delegate will dispatch to its looper.
+		 */
+		void delegateToLoader() {
+			BatchEntry entry=delegateEntry();
+			if (entry==null) return;
+			// Requests made in a batch only have the key
+			if (uri==null) uri=Uri.parse(key);
+			Request r=delegate.loadResource(uri, entry.dataHandler, this);
+			if (priority!=PRIORITY_DEFAULT) r.setPriority(priority);
+			delegated(r);
+		}
+
+		/**
+		 * @return the load to pass to the delegate or null if cancelled
+		 */
+		BatchEntry delegateEntry() {
+			DataHandler localDataHandler;
+			synchronized (this) {
+				if (cancelled) return null;
+				localDataHandler=dataHandler;
+			}
+			return new BatchEntry(key, new StoringDataHandler(key, localDataHandler, staleValidators), this, priority);
+		}
+
+		void delegated(Request r) {
+			synchronized (this) {
+				if (!cancelled) {
+					delegateRequest=r;
+					return;
+				}
+			}
+			r.cancel();
+		}
+
+		/**
+		 * Called on the hit worker
+		 */
+		void processHit() {
+			DataHandler localDataHandler;
+			synchronized (this) {
+				localDataHandler=dataHandler;
+			}
+			if (localDataHandler==null) return;
+
+			BufferInputStream body=cache.getBody(key, bufferPool);
+			if (body==null) {
+				// Evicted since we checked.  Go back to the originating thread to delegate.
+				if (originatingLooper==null) {
+					delegateToLoader();
+					return;
+				}
+				new Handler(originatingLooper).post(new Runnable() {
+					public void run() {
+						delegateToLoader();
+					}
+				});
+				return;
+			}
+
+			decodeExecutor.submit(new HitDecodeTask(this, localDataHandler, body));
+		}
+
+		/**
+		 * Called on the decode executor with the cached body
+		 */
+		void decodeHit(DataHandler localDataHandler, BufferInputStream body) {
+			Object result=localDataHandler.transformResult(body, body.getLength());
+			if (result==null) {
+				// Undecodable.  Don't serve it again.
+				Log.e(Constants.LOG_TAG, "Could not decode cached resource " + key);
+				cache.remove(key);
+				finish(true, false, null);
+			} else {
+				finish(true, true, result);
+			}
+		}
+
+		/**
+		 * Delegate completion.  Already on the originating looper.
+		 */
+		@Override
+		public void onComplete(Request request) {
+			Callback localCallback;
+			synchronized (this) {
+				if (delegateRequest!=request && delegateRequest!=null) return;
+				delegateRequest=null;
+				if (!request.isLoaded() && staleValidators!=null && callback!=null && cache.contains(key)) {
+					// Revalidation failed.  Stale is better than nothing.
+					staleValidators=null;
+					enqueueHit(this);
+					return;
+				}
+				complete=request.isComplete();
+				loaded=request.isLoaded();
+				results=request.getResults();
+				trace=LoadTracer.traceOf(request);
+				localCallback=callback;
+				callback=null;
+			}
+			if (localCallback!=null) localCallback.onComplete(this);
+		}
+
+		void finish(boolean complete, boolean loaded, Object results) {
+			final Callback localCallback;
+			synchronized (this) {
+				if (callback==null) return;	// Dispatch once
+				this.complete=complete;
+				this.loaded=loaded;
+				this.results=results;
+				localCallback=callback;
+				callback=null;
+			}
+
+			CompletionMailbox.forLooper(originatingLooper).post(new Runnable() {
+				public void run() {
+					localCallback.onComplete(CacheRequest.this);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package net.rcode.nanomaps.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Delivers load completions to a looper in batches rather than as one
+ * message each.  Completions posted from any thread are queued and drained
+ * at most once per frame interval.  A drain stops when it has used up its
+ * time budget and the rest wait for the next frame, so a screen's worth of
+ * tiles arriving at once does not stall the UI.
+ * <p>
+ * Work that should happen once per drain rather than once per completion
+ * (ie. invalidating the union of every changed tile) can be deferred to
+ * the end of the drain with runAfterDrain().
+ * <p>
+ * Mailboxes are kept per looper until the looper quits.  A mailbox whose
+ * looper refuses a post is retired along with anything queued for it.
+ * Mailboxes for loopers whose thread has died are swept whenever a new
+ * mailbox is created.
+ * <p>
+ * Threads without a looper share a mailbox that runs each completion
+ * inline on the thread that posts it.
+ *
+ * @author stella
+ *
+ */
+public class CompletionMailbox {
+	public static final long DEFAULT_BUDGET=8;
+	static final long FRAME_INTERVAL=16;
+
+	private static final Map<Looper, CompletionMailbox> mailboxes=new HashMap<Looper, CompletionMailbox>();
+	private static final ThreadLocal<CompletionMailbox> draining=new ThreadLocal<CompletionMailbox>();
+	private static final CompletionMailbox INLINE=new CompletionMailbox(null);
+
+	/**
+	 * @param looper
+	 * @return the mailbox delivering to the looper, or one that delivers
+	 * inline if looper is null
+	 */
+	public static CompletionMailbox forLooper(Looper looper) {
+		if (looper==null) return INLINE;
+		synchronized (mailboxes) {
+			CompletionMailbox mailbox=mailboxes.get(looper);
+			if (mailbox==null) {
+				sweepDeadLocked();
+				mailbox=new CompletionMailbox(looper);
+				mailboxes.put(looper, mailbox);
+			}
+			return mailbox;
+		}
+	}
+
+	/**
+	 * Drop mailboxes whose looper thread has exited.  Must hold mailboxes.
+	 */
+	private static void sweepDeadLocked() {
+		Iterator<Map.Entry<Looper, CompletionMailbox>> iter=mailboxes.entrySet().iterator();
+		while (iter.hasNext()) {
+			Thread thread=iter.next().getKey().getThread();
+			if (thread!=null && !thread.isAlive()) iter.remove();
+		}
+	}
+
+	/**
+	 * If the calling thread is draining a mailbox, run the task once when
+	 * the drain finishes.  Adding the same task again in one drain has no
+	 * further effect.
+	 * @param task
+	 * @return true if deferred, false if not in a drain (the caller should
+	 * do the work now)
+	 */
+	public static boolean runAfterDrain(Runnable task) {
+		CompletionMailbox mailbox=draining.get();
+		if (mailbox==null) return false;
+		if (!mailbox.afterDrain.contains(task)) mailbox.afterDrain.add(task);
+		return true;
+	}
+
+	private final Looper looper;
+	private final Handler handler;
+	private final ConcurrentLinkedQueue<Runnable> pending=new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean scheduled=new AtomicBoolean();
+	private final ArrayList<Runnable> afterDrain=new ArrayList<Runnable>();
+	private volatile long budget=DEFAULT_BUDGET;
+	private volatile long lastDrain;
+
+	private final Runnable drainRunnable=new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	CompletionMailbox(Looper looper) {
+		this.looper=looper;
+		this.handler=looper!=null ? new Handler(looper) : null;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * @param budget milliseconds a drain may spend running completions
+	 * before leaving the rest for the next frame
+	 */
+	public void setBudget(long budget) {
+		this.budget=budget;
+	}
+
+	/**
+	 * Queue a completion to be run on the looper.  May be called from any
+	 * thread.  Runs it now if there is no looper.
+	 * @param completion
+	 */
+	public void post(Runnable completion) {
+		if (handler==null) {
+			completion.run();
+			return;
+		}
+		pending.offer(completion);
+		if (scheduled.compareAndSet(false, true)) schedule();
+	}
+
+	private void schedule() {
+		long delay=lastDrain + FRAME_INTERVAL - SystemClock.uptimeMillis();
+		boolean posted;
+		if (delay>0) posted=handler.postDelayed(drainRunnable, delay);
+		else posted=handler.post(drainRunnable);
+		if (!posted) retire();
+	}
+
+	/**
+	 * The looper has quit.  Forget this mailbox and what was queued for it.
+	 */
+	private void retire() {
+		synchronized (mailboxes) {
+			if (mailboxes.get(looper)==this) mailboxes.remove(looper);
+		}
+		pending.clear();
+		scheduled.set(false);
+	}
+
+	/**
+	 * Run queued completions until empty or out of budget
+	 */
+	void drain() {
+		long start=SystemClock.uptimeMillis();
+		draining.set(this);
+		try {
+			Runnable completion;
+			while ((completion=pending.poll())!=null) {
+				completion.run();
+				if (SystemClock.uptimeMillis()-start>=budget) break;
+			}
+		} finally {
+			draining.set(null);
+			for (int i=0; i<afterDrain.size(); i++) {
+				afterDrain.get(i).run();
+			}
+			afterDrain.clear();
+
+			lastDrain=start;
+			scheduled.set(false);
+			if (!pending.isEmpty() && scheduled.compareAndSet(false, true)) schedule();
+		}
+	}
+}
@@ -0,0 +1,563 @@
+package net.rcode.nanomaps.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import net.rcode.nanomaps.util.Constants;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Process wide cache of resolved host addresses and idle keep-alive http
+ * connections keyed by host:port.  Connections outlive the HttpAgent and
+ * worker thread that opened them, so a pan that starts after the workers
+ * have idled out reuses a warm connection instead of paying DNS and TCP
+ * setup again.  Connections can also be opened ahead of need with
+ * preconnect().
+ * <p>
+ * Idle connections are closed when they have been idle for longer than the
+ * idle timeout (checked whenever the pool is used) and are probed before
+ * being handed out in case the server closed them.
+ * <p>
+ * Secure connections are TLS layered over a socket the pool connected
+ * itself, created with the peer's host and port so that the socket
+ * factory's session cache resumes the previous session on a reconnect
+ * instead of doing a full handshake.  Secure and plain connections to the
+ * same host:port are pooled separately.  On Android a factory with a
+ * persistent cache (ie. SSLCertificateSocketFactory with an
+ * SSLSessionCache) can be set with setSSLSocketFactory().
+ *
+ * @author stella
+ *
+ */
+public class ConnectionPool {
+	/**
+	 * Idle connections are dropped after this long.  Kept under common
+	 * server keep-alive timeouts.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT=15000;
+	public static final long DEFAULT_DNS_TTL=300000;
+	static final long NEGATIVE_DNS_TTL=10000;
+	static final int CONNECT_TIMEOUT=10000;
+	static final int READ_TIMEOUT=30000;
+	static final int MAX_IDLE_PER_HOST=HostProfile.DEFAULT_MAX_WORKERS;
+	static final int HELPER_LINGER=5000;
+	static final int MAX_HELPERS=4;
+
+	/**
+	 * A socket owned either by the pool (idle) or by one HttpAgent
+	 */
+	static class Connection {
+		final String host;
+		final int port;
+		final boolean secure;
+		final Socket socket;
+
+		/**
+		 * Requests written over the life of the connection
+		 */
+		int requests;
+		long idleSince;
+
+		Connection(String host, int port, boolean secure, Socket socket) {
+			this.host=host;
+			this.port=port;
+			this.secure=secure;
+			this.socket=socket;
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	static class DnsEntry {
+		InetAddress address;
+		long expires;
+		boolean resolving;
+		ArrayList<Runnable> waiters;
+	}
+
+	private static ConnectionPool DEFAULT;
+
+	public static synchronized ConnectionPool getDefault() {
+		if (DEFAULT==null) DEFAULT=new ConnectionPool();
+		return DEFAULT;
+	}
+
+	private long idleTimeout=DEFAULT_IDLE_TIMEOUT;
+	private volatile long dnsTtl=DEFAULT_DNS_TTL;
+	private SSLSocketFactory sslSocketFactory;
+	private HostnameVerifier hostnameVerifier;
+	private int handshakes;
+	private int resumedHandshakes;
+	private Map<String, DnsEntry> dns=new HashMap<String, DnsEntry>();
+	private Map<String, LinkedList<Connection>> idle=new HashMap<String, LinkedList<Connection>>();
+
+	/**
+	 * Background work (resolution and preconnects) run by a few helper
+	 * threads that exit when idle
+	 */
+	private LinkedList<Runnable> tasks=new LinkedList<Runnable>();
+	private int helperCount;
+	private int idleHelpers;
+	private int helperNumber;
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout=idleTimeout;
+	}
+
+	public void setDnsTtl(long dnsTtl) {
+		this.dnsTtl=dnsTtl;
+	}
+
+	/**
+	 * @return factory layering TLS over secure connections.  Defaults to
+	 * the platform's https factory.
+	 */
+	public synchronized SSLSocketFactory getSSLSocketFactory() {
+		if (sslSocketFactory==null) sslSocketFactory=HttpsURLConnection.getDefaultSSLSocketFactory();
+		return sslSocketFactory;
+	}
+
+	/**
+	 * Set the factory for secure connections.  Sessions are resumed from its
+	 * session cache.
+	 * @param sslSocketFactory factory or null for the platform default
+	 */
+	public synchronized void setSSLSocketFactory(SSLSocketFactory sslSocketFactory) {
+		this.sslSocketFactory=sslSocketFactory;
+	}
+
+	/**
+	 * @return verifier checking the certificate of secure connections
+	 * against the host.  Defaults to the platform's https verifier.
+	 */
+	public synchronized HostnameVerifier getHostnameVerifier() {
+		if (hostnameVerifier==null) hostnameVerifier=HttpsURLConnection.getDefaultHostnameVerifier();
+		return hostnameVerifier;
+	}
+
+	/**
+	 * @param hostnameVerifier verifier or null for the platform default
+	 */
+	public synchronized void setHostnameVerifier(HostnameVerifier hostnameVerifier) {
+		this.hostnameVerifier=hostnameVerifier;
+	}
+
+	/**
+	 * @return number of TLS handshakes done for new connections
+	 */
+	public synchronized int getHandshakeCount() {
+		return handshakes;
+	}
+
+	/**
+	 * @return number of those handshakes that resumed a cached session
+	 */
+	public synchronized int getResumedHandshakeCount() {
+		return resumedHandshakes;
+	}
+
+	/**
+	 * Resolve a host, blocking if it is not cached
+	 * @param host
+	 * @return address
+	 * @throws UnknownHostException
+	 */
+	public InetAddress resolve(String host) throws UnknownHostException {
+		InetAddress address=lookup(host, null);
+		if (address!=null) return address;
+
+		try {
+			address=InetAddress.getByName(host);
+		} catch (UnknownHostException e) {
+			resolved(host, null);
+			throw e;
+		}
+		resolved(host, address);
+		return address;
+	}
+
+	/**
+	 * Get a cached address without blocking.  If there is none, resolution
+	 * is started in the background and whenResolved is run (on the helper
+	 * thread) when it finishes either way.
+	 * @param host
+	 * @param whenResolved optional
+	 * @return address or null if not yet resolved
+	 * @throws UnknownHostException if the host recently failed to resolve
+	 */
+	public InetAddress lookup(final String host, Runnable whenResolved) throws UnknownHostException {
+		long now=SystemClock.uptimeMillis();
+		synchronized (dns) {
+			DnsEntry entry=dns.get(host);
+			if (entry!=null && !entry.resolving && now<entry.expires) {
+				if (entry.address==null) throw new UnknownHostException(host);
+				return entry.address;
+			}
+			if (entry==null) {
+				entry=new DnsEntry();
+				dns.put(host, entry);
+			}
+			if (whenResolved!=null) {
+				if (entry.waiters==null) entry.waiters=new ArrayList<Runnable>(2);
+				entry.waiters.add(whenResolved);
+			}
+			if (whenResolved==null || entry.resolving) return null;
+			entry.resolving=true;
+		}
+
+		execute(new Runnable() {
+			public void run() {
+				InetAddress address=null;
+				try {
+					address=InetAddress.getByName(host);
+				} catch (UnknownHostException e) {
+					Log.d(Constants.LOG_TAG, "Could not resolve " + host);
+				}
+				resolved(host, address);
+			}
+		});
+		return null;
+	}
+
+	private void resolved(String host, InetAddress address) {
+		ArrayList<Runnable> waiters;
+		synchronized (dns) {
+			DnsEntry entry=dns.get(host);
+			if (entry==null) {
+				entry=new DnsEntry();
+				dns.put(host, entry);
+			}
+			entry.address=address;
+			entry.expires=SystemClock.uptimeMillis() + (address!=null ? dnsTtl : NEGATIVE_DNS_TTL);
+			entry.resolving=false;
+			waiters=entry.waiters;
+			entry.waiters=null;
+		}
+		if (waiters!=null) {
+			for (int i=0; i<waiters.size(); i++) {
+				waiters.get(i).run();
+			}
+		}
+	}
+
+	/**
+	 * Start resolving a host in the background if it is not cached
+	 * @param host
+	 */
+	public void prefetchAddress(String host) {
+		try {
+			lookup(host, NOOP);
+		} catch (UnknownHostException e) {
+			// Recently failed.  Nothing to do.
+		}
+	}
+
+	private static final Runnable NOOP=new Runnable() {
+		public void run() {
+		}
+	};
+
+	/**
+	 * Take an idle connection or open a new one
+	 * @param host
+	 * @param port
+	 * @return connection owned by the caller until release() or close
+	 * @throws IOException
+	 */
+	Connection acquire(String host, int port) throws IOException {
+		return acquire(host, port, false);
+	}
+
+	/**
+	 * Take an idle connection or open a new one
+	 * @param host
+	 * @param port
+	 * @param secure true for a TLS connection
+	 * @return connection owned by the caller until release() or close
+	 * @throws IOException
+	 */
+	Connection acquire(String host, int port, boolean secure) throws IOException {
+		String key=keyFor(host, port, secure);
+		for (;;) {
+			Connection connection=null;
+			ArrayList<Connection> expired;
+			synchronized (this) {
+				expired=pruneLocked(SystemClock.uptimeMillis());
+				LinkedList<Connection> list=idle.get(key);
+				if (list!=null && !list.isEmpty()) connection=list.removeLast();
+			}
+			closeAll(expired);
+
+			if (connection==null) return open(host, port, secure);
+			if (isAlive(connection.socket)) return connection;
+			connection.close();
+		}
+	}
+
+	/**
+	 * Open a new connection, bypassing the idle list
+	 */
+	Connection open(String host, int port, boolean secure) throws IOException {
+		InetAddress address=resolve(host);
+		Log.d(Constants.LOG_TAG, "Establishing " + (secure ? "https" : "http") + " connection to " + host + ":" + port);
+		Socket socket=new Socket();
+		try {
+			socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT);
+			socket.setSoLinger(false, 0);
+			socket.setSoTimeout(READ_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			if (secure) socket=handshake(socket, host, port);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return new Connection(host, port, secure, socket);
+	}
+
+	/**
+	 * Layer TLS over a connected socket and verify the peer
+	 * @return the secure socket
+	 */
+	private Socket handshake(Socket plain, String host, int port) throws IOException {
+		// Passing the host and port keys the session cache (and sends SNI)
+		SSLSocket socket=(SSLSocket) getSSLSocketFactory().createSocket(plain, host, port, true);
+		try {
+			long started=System.currentTimeMillis();
+			socket.startHandshake();
+			
+			// Some factories (ie. Android's SSLCertificateSocketFactory) leave
+			// hostname checks to the caller
+			if (!getHostnameVerifier().verify(host, socket.getSession())) {
+				throw new SSLException("Certificate does not match " + host);
+			}
+			
+			boolean resumed=socket.getSession().getCreationTime()<started;
+			synchronized (this) {
+				handshakes++;
+				if (resumed) resumedHandshakes++;
+			}
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	private static String keyFor(String host, int port, boolean secure) {
+		return secure ? "https:" + host + ':' + port : host + ':' + port;
+	}
+
+	/**
+	 * Return a connection with nothing outstanding on it to the idle list
+	 * @param connection
+	 */
+	void release(Connection connection) {
+		if (connection.socket.isClosed()) return;
+		String key=keyFor(connection.host, connection.port, connection.secure);
+		Connection evicted=null;
+		ArrayList<Connection> expired;
+		synchronized (this) {
+			long now=SystemClock.uptimeMillis();
+			expired=pruneLocked(now);
+			LinkedList<Connection> list=idle.get(key);
+			if (list==null) {
+				list=new LinkedList<Connection>();
+				idle.put(key, list);
+			}
+			connection.idleSince=now;
+			list.addLast(connection);
+			if (list.size()>MAX_IDLE_PER_HOST) evicted=list.removeFirst();
+		}
+		closeAll(expired);
+		if (evicted!=null) evicted.close();
+	}
+
+	/**
+	 * Open connections in the background until the host has count idle
+	 * connections.  Also warms the address cache.
+	 * @param host
+	 * @param port
+	 * @param count
+	 */
+	public void preconnect(String host, int port, int count) {
+		preconnect(host, port, false, count);
+	}
+
+	/**
+	 * Open connections in the background until the host has count idle
+	 * connections.  Secure connections are opened with their handshake done.
+	 * @param host
+	 * @param port
+	 * @param secure
+	 * @param count
+	 */
+	public void preconnect(final String host, final int port, final boolean secure, int count) {
+		final int needed=Math.min(count, MAX_IDLE_PER_HOST) - getIdleCount(host, port, secure);
+		if (needed<=0) return;
+		execute(new Runnable() {
+			public void run() {
+				for (int i=0; i<needed; i++) {
+					try {
+						release(open(host, port, secure));
+					} catch (IOException e) {
+						Log.d(Constants.LOG_TAG, "Could not preconnect to " + host + ":" + port + ": " + e);
+						return;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param host
+	 * @param port
+	 * @return number of idle connections to the host
+	 */
+	public int getIdleCount(String host, int port) {
+		return getIdleCount(host, port, false);
+	}
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param secure
+	 * @return number of idle connections to the host
+	 */
+	public synchronized int getIdleCount(String host, int port, boolean secure) {
+		LinkedList<Connection> list=idle.get(keyFor(host, port, secure));
+		return list!=null ? list.size() : 0;
+	}
+
+	/**
+	 * Close every idle connection (ie. when the network changes)
+	 */
+	public void evictAll() {
+		ArrayList<Connection> all=new ArrayList<Connection>();
+		synchronized (this) {
+			for (LinkedList<Connection> list: idle.values()) {
+				all.addAll(list);
+			}
+			idle.clear();
+		}
+		closeAll(all);
+	}
+
+	/**
+	 * Remove connections idle past the timeout
+	 * @return removed connections to be closed outside of the lock
+	 */
+	private ArrayList<Connection> pruneLocked(long now) {
+		ArrayList<Connection> ret=null;
+		for (LinkedList<Connection> list: idle.values()) {
+			while (!list.isEmpty() && now-list.getFirst().idleSince>=idleTimeout) {
+				if (ret==null) ret=new ArrayList<Connection>();
+				ret.add(list.removeFirst());
+			}
+		}
+		return ret;
+	}
+
+	private static void closeAll(ArrayList<Connection> connections) {
+		if (connections==null) return;
+		for (int i=0; i<connections.size(); i++) {
+			connections.get(i).close();
+		}
+	}
+
+	/**
+	 * @return true if the server has not closed the socket or sent anything
+	 * unexpected while it was idle
+	 */
+	static boolean isAlive(Socket socket) {
+		if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) return false;
+		try {
+			InputStream in=socket.getInputStream();
+			if (in.available()>0) return false;
+			socket.setSoTimeout(1);
+			try {
+				// Either end of stream or bytes nobody asked for
+				in.read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				// Nothing to read.  Still open.
+				return true;
+			} finally {
+				socket.setSoTimeout(READ_TIMEOUT);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void execute(Runnable task) {
+		synchronized (tasks) {
+			tasks.add(task);
+			if (idleHelpers>0) {
+				tasks.notify();
+				return;
+			}
+			if (helperCount>=MAX_HELPERS) return;
+			helperCount++;
+		}
+		Thread t=new Thread(new Runnable() {
+			public void run() {
+				for (;;) {
+					Runnable next;
+					synchronized (tasks) {
+						if (tasks.isEmpty()) {
+							idleHelpers++;
+							try {
+								tasks.wait(HELPER_LINGER);
+							} catch (InterruptedException e) {
+								// Exit below
+							} finally {
+								idleHelpers--;
+							}
+						}
+						if (tasks.isEmpty()) {
+							helperCount--;
+							return;
+						}
+						next=tasks.removeFirst();
+					}
+					try {
+						next.run();
+					} catch (Throwable t) {
+						Log.e(Constants.LOG_TAG, "Error in connection pool task", t);
+					}
+				}
+			}
+		});
+		synchronized (tasks) {
+			t.setName("nmpool-" + (++helperNumber));
+		}
+		t.setDaemon(true);
+		t.start();
+	}
+}
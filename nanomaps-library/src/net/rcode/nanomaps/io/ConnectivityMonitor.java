@@ -0,0 +1,30 @@
+package net.rcode.nanomaps.io;
+
+/**
+ * Source of network up/down signals for a ResourceLoader.  While the
+ * network is down, DefaultResourceLoader parks its http queues instead of
+ * failing everything in them.
+ * 
+ * @author stella
+ *
+ */
+public interface ConnectivityMonitor {
+	public interface Listener {
+		/**
+		 * Called (on any thread) when connectivity changes
+		 * @param connected
+		 */
+		public void onConnectivityChanged(boolean connected);
+	}
+	
+	/**
+	 * @return true if requests have a chance of succeeding
+	 */
+	public boolean isConnected();
+	
+	/**
+	 * Set the single listener to notify of changes or null
+	 * @param listener
+	 */
+	public void setListener(Listener listener);
+}
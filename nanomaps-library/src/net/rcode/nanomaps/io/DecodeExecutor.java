@@ -0,0 +1,144 @@
+package net.rcode.nanomaps.io;
+
+import java.util.ArrayList;
+
+import net.rcode.nanomaps.util.Constants;
+
+import android.util.Log;
+
+/**
+ * Small pool of threads that turns loaded bytes into results (ie. decodes
+ * bitmaps) so that network workers only move bytes and never wait on the
+ * CPU.  Sized to the number of processors by default.
+ * <p>
+ * Tasks are run LIFO: the most recently loaded resource is the one most
+ * likely to still be wanted.  Tasks that report themselves cancelled when
+ * they reach the top of the stack are discarded without running.
+ *
+ * @author stella
+ *
+ */
+public class DecodeExecutor {
+	static final int DEFAULT_IDLE_LINGER=30000;
+	
+	/**
+	 * Unit of work.  isCancelled() is checked just before running.  If it
+	 * returns true, discard() is called instead of run().
+	 */
+	public static abstract class Task implements Runnable {
+		public boolean isCancelled() {
+			return false;
+		}
+		
+		/**
+		 * Release anything held by a task that will not be run
+		 */
+		public void discard() {
+		}
+	}
+	
+	private static DecodeExecutor DEFAULT;
+	
+	/**
+	 * @return the process wide executor with one thread per processor
+	 */
+	public static synchronized DecodeExecutor getDefault() {
+		if (DEFAULT==null) {
+			DEFAULT=new DecodeExecutor(Runtime.getRuntime().availableProcessors());
+		}
+		return DEFAULT;
+	}
+	
+	private ArrayList<Task> stack=new ArrayList<Task>();
+	private int maxThreads;
+	private int threadCount;
+	private int idleCount;
+	private int threadNumber;
+	
+	public DecodeExecutor(int maxThreads) {
+		this.maxThreads=maxThreads>0 ? maxThreads : 1;
+	}
+	
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+	
+	/**
+	 * @return number of tasks waiting to run
+	 */
+	public synchronized int getPendingCount() {
+		return stack.size();
+	}
+	
+	public void submit(Task task) {
+		synchronized (this) {
+			stack.add(task);
+			if (idleCount>0) {
+				this.notify();
+			} else if (threadCount<maxThreads) {
+				threadCount++;
+				Thread t=new Thread(new Worker());
+				t.setName("nmdecode-" + (++threadNumber));
+				t.start();
+			}
+		}
+	}
+	
+	/**
+	 * @return the next task that has not been cancelled or null if the
+	 * calling worker should exit
+	 */
+	private Task next() {
+		ArrayList<Task> discarded=null;
+		Task ret=null;
+		synchronized (this) {
+			for (;;) {
+				while (!stack.isEmpty()) {
+					Task task=stack.remove(stack.size()-1);
+					if (!task.isCancelled()) {
+						ret=task;
+						break;
+					}
+					if (discarded==null) discarded=new ArrayList<Task>();
+					discarded.add(task);
+				}
+				if (ret!=null) break;
+				
+				try {
+					idleCount++;
+					this.wait(DEFAULT_IDLE_LINGER);
+				} catch (InterruptedException e) {
+					// Exit below
+				} finally {
+					idleCount--;
+				}
+				if (stack.isEmpty()) {
+					threadCount--;
+					break;
+				}
+			}
+		}
+		
+		if (discarded!=null) {
+			for (int i=0; i<discarded.size(); i++) {
+				discarded.get(i).discard();
+			}
+		}
+		return ret;
+	}
+	
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			for (;;) {
+				Task task=next();
+				if (task==null) break;
+				try {
+					task.run();
+				} catch (Throwable t) {
+					Log.e(Constants.LOG_TAG, "Error running decode task", t);
+				}
+			}
+		}
+	}
+}
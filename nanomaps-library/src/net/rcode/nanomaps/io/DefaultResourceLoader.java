@@ -2,25 +2,50 @@ package net.rcode.nanomaps.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-import org.apache.http.HttpRequest;
-import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 
 import net.rcode.nanomaps.util.Constants;
 
 import android.net.Uri;
-import android.os.Handler;
 import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * Platform default resource loader singleton.
+ * <p>
+ * Loading happens in two stages.  IOWorker threads (per scheme+authority
+ * IOQueue) only move bytes: each body is read into a pooled array and handed
+ * to the DecodeExecutor, which runs the DataHandler.  Bodies for requests
+ * that are cancelled before their turn comes are never decoded.
+ * <p>
+ * Both http and https uris go to per host queues.  With
+ * setNonBlockingTransport(true), plain http queues are instead serviced by
+ * a single NioHttpTransport selector thread shared by every host.  Https
+ * queues always use workers.
+ * <p>
+ * If a ConnectivityMonitor is set, http queues are parked while the
+ * network is down rather than failing everything in them.
+ * <p>
+ * getInstance() runs a thread per worker and talks http with HttpAgent.
+ * Loaders constructed directly can run their workers on any Executor (ie.
+ * a process wide pool) and carry http over any HttpTransport.
  * @author stella
  */
 public class DefaultResourceLoader extends ResourceLoader {
@@ -31,11 +56,242 @@ public class DefaultResourceLoader extends ResourceLoader {
 		return INSTANCE;
 	}
 	
-	static final int DEFAULT_PIPELINE_DEPTH=7;
 	static final int DEFAULT_WORKERS_PER_QUEUE=3;
 	static final int DEFAULT_IDLE_LINGER=30000;
 	
+	/**
+	 * Abandon a connection when this much of its pipeline has been cancelled
+	 */
+	static final float DEFAULT_ABANDON_THRESHOLD=0.75f;
+	
+	/**
+	 * Cancelled entries are purged from a queue's heap once they outnumber
+	 * the live ones and there are more than this many entries
+	 */
+	static final int PURGE_SLACK=64;
+	
+	/**
+	 * Default worker executor.  Starts a named thread per worker.
+	 */
+	static final Executor THREAD_PER_WORKER=new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			Thread t=new Thread(command);
+			t.setName("nmio-" + command);
+			t.start();
+		}
+	};
+	
 	Map<String, IOQueue> queues=new HashMap<String, IOQueue>();
+	NioHttpTransport nioTransport;
+	boolean nonBlockingTransport;
+	ConnectivityMonitor connectivityMonitor;
+	
+	/**
+	 * Set while the ConnectivityMonitor says the network is down.  Http
+	 * queues hold on to their requests until it clears.
+	 */
+	volatile boolean offline;
+	
+	/**
+	 * Null unless metrics have been enabled
+	 */
+	volatile LoaderMetrics metrics;
+	
+	/**
+	 * Null unless tracing has been enabled
+	 */
+	volatile LoadTracer tracer;
+	
+	private ConnectivityMonitor.Listener connectivityListener=new ConnectivityMonitor.Listener() {
+		@Override
+		public void onConnectivityChanged(boolean connected) {
+			setOffline(!connected);
+		}
+	};
+	ByteArrayPool bufferPool=ByteArrayPool.getDefault();
+	DecodeExecutor decodeExecutor=DecodeExecutor.getDefault();
+	ConnectionPool connectionPool=ConnectionPool.getDefault();
+	final Executor workerExecutor;
+	final HttpTransport httpTransport;
+	
+	/**
+	 * What has been learned about each http host.  Outlives the queues.
+	 */
+	Map<String, HostProfile> hostProfiles=new HashMap<String, HostProfile>();
+	
+	/**
+	 * Bounds within which each host's connection count and pipeline depth
+	 * are tuned
+	 */
+	int minHttpWorkers=HostProfile.DEFAULT_MIN_WORKERS;
+	int maxHttpWorkers=HostProfile.DEFAULT_MAX_WORKERS;
+	int minPipelineDepth=HostProfile.DEFAULT_MIN_PIPELINE_DEPTH;
+	int maxPipelineDepth=HostProfile.DEFAULT_MAX_PIPELINE_DEPTH;
+	
+	/**
+	 * Milliseconds an idle worker waits for more work before exiting
+	 */
+	volatile int idleLinger=DEFAULT_IDLE_LINGER;
+	
+	HostProfile getHostProfile(String host, int port, boolean secure) {
+		String key=secure ? "https:" + host + ':' + port : host + ':' + port;
+		synchronized (hostProfiles) {
+			HostProfile profile=hostProfiles.get(key);
+			if (profile==null) {
+				profile=new HostProfile(host, port, secure);
+				profile.setWorkerBounds(minHttpWorkers, maxHttpWorkers);
+				profile.setPipelineDepthBounds(minPipelineDepth, maxPipelineDepth);
+				hostProfiles.put(key, profile);
+			}
+			return profile;
+		}
+	}
+	
+	/**
+	 * Set the range of connections per http host.  Each host is tuned
+	 * within it based on throughput and errors.  min==max disables tuning.
+	 * Applies to hosts already seen.
+	 * @param min
+	 * @param max
+	 */
+	public void setHttpWorkerBounds(int min, int max) {
+		synchronized (hostProfiles) {
+			minHttpWorkers=min;
+			maxHttpWorkers=max;
+			for (HostProfile profile: hostProfiles.values()) {
+				profile.setWorkerBounds(min, max);
+			}
+		}
+	}
+	
+	/**
+	 * Set the range of pipeline depths per http connection.  Each host is
+	 * tuned within it based on throughput and errors.  min==max disables
+	 * tuning.  Applies to hosts already seen.
+	 * @param min
+	 * @param max
+	 */
+	public void setHttpPipelineDepthBounds(int min, int max) {
+		synchronized (hostProfiles) {
+			minPipelineDepth=min;
+			maxPipelineDepth=max;
+			for (HostProfile profile: hostProfiles.values()) {
+				profile.setPipelineDepthBounds(min, max);
+			}
+		}
+	}
+	
+	/**
+	 * Set how long an idle worker waits for more work before its thread
+	 * exits.  Applies to queues created afterwards.
+	 * @param millis
+	 */
+	public void setIdleLinger(int millis) {
+		this.idleLinger=millis;
+	}
+	
+	/**
+	 * Service all http hosts from a single selector thread instead of
+	 * blocking worker threads per host.  Off by default.  Requests already
+	 * queued are picked up by whichever transport gets to them first.
+	 * @param enabled
+	 */
+	public synchronized void setNonBlockingTransport(boolean enabled) {
+		this.nonBlockingTransport=enabled;
+	}
+	
+	public synchronized boolean isNonBlockingTransport() {
+		return nonBlockingTransport;
+	}
+	
+	/**
+	 * Record per-host statistics into the given registry
+	 * @param metrics registry or null to stop recording
+	 */
+	public void setMetrics(LoaderMetrics metrics) {
+		this.metrics=metrics;
+	}
+	
+	public LoaderMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Trace sampled requests into the given tracer
+	 * @param tracer tracer or null to stop tracing
+	 */
+	public void setTracer(LoadTracer tracer) {
+		this.tracer=tracer;
+	}
+	
+	public LoadTracer getTracer() {
+		return tracer;
+	}
+	
+	/**
+	 * Pause http queues while the monitor reports that the network is down.
+	 * Queued requests are kept (cancelled ones fall away as usual) and are
+	 * sent in priority order when it comes back.  Requests that fail for
+	 * lack of a network while offline are put back on their queue.
+	 * @param monitor monitor or null to always assume connectivity
+	 */
+	public void setConnectivityMonitor(ConnectivityMonitor monitor) {
+		synchronized (this) {
+			if (connectivityMonitor!=null) connectivityMonitor.setListener(null);
+			connectivityMonitor=monitor;
+			if (monitor!=null) monitor.setListener(connectivityListener);
+		}
+		setOffline(monitor!=null && !monitor.isConnected());
+	}
+	
+	public synchronized ConnectivityMonitor getConnectivityMonitor() {
+		return connectivityMonitor;
+	}
+	
+	public boolean isOffline() {
+		return offline;
+	}
+	
+	void setOffline(boolean offline) {
+		if (this.offline==offline) return;
+		this.offline=offline;
+		Log.d(Constants.LOG_TAG, offline ? "Network down.  Pausing http queues." : "Network up.  Resuming http queues.");
+		if (offline) {
+			// Idle connections will not survive a change of network
+			connectionPool.evictAll();
+			return;
+		}
+		
+		IOQueue[] localQueues;
+		synchronized (queues) {
+			localQueues=queues.values().toArray(new IOQueue[queues.size()]);
+		}
+		for (int i=0; i<localQueues.length; i++) {
+			localQueues[i].resume();
+		}
+	}
+	
+	/**
+	 * Put a failed request back on its queue if the failure was likely
+	 * caused by the network being down
+	 * @param request
+	 * @return true if requeued
+	 */
+	boolean requeueIfOffline(IORequest request) {
+		if (!offline || !request.queue.ishttp || request.isCancelled()) return false;
+		request.attempts=0;
+		request.queue.add(request);
+		return true;
+	}
+	
+	synchronized NioHttpTransport getNioTransport() {
+		if (!nonBlockingTransport) return null;
+		if (nioTransport==null) {
+			nioTransport=new NioHttpTransport(this, DEFAULT_IDLE_LINGER);
+		}
+		return nioTransport;
+	}
 	
 	IOQueue getQueue(String key, int maxWorkers, int idleLinger) {
 		synchronized (queues) {
@@ -51,8 +307,8 @@ public class DefaultResourceLoader extends ResourceLoader {
 	IOQueue getHttpQueue(Uri uri) {
 		// Start an http worker queue
 		String queueName=uri.getScheme() + ':' + uri.getAuthority();
-		IOQueue queue=getQueue(queueName, DEFAULT_WORKERS_PER_QUEUE, DEFAULT_IDLE_LINGER);
-		queue.startHttp(uri.getHost(), uri.getPort());
+		IOQueue queue=getQueue(queueName, DEFAULT_WORKERS_PER_QUEUE, idleLinger);
+		queue.startHttp(uri.getHost(), uri.getPort(), "https".equals(uri.getScheme()));
 		return queue;
 	}
 	
@@ -62,20 +318,41 @@ public class DefaultResourceLoader extends ResourceLoader {
 		}
 	}
 	
+	/**
+	 * Requests waiting for a worker or the nio transport.
+	 * <p>
+	 * Callers (usually the UI thread) never take a lock that a consumer
+	 * holds.  Additions and priority changes go into a lock free inbox
+	 * that consumers fold into the priority heap when they take the next
+	 * request.  Cancellation just clears the request's queued flag and the
+	 * dead heap entry is skipped (or purged in bulk) later.  Idle workers
+	 * park and are unparked by whoever adds work.  The queue's own
+	 * monitor only guards worker bookkeeping and is never held while
+	 * waiting or doing io.
+	 */
 	class IOQueue {
 		int workerNumber;
 		String key;
 		ArrayList<IOWorker> workers=new ArrayList<IOWorker>();
 		int maxWorkers;
 		int idleLinger;
-		int idleCount;
-		LinkedList<IORequest> contents=new LinkedList<IORequest>();
+		
+		/**
+		 * Owned by consumers.  Guarded by its own monitor.
+		 */
+		PriorityHeap<IORequest> contents=new PriorityHeap<IORequest>(32);
+		ConcurrentLinkedQueue<IORequest> inbox=new ConcurrentLinkedQueue<IORequest>();
+		
+		/**
+		 * Number of requests queued and not cancelled or taken
+		 */
+		AtomicInteger pending=new AtomicInteger();
+		AtomicInteger workerCount=new AtomicInteger();
+		ConcurrentLinkedQueue<Thread> parked=new ConcurrentLinkedQueue<Thread>();
 		
 		// For http worker queues
-		boolean ishttp;
-		String httpHost;
-		int httpPort;
-		int httpPipelineDepth=DEFAULT_PIPELINE_DEPTH;
+		volatile boolean ishttp;
+		volatile HostProfile httpProfile;
 		
 		public IOQueue(String key, int maxWorkers, int idleLinger) {
 			this.key=key;
@@ -83,22 +360,119 @@ public class DefaultResourceLoader extends ResourceLoader {
 			this.idleLinger=idleLinger;
 		}
 		
-		public void startHttp(String host, int port) {
+		public void startHttp(String host, int port, boolean secure) {
 			synchronized (this) {
 				if (!ishttp) {
+					this.httpProfile=getHostProfile(host, port>0 ? port : (secure ? 443 : 80), secure);
 					this.ishttp=true;
-					this.httpHost=host;
-					this.httpPort=port>0 ? port : 80;
 				}
 			}
 		}
 		
+		/**
+		 * @return worker (connection) limit, as tuned for the host if http
+		 */
+		public int getMaxWorkers() {
+			return ishttp ? httpProfile.getWorkers() : maxWorkers;
+		}
+		
+		/**
+		 * @return pipeline depth as tuned for the host
+		 */
+		public int getPipelineDepth() {
+			return httpProfile.getPipelineDepth();
+		}
+		
 		public void startMaximum() {
+			boolean rejected=false;
 			synchronized(this) {
-				while (workers.size()<maxWorkers) {
-					startOne();
+				int max=getMaxWorkers();
+				while (workers.size()<max) {
+					if (!startOne()) {
+						rejected=true;
+						break;
+					}
 				}
 			}
+			if (rejected) workerRejected();
+		}
+		
+		/**
+		 * Let a worker go if the host has been tuned to fewer of them
+		 * @param worker
+		 * @return true if the worker should exit
+		 */
+		public boolean retireIfSurplus(IOWorker worker) {
+			if (workerCount.get()<=getMaxWorkers()) return false;
+			synchronized (this) {
+				if (workers.size()<=getMaxWorkers()) return false;
+				removeWorkerLocked(worker);
+				return true;
+			}
+		}
+		
+		/**
+		 * @return stats for this queue's host or null if not recording
+		 */
+		LoaderMetrics.HostStats getStats() {
+			LoaderMetrics localMetrics=metrics;
+			if (localMetrics==null || !ishttp) return null;
+			return localMetrics.getHostStats(httpProfile.toString());
+		}
+		
+		/**
+		 * Take the most urgent live request
+		 * @return request or null if none
+		 */
+		private IORequest take() {
+			IORequest ret=null;
+			synchronized (contents) {
+				drainInboxLocked();
+				for (;;) {
+					IORequest item=contents.poll();
+					if (item==null) break;
+					if (item.queued.compareAndSet(true, false)) {
+						ret=item;
+						break;
+					}
+					// Tombstone.  Cancelled while queued.
+				}
+			}
+			if (ret==null) return null;
+			
+			pending.decrementAndGet();
+			if (ishttp) ret.started(httpProfile);
+			if (ret.trace!=null) ret.trace.stamp(LoadTracer.DEQUEUED);
+			LoaderMetrics.HostStats stats=getStats();
+			if (stats!=null && ret.queueTime>=0) stats.dequeued(SystemClock.uptimeMillis()-ret.queueTime);
+			return ret;
+		}
+		
+		/**
+		 * Fold additions and priority changes into the heap
+		 */
+		private void drainInboxLocked() {
+			IORequest item;
+			while ((item=inbox.poll())!=null) {
+				if (!item.queued.get()) continue;
+				if (item.isQueued()) contents.update(item, item.requestedPriority);
+				else {
+					item.priority=item.requestedPriority;
+					contents.add(item);
+				}
+			}
+			
+			// Don't let a pan's worth of cancellations sit in the heap
+			if (contents.size()>PURGE_SLACK && contents.size()>pending.get()*2) {
+				contents.purge();
+			}
+		}
+		
+		/**
+		 * @return true if there are requests that may be taken now
+		 */
+		boolean hasWork() {
+			return pending.get()>0 && !(ishttp && offline);
 		}
 		
 		/**
@@ -106,160 +480,249 @@ public class DefaultResourceLoader extends ResourceLoader {
 		 * @return next or null
 		 */
 		public IORequest next(IOWorker worker, boolean noblock) {
-			synchronized (this) {
-				//Log.d(Constants.LOG_TAG, "Read next from queue of " + contents.size());
-				if (noblock) {
-					if (contents.isEmpty()) return null;
-					return contents.removeFirst();
+			if (noblock) {
+				if (!hasWork()) return null;
+				return take();
+			}
+			
+			for (;;) {
+				IORequest ret=hasWork() ? take() : null;
+				if (ret!=null) {
+					// Pass the baton if there is more
+					if (pending.get()>0) unparkOne();
+					return ret;
 				}
 				
-				if (contents.isEmpty()) {
-					try {
-						idleCount++;
-						this.wait(idleLinger);
-						idleCount--;
-					} catch (InterruptedException e) {
-						idleCount--;
-						workers.remove(worker);
-						return null;
-					}
-					if (contents.isEmpty()) {
-						workers.remove(worker);
+				// Park.  Registering before the final check means an add
+				// racing with us will either be seen or will unpark us.
+				Thread current=Thread.currentThread();
+				parked.add(current);
+				if (!hasWork()) {
+					LockSupport.parkNanos(this, idleLinger * 1000000L);
+				}
+				parked.remove(current);
+				
+				if (Thread.interrupted()) {
+					removeWorker(worker);
+					return null;
+				}
+				if (!hasWork()) {
+					// Parked queues keep their contents but not their threads
+					boolean started=true;
+					synchronized (this) {
+						removeWorkerLocked(worker);
 						if (workers.isEmpty()) {
-							// This may race slightly.  At worst, a dangling reference
-							// to this queue will cause us to fire up another thread
-							// which will expire shortly thereafter
-							removeQueue(key);
+							if (hasWork()) {
+								// An add since the check saw us as still running
+								// and started nothing.  Hand over to a new worker.
+								started=startOne();
+							} else if (pending.get()==0) {
+								// This may race slightly.  At worst, a dangling reference
+								// to this queue will cause us to fire up another thread
+								// which will expire shortly thereafter
+								removeQueue(key);
+							}
 						}
-						return null;
 					}
+					if (!started) workerRejected();
+					return null;
 				}
-				
-				IORequest ret=contents.removeFirst();
-				if (!contents.isEmpty()) this.notify();
-				return ret;
 			}
 		}
 		
+		private boolean unparkOne() {
+			Thread thread=parked.poll();
+			if (thread==null) return false;
+			LockSupport.unpark(thread);
+			return true;
+		}
+		
 		public void add(IORequest item) {
-			synchronized (this) {
-				/*
-				if (ishttp && contents.isEmpty()) {
-					// We first want to see if there are available slots on a worker
-					// that we can queue directly to
-					IOWorker idlestWorker=null;
-					int idlestSlots=0;
-					for (int i=0; i<workers.size(); i++) {
-						IOWorker w=workers.get(i);
-						int s=w.getAvailableSlots();
-						if (s>idlestSlots) {
-							idlestSlots=s;
-							idlestWorker=w;
-						}
-					}
-					
-					if (idlestWorker!=null && idlestWorker.queueDirect(item, false)) return;
+			// Put into the queue.  Http workers pull from it as their
+			// pipeline windows open.
+			enqueue(item, getStats());
+			wake(1);
+		}
+		
+		/**
+		 * Add several requests with one wakeup
+		 * @param items
+		 */
+		public void addAll(List<IORequest> items) {
+			LoaderMetrics.HostStats stats=getStats();
+			for (int i=0; i<items.size(); i++) {
+				enqueue(items.get(i), stats);
+			}
+			wake(items.size());
+		}
+		
+		private void enqueue(IORequest item, LoaderMetrics.HostStats stats) {
+			if (!item.queued.compareAndSet(false, true)) return;
+			if (stats!=null) {
+				item.queueTime=SystemClock.uptimeMillis();
+				stats.queued();
+			}
+			pending.incrementAndGet();
+			inbox.offer(item);
+		}
+		
+		/**
+		 * Make sure something is running to take what was just added
+		 * @param count number of requests added
+		 */
+		private void wake(int count) {
+			if (ishttp) {
+				startHttp();
+			} else {
+				for (int i=0; i<count; i++) {
+					if (!unparkOne()) break;
 				}
-				*/
-				
-				// It wasn't http or there weren't any workers with free slots
-				// Put into the regular queue
-				contents.add(item);
-				this.notify();
-				if (ishttp) startMaximum();
-				else {
-					if (idleCount==0 && workers.size()<maxWorkers) {
-						startOne();
-					} else {
-						Log.d(Constants.LOG_TAG, "Not starting worker for request: idle=" + idleCount + ", size=" + workers.size());
+				if (parked.isEmpty() && workerCount.get()<maxWorkers) {
+					boolean started=true;
+					synchronized (this) {
+						if (workers.size()<maxWorkers) started=startOne();
 					}
+					if (!started) workerRejected();
 				}
 			}
 		}
 		
+		/**
+		 * Cancel a queued request.  Constant time: the heap entry becomes a
+		 * tombstone that consumers skip.
+		 * @param item
+		 */
 		public void remove(IORequest item) {
-			synchronized (this) {
-				contents.remove(item);
+			if (item.queued.compareAndSet(true, false)) {
+				pending.decrementAndGet();
+				LoaderMetrics.HostStats stats=getStats();
+				if (stats!=null) stats.unqueued();
 			}
 		}
 		
-		private void startOne() {
+		/**
+		 * @return number of requests waiting to be taken
+		 */
+		public int size() {
+			return pending.get();
+		}
+		
+		/**
+		 * Change the priority of an item, reordering it if still queued
+		 * @param item
+		 * @param priority
+		 */
+		public void reprioritize(IORequest item, int priority) {
+			item.requestedPriority=priority;
+			if (item.queued.get()) inbox.offer(item);
+		}
+		
+		/**
+		 * Start taking requests again after being parked
+		 */
+		public void resume() {
+			if (!hasWork()) return;
+			while (unparkOne());
+			if (ishttp) startHttp();
+		}
+		
+		private void startHttp() {
+			if (offline) return;
+			// The selector only speaks plain http
+			NioHttpTransport transport=httpProfile.isSecure() ? null : getNioTransport();
+			if (transport!=null && transport.signal(this)) return;
+			if (unparkOne()) return;
+			if (workerCount.get()<getMaxWorkers()) startMaximum();
+		}
+		
+		/**
+		 * @return false if the executor would not run the worker
+		 */
+		private boolean startOne() {
 			synchronized (this) {
 				IOWorker worker=new IOWorker(this, key + '-' + (++workerNumber));
 				workers.add(worker);
-				worker.start();
+				workerCount.set(workers.size());
+				return worker.start();
 			}
 		}
 		
+		/**
+		 * The executor would not run a worker.  If none are left to take the
+		 * queue, fail what is waiting rather than leave it there.  Called
+		 * without holding the queue's monitor.
+		 */
+		private void workerRejected() {
+			if (workerCount.get()>0) return;
+			IORequest request;
+			while ((request=next(null, true))!=null) {
+				request.finish(true, false, null);
+			}
+		}
+		
+		private void removeWorkerLocked(IOWorker worker) {
+			workers.remove(worker);
+			workerCount.set(workers.size());
+		}
+		
 		public void removeWorker(IOWorker worker) {
+			boolean started=true;
 			synchronized (this) {
-				workers.remove(worker);
-				if (workers.size()==0 && !contents.isEmpty()) {
-					startOne();
+				removeWorkerLocked(worker);
+				if (workers.size()==0 && hasWork()) {
+					started=startOne();
 				}
 			}
+			if (!started) workerRejected();
 		}
 	}
 	
-	class IOWorker implements Runnable, HttpCallback {
-		boolean firstTime=true;
+	class IOWorker implements Runnable, HttpCallback, HttpAgent.Source {
 		String name;
 		Thread runningThread;
 		IOQueue queue;
-		HttpAgent httpAgent;
+		HttpTransport.Agent httpAgent;
 		
 		public IOWorker(IOQueue queue, String name) {
 			this.queue=queue;
 			this.name=name;
 		}
 		
-		public HttpAgent getHttpAgent() {
+		public HttpTransport.Agent getHttpAgent() {
 			if (httpAgent==null) {
-				httpAgent=new HttpAgent(queue.httpHost, queue.httpPort);
+				httpAgent=httpTransport.createAgent(queue.httpProfile, connectionPool);
 			}
 			return httpAgent;
 		}
 		
-		public int getAvailableSlots() {
-			if (httpAgent==null) return 0;
-			return queue.httpPipelineDepth - httpAgent.getPendingCount();
-		}
-		
-		public synchronized boolean queueDirect(IORequest request, boolean nocheck) {
-			HttpAgent agent=getHttpAgent();
-			if (!nocheck && agent.getPendingCount()>=queue.httpPipelineDepth) return false;
-					
-			HttpRequest htr=httpRequestFromUri(request.uri);
-			HttpInteraction interaction=new HttpInteraction(htr, this);
+		/**
+		 * Wrap an IORequest for submission to the agent
+		 * @param request
+		 * @return interaction
+		 */
+		HttpInteraction interactionFor(IORequest request) {
+			HttpInteraction interaction=new HttpInteraction(queue.httpProfile.getRequestTemplate(), request.getPath(), request.getRequestValidators());
 			interaction.correlation=request;
+			interaction.trace=request.trace;
 			interaction.callback=this;
-			agent.submit(interaction);
-			return false;
-		}
-		
-		public synchronized boolean flushQueueToAgent() {
-			HttpAgent agent=getHttpAgent();
-			boolean firstRequest=true;
-			boolean ret=true;
-			while (agent.getPendingCount() < queue.httpPipelineDepth) {
-				// Only block on the first time through
-				IORequest request=queue.next(this, !firstRequest);
-				if (request==null) {
-					if (firstRequest) ret=false;
-					break;
-				}
-
-				if (firstRequest) firstRequest=false;
-				queueDirect(request, true);
-			}
-			
-			//Log.d(Constants.LOG_TAG, "Flushed " + agent.getPendingCount() + " to agent.");
-			return ret;
+			request.setInteraction(interaction);
+			return interaction;
+		}
+		
+		/**
+		 * Refills the agent's pipeline window from the queue without blocking
+		 */
+		@Override
+		public HttpInteraction nextInteraction() {
+			IORequest request=queue.next(this, true);
+			if (request==null) return null;
+			return interactionFor(request);
 		}
 		
 		@Override
 		public void run() {
-			Log.d(Constants.LOG_TAG, "Starting worker thread " + name);
+			runningThread=Thread.currentThread();
+			Log.d(Constants.LOG_TAG, "Starting worker " + name + " on " + runningThread.getName());
 			
 			if (queue.ishttp) {
 				// Http queue processing is a little different
@@ -279,26 +742,36 @@ public class DefaultResourceLoader extends ResourceLoader {
 					}
 				}
 			}
-			Log.d(Constants.LOG_TAG, "Ending worker thread " + name);
+			Log.d(Constants.LOG_TAG, "Ending worker " + name);
 			queue.removeWorker(this);
 			
 			if (httpAgent!=null) {
-				httpAgent.shutdown();
+				httpAgent.releaseConnection();
 			}
 		}
 		
 		private void runHttp() {
 			for (;;) {
-				HttpAgent agent=getHttpAgent();
+				if (queue.retireIfSurplus(this)) return;
 				
-				// Drain stuff into the queue
-				if (!flushQueueToAgent()) {
-					return;
+				// Block for the first request.  The agent pulls the rest
+				// as its window opens.  While waiting the connection goes
+				// back to the pool so it outlives this worker.
+				IORequest first=queue.next(this, true);
+				if (first==null) {
+					if (httpAgent!=null) httpAgent.releaseConnection();
+					first=queue.next(this, false);
+					if (first==null) return;
 				}
+				
+				HttpTransport.Agent agent=getHttpAgent();
+				agent.setStats(queue.getStats());
+				agent.setAbandonThreshold(DEFAULT_ABANDON_THRESHOLD);
+				agent.submit(interactionFor(first));
 				while (agent.getPendingCount()>0) {
+					agent.setPipelineDepth(queue.getPipelineDepth());
 					try {
-						Log.d(Constants.LOG_TAG, name + " HttpAgent transmitting pipeline of " + agent.getPendingCount() + " items.");
-						agent.doIO();
+						agent.doIO(this);
 					} catch (Exception e) {
 						Log.e(Constants.LOG_TAG, "Error doing agent io", e);
 						agent.failAll(e);
@@ -308,8 +781,6 @@ public class DefaultResourceLoader extends ResourceLoader {
 			}
 		}
 		
-		
-		
 		private void runRequest(IORequest request) throws IOException {
 			Uri uri=request.uri;
 			/*
@@ -326,55 +797,506 @@ public class DefaultResourceLoader extends ResourceLoader {
 			//Log.d(Constants.LOG_TAG, name + " Requesting " + request.uri);
 			
 			URL url=new URL(uri.toString());
-			InputStream input=url.openStream();
+			URLConnection connection=url.openConnection();
+			Validators validators=request.getRequestValidators();
+			if (validators!=null) {
+				if (validators.etag!=null) connection.setRequestProperty("If-None-Match", validators.etag);
+				if (validators.lastModified!=null) connection.setRequestProperty("If-Modified-Since", validators.lastModified);
+			}
+			
+			InputStream input=connection.getInputStream();
+			if (request.trace!=null) request.trace.stamp(LoadTracer.FIRST_BYTE);
+			BufferInputStream body=null;
 			try {
-				request.processStream(this, input, -1);
+				Validators responseValidators=Validators.fromHeaders(
+						connection.getHeaderField("ETag"),
+						connection.getHeaderField("Last-Modified"),
+						connection.getHeaderField("Cache-Control"),
+						connection.getHeaderField("Expires"),
+						System.currentTimeMillis());
+				if (connection instanceof HttpURLConnection && 
+						((HttpURLConnection)connection).getResponseCode()==HttpURLConnection.HTTP_NOT_MODIFIED) {
+					decode(request, null, responseValidators);
+				} else {
+					body=bufferPool.readFully(input, connection.getContentLength());
+					if (request.trace!=null) request.trace.stamp(LoadTracer.BODY_READ);
+					decode(request, body, responseValidators);
+					body=null;
+				}
 			} finally {
+				if (body!=null) body.release();
 				input.close();
 			}
 			time=SystemClock.uptimeMillis()-time;
 			Log.d(Constants.LOG_TAG, name + " Completed " + request.uri + " in " + time + "ms");
 		}
 
-		public void start() {
-			runningThread=new Thread(this);
-			runningThread.setName("nmio-" + name);
-			runningThread.start();
+		@Override
+		public String toString() {
+			return name;
+		}
+		
+		/**
+		 * @return false if the executor rejected the worker.  It has been
+		 * removed from its queue.
+		 */
+		public boolean start() {
+			try {
+				workerExecutor.execute(this);
+				return true;
+			} catch (RejectedExecutionException e) {
+				Log.e(Constants.LOG_TAG, "Worker executor rejected " + name, e);
+				synchronized (queue) {
+					queue.removeWorkerLocked(this);
+				}
+				return false;
+			}
 		}
 		
 		@Override
 		public void handleHttpResponse(HttpInteraction interaction) throws IOException {
 			IORequest iorequest=(IORequest) interaction.correlation;
 			if (interaction.exception!=null) {
+				if (iorequest.isCancelled()) return;
+				if (requeueIfOffline(iorequest)) return;
 				Log.e(Constants.LOG_TAG, "Error running pipelined request " + iorequest.uri, interaction.exception);
+				iorequest.transportFailed=true;
 				iorequest.finish(true, false, null);
 				return;
 			}
-			int statusCode=interaction.httpResponse.getStatusLine().getStatusCode();
-			if (statusCode<200 || statusCode>300) {
-				Log.e(Constants.LOG_TAG, "Bad http status code for pipelined request " + iorequest.uri + " (" + statusCode + ")", interaction.exception);
-				iorequest.finish(true, false, null);
+			if (interaction.httpResponse==null) {
+				// Already parsed and buffered by the agent
+				dispatchResponse(iorequest, interaction.statusCode, interaction.body, interaction.bodyBytes,
+						interaction.responseValidators, SystemClock.uptimeMillis()-interaction.writeTime);
+				interaction.body=null;
 				return;
 			}
 			
-			InputStream stream=interaction.httpResponse.getEntity().getContent();
+			HttpResponse response=interaction.httpResponse;
+			int statusCode=response.getStatusLine().getStatusCode();
+			InputStream stream=response.getEntity().getContent();
+			BufferInputStream body=null;
+			LoaderMetrics.HostStats stats=queue.getStats();
 			try {
-				iorequest.processStream(this, stream, -1);
+				if (iorequest.isCancelled()) {
+					// Nobody wants it.  Keep the connection in step without
+					// buffering or decoding.
+					long skipped=drain(stream);
+					if (stats!=null) stats.cancelledBytes(skipped);
+					return;
+				}
+				
+				// Get the whole body off of the connection
+				Validators responseValidators=validatorsFromResponse(response);
+				long received=0;
+				if (statusCode>=200 && statusCode<300) {
+					body=bufferPool.readFully(stream, (int) response.getEntity().getContentLength());
+					received=body.getLength();
+				}
+				dispatchResponse(iorequest, statusCode, body, received, responseValidators, SystemClock.uptimeMillis()-interaction.writeTime);
+				body=null;
 			} finally {
+				if (body!=null) body.release();
 				stream.close();
 			}
 		}
 	}
 	
-	class IORequest implements ResourceLoader.Request {
+	/**
+	 * Act on a complete response: hand the body to the decode stage or
+	 * finish the request.  Shared by the http transports.  Takes ownership
+	 * of body.
+	 * @param request
+	 * @param statusCode
+	 * @param body body or null if none was read
+	 * @param received body bytes read off the connection
+	 * @param responseValidators
+	 * @param roundTrip ms from writing the request to reading the response
+	 */
+	void dispatchResponse(IORequest request, int statusCode, BufferInputStream body, long received, Validators responseValidators, long roundTrip) {
+		LoaderMetrics.HostStats stats=request.queue.getStats();
+		if (request.isCancelled()) {
+			if (body!=null) body.release();
+			if (stats!=null) stats.cancelledBytes(received);
+		} else if (statusCode==HttpStatus.SC_NOT_MODIFIED && request.getRequestValidators()!=null) {
+			if (body!=null) body.release();
+			if (stats!=null) stats.responded(roundTrip, 0);
+			if (request.trace!=null) request.trace.stamp(LoadTracer.BODY_READ);
+			decode(request, null, responseValidators);
+		} else if (statusCode<200 || statusCode>=300) {
+			Log.e(Constants.LOG_TAG, "Bad http status code for pipelined request " + request.uri + " (" + statusCode + ")");
+			if (body!=null) body.release();
+			request.finish(true, false, null);
+		} else {
+			if (body==null) body=new BufferInputStream(new byte[0], 0, 0);
+			if (stats!=null) stats.responded(roundTrip, body.getLength());
+			if (request.trace!=null) request.trace.stamp(LoadTracer.BODY_READ);
+			decode(request, body, responseValidators);
+		}
+	}
+	
+	/**
+	 * Runs the DataHandler for a loaded body on the DecodeExecutor.
+	 * A null body means the server answered 304.
+	 */
+	class DecodeTask extends DecodeExecutor.Task {
+		IORequest request;
+		BufferInputStream body;
+		Validators responseValidators;
+		
+		@Override
+		public boolean isCancelled() {
+			return request.isCancelled();
+		}
+		
+		@Override
+		public void discard() {
+			if (body!=null) {
+				body.release();
+				body=null;
+			}
+		}
+		
+		@Override
+		public void run() {
+			if (request.trace!=null) request.trace.stamp(LoadTracer.DECODE_START);
+			try {
+				if (body==null) request.processNotModified(responseValidators);
+				else request.processStream(body, body.getLength(), responseValidators);
+			} catch (Throwable t) {
+				// Finish anyway so the flight is not left behind for later
+				// loads of the uri to join
+				Log.e(Constants.LOG_TAG, "Error decoding " + request.uri, t);
+				request.finish(true, false, null);
+			} finally {
+				discard();
+			}
+		}
+	}
+	
+	/**
+	 * Hand a loaded body off to the decode stage.  Takes ownership of body.
+	 * @param request
+	 * @param body body or null for a 304
+	 * @param responseValidators
+	 */
+	void decode(IORequest request, BufferInputStream body, Validators responseValidators) {
+		DecodeTask task=new DecodeTask();
+		task.request=request;
+		task.body=body;
+		task.responseValidators=responseValidators;
+		decodeExecutor.submit(task);
+	}
+	
+	/**
+	 * Read a stream to its end, discarding the bytes
+	 * @param in
+	 * @return number of bytes read
+	 * @throws IOException
+	 */
+	long drain(InputStream in) throws IOException {
+		byte[] scratch=bufferPool.get(ByteArrayPool.DEFAULT_SIZE);
+		long total=0;
+		try {
+			for (;;) {
+				int r=in.read(scratch);
+				if (r<0) break;
+				total+=r;
+			}
+		} finally {
+			bufferPool.release(scratch);
+		}
+		return total;
+	}
+	
+	/**
+	 * Key for the single-flight table.  Identical URIs transformed by equal
+	 * DataHandlers share one IORequest.
+	 */
+	static final class FlightKey {
+		final String uri;
+		final DataHandler dataHandler;
+		final int hash;
+		
+		public FlightKey(String uri, DataHandler dataHandler) {
+			this.uri=uri;
+			this.dataHandler=dataHandler;
+			this.hash=uri.hashCode() * 31 + (dataHandler==null ? 0 : dataHandler.hashCode());
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof FlightKey)) return false;
+			FlightKey other=(FlightKey) o;
+			if (!uri.equals(other.uri)) return false;
+			if (dataHandler==null) return other.dataHandler==null;
+			return dataHandler.equals(other.dataHandler);
+		}
+	}
+	
+	/**
+	 * A single fetch of a resource.  Any number of IOCalls may be attached to it
+	 * and the result is fanned out to all of them.  The request is cancelled
+	 * when its last call is cancelled.
+	 */
+	class IORequest extends PriorityHeap.Entry {
+		@Override
+		boolean isDead() {
+			return !queued.get();
+		}
+		
 		boolean pipelineable=true;
-		Looper originatingLooper;
+		
+		/**
+		 * Metrics timestamps (uptime ms) of the last enqueue and, for the nio
+		 * transport, the last write
+		 */
+		long queueTime=-1;
+		long writeTime;
+		
+		/**
+		 * The HttpAgent interaction currently carrying this request, if any
+		 */
+		HttpInteraction interaction;
+		
+		/**
+		 * Times written to a connection by the nio transport.  Reset when
+		 * requeued while offline.
+		 */
+		int attempts;
+		
+		/**
+		 * Set while waiting in the queue.  Cleared by whoever takes or
+		 * cancels it first.
+		 */
+		final AtomicBoolean queued=new AtomicBoolean();
+		
+		/**
+		 * Host profile counting this request as outstanding, from when it is
+		 * first taken until its result or cancellation.  Guarded by this.
+		 */
+		HostProfile activeProfile;
+		
+		/**
+		 * Set if the request failed because the host could not be reached or
+		 * the connection failed, as opposed to an error response
+		 */
+		boolean transportFailed;
+		
+		/**
+		 * Set if this request was sampled for tracing
+		 */
+		LoadTracer.Trace trace;
+		
+		/**
+		 * Priority to apply when a consumer next folds the inbox into the heap
+		 */
+		volatile int requestedPriority=PRIORITY_DEFAULT;
 		
 		long startTime=SystemClock.uptimeMillis();
+		FlightKey flightKey;
 		IOQueue queue;
 		Uri uri;
+		String path;
 		DataHandler dataHandler;
+		ArrayList<IOCall> calls=new ArrayList<IOCall>(2);
+		boolean finished;
+		
+		/**
+		 * Attach a call to this request
+		 * @param call
+		 * @return false if the request has already finished or been cancelled
+		 */
+		public boolean attach(IOCall call) {
+			synchronized (this) {
+				if (finished || dataHandler==null) return false;
+				calls.add(call);
+				call.ioRequest=this;
+				return true;
+			}
+		}
+		
+		/**
+		 * Recompute the priority as the most urgent of all attached calls
+		 * and reorder the queue if it changed
+		 */
+		public void updatePriority() {
+			int newPriority=Integer.MAX_VALUE;
+			synchronized (this) {
+				if (finished || calls.isEmpty()) return;
+				for (int i=0; i<calls.size(); i++) {
+					int p=calls.get(i).priority;
+					if (p<newPriority) newPriority=p;
+				}
+			}
+			queue.reprioritize(this, newPriority);
+		}
+		
+		/**
+		 * Detach a call.  If it was the last one, cancel the io.
+		 * @param call
+		 */
+		public void detach(IOCall call) {
+			HostProfile profile;
+			synchronized (this) {
+				if (!calls.remove(call) || !calls.isEmpty()) return;
+				this.dataHandler=null;
+				if (interaction!=null) interaction.cancelled=true;
+				profile=activeProfile;
+				activeProfile=null;
+			}
+			if (profile!=null) profile.requestAbandoned();
+			removeFlight(this);
+			queue.remove(this);
+			LoaderMetrics.HostStats stats=queue.getStats();
+			if (stats!=null) stats.cancelled();
+		}
+		
+		/**
+		 * @return encoded path and query to request
+		 */
+		String getPath() {
+			if (path==null) {
+				String encoded=uri.getEncodedPath();
+				String query=uri.getEncodedQuery();
+				path=query!=null ? encoded + '?' + query : encoded;
+			}
+			return path;
+		}
+		
+		/**
+		 * @return validators to send if the DataHandler wants a conditional request
+		 */
+		public Validators getRequestValidators() {
+			DataHandler localDataHandler;
+			synchronized (this) {
+				localDataHandler=dataHandler;
+			}
+			if (localDataHandler instanceof ValidatingDataHandler) {
+				Validators validators=((ValidatingDataHandler)localDataHandler).getRequestValidators();
+				if (validators!=null && validators.isConditional()) return validators;
+			}
+			return null;
+		}
+		
+		/**
+		 * Link the interaction carrying this request so that cancellation
+		 * reaches the HttpAgent
+		 * @param interaction
+		 */
+		public void setInteraction(HttpInteraction interaction) {
+			synchronized (this) {
+				this.interaction=interaction;
+				if (dataHandler==null) interaction.cancelled=true;
+			}
+		}
+		
+		/**
+		 * @return true if every caller has cancelled
+		 */
+		public boolean isCancelled() {
+			synchronized (this) {
+				return dataHandler==null;
+			}
+		}
+		
+		public void processStream(InputStream input, int expectedLength, Validators responseValidators) {
+			DataHandler localDataHandler;
+			Object result;
+			synchronized (this) {
+				localDataHandler=dataHandler;
+			}
+			
+			if (localDataHandler==null) result=null;
+			else if (localDataHandler instanceof ValidatingDataHandler) {
+				result=((ValidatingDataHandler)localDataHandler).transformValidatedResult(input, expectedLength, responseValidators);
+			} else {
+				result=localDataHandler.transformResult(input, expectedLength);
+			}
+			
+			finishWithResult(result);
+		}
+		
+		/**
+		 * The server said the caller's copy is current
+		 * @param responseValidators
+		 */
+		public void processNotModified(Validators responseValidators) {
+			DataHandler localDataHandler;
+			Object result=null;
+			synchronized (this) {
+				localDataHandler=dataHandler;
+			}
+			
+			if (localDataHandler instanceof ValidatingDataHandler) {
+				result=((ValidatingDataHandler)localDataHandler).transformNotModified(responseValidators);
+			}
+			
+			finishWithResult(result);
+		}
+		
+		private void finishWithResult(Object result) {
+			if (result==null) {
+				Log.e(Constants.LOG_TAG, "No decoded results for " + uri);
+				finish(true, false, null);
+			} else {
+				finish(true, true, result);
+			}
+		}
+		
+		/**
+		 * Count the request as outstanding against the host the first time
+		 * it is taken (not again when retried)
+		 * @param profile
+		 */
+		void started(HostProfile profile) {
+			synchronized (this) {
+				if (activeProfile!=null || finished || dataHandler==null) return;
+				activeProfile=profile;
+			}
+			profile.requestStarted();
+		}
+		
+		public void finish(boolean complete, boolean loaded, Object results) {
+			IOCall[] localCalls;
+			HostProfile profile;
+			synchronized (this) {
+				if (finished) return;	// Dispatch once
+				finished=true;
+				localCalls=calls.toArray(new IOCall[calls.size()]);
+				calls.clear();
+				profile=activeProfile;
+				activeProfile=null;
+			}
+			if (trace!=null) trace.stamp(LoadTracer.DECODED);
+			removeFlight(this);
+			LoaderMetrics.HostStats stats=queue.getStats();
+			if (stats!=null) stats.completed(loaded);
+			if (profile!=null) profile.recordResult(!transportFailed, queue.size()>0);
+			
+			long runTime=SystemClock.uptimeMillis() - startTime;
+			Log.d(Constants.LOG_TAG, "Finished request to " + uri + " (loaded=" + loaded + ", callers=" + localCalls.length + ") in " + runTime + "ms");
+			
+			for (int i=0; i<localCalls.length; i++) {
+				localCalls[i].finish(complete, loaded, results);
+			}
+		}
+	}
+	
+	/**
+	 * The Request handed back to a caller of loadResource.  Bound to the
+	 * caller's looper.
+	 */
+	class IOCall implements ResourceLoader.Request, LoadTracer.Traced {
+		Looper originatingLooper;
+		IORequest ioRequest;
 		Callback callback;
+		int priority=PRIORITY_DEFAULT;
 		boolean complete;
 		boolean loaded;
 		Object results;
@@ -394,31 +1316,30 @@ public class DefaultResourceLoader extends ResourceLoader {
 			return loaded;
 		}
 		
+		@Override
+		public LoadTracer.Trace getTrace() {
+			return ioRequest.trace;
+		}
+		
 		@Override
 		public void cancel() {
 			synchronized (this) {
+				if (callback==null) return;
 				this.callback=null;
-				this.dataHandler=null;
 			}
-			queue.remove(this);
+			ioRequest.detach(this);
 		}
 		
-		public void processStream(IOWorker context, InputStream input, int expectedLength) throws IOException {
-			DataHandler localDataHandler;
-			Object result;
-			synchronized (this) {
-				localDataHandler=dataHandler;
-			}
-			
-			if (localDataHandler==null) result=null;
-			else result=localDataHandler.transformResult(input, expectedLength);
-			
-			if (result==null) {
-				Log.e(Constants.LOG_TAG, "No decoded results for " + uri);
-				finish(true, false, null);
-			} else {
-				finish(true, true, result);
-			}
+		@Override
+		public int getPriority() {
+			return priority;
+		}
+		
+		@Override
+		public void setPriority(int priority) {
+			if (priority==this.priority) return;
+			this.priority=priority;
+			ioRequest.updatePriority();
 		}
 		
 		public void finish(boolean complete, boolean loaded, Object results) {
@@ -432,52 +1353,185 @@ public class DefaultResourceLoader extends ResourceLoader {
 				this.callback=null;
 			}			
 			
-			long runTime=SystemClock.uptimeMillis() - startTime;
-			Log.d(Constants.LOG_TAG, "Finished request to " + uri + " (loaded=" + loaded + ") in " + runTime + "ms");
-			
-			if (localCallback!=null) {
-				new Handler(originatingLooper).post(new Runnable() {
-					public void run() {
-						localCallback.onComplete(IORequest.this);
+			CompletionMailbox.forLooper(originatingLooper).post(new Runnable() {
+				public void run() {
+					LoadTracer.Trace trace=ioRequest.trace;
+					if (trace==null) {
+						localCallback.onComplete(IOCall.this);
+						return;
 					}
-				});
+					trace.stamp(LoadTracer.DELIVERED);
+					localCallback.onComplete(IOCall.this);
+					trace.delivered();
+				}
+			});
+		}
+	}
+	
+	Map<FlightKey, IORequest> flights=new HashMap<FlightKey, IORequest>();
+	
+	void removeFlight(IORequest request) {
+		synchronized (flights) {
+			if (flights.get(request.flightKey)==request) {
+				flights.remove(request.flightKey);
 			}
 		}
 	}
 	
+	/**
+	 * Loader with its own queues running workers on the given executor and
+	 * http requests over the given transport.  The executor must run each
+	 * task on its own thread (not the caller's): workers block on io and
+	 * park between requests for the idle linger before returning.
+	 * @param workerExecutor executor or null for a new thread per worker
+	 * @param httpTransport transport or null for HttpAgent.DEFAULT_TRANSPORT
+	 */
+	public DefaultResourceLoader(Executor workerExecutor, HttpTransport httpTransport) {
+		this.workerExecutor=workerExecutor!=null ? workerExecutor : THREAD_PER_WORKER;
+		this.httpTransport=httpTransport!=null ? httpTransport : HttpAgent.DEFAULT_TRANSPORT;
+	}
+	
 	private DefaultResourceLoader() {
+		this(null, null);
 	}
 	
-	public HttpRequest httpRequestFromUri(Uri uri) {
-		String path=uri.getEncodedPath();
-		String query=uri.getEncodedQuery();
-		if (query!=null) path=path + '?' + query;
-		BasicHttpRequest bhr=new BasicHttpRequest("GET", path);
-		String hostHeader=uri.getHost();
-		if (uri.getPort()>0) hostHeader=hostHeader + ':' + uri.getPort();
-		bhr.addHeader("Host", uri.getHost());
-		bhr.addHeader("User-Agent", "nanomaps-droid");
-		
-		return bhr;
+	static Validators validatorsFromResponse(HttpResponse response) {
+		return Validators.fromHeaders(
+				headerValue(response, "ETag"),
+				headerValue(response, "Last-Modified"),
+				headerValue(response, "Cache-Control"),
+				headerValue(response, "Expires"),
+				System.currentTimeMillis());
 	}
-
+	
+	private static String headerValue(HttpResponse response, String name) {
+		Header header=response.getFirstHeader(name);
+		return header!=null ? header.getValue() : null;
+	}
+	
+	/**
+	 * Open connections to the uri's host ahead of need.  With the
+	 * non-blocking transport only the address is resolved.
+	 */
+	@Override
+	public void preconnect(Uri uri) {
+		if (!isHttp(uri) || uri.getHost()==null) return;
+		boolean secure="https".equals(uri.getScheme());
+		if (isNonBlockingTransport() && !secure) {
+			connectionPool.prefetchAddress(uri.getHost());
+			return;
+		}
+		HostProfile profile=getHostProfile(uri.getHost(), uri.getPort()>0 ? uri.getPort() : (secure ? 443 : 80), secure);
+		connectionPool.preconnect(profile.getHost(), profile.getPort(), secure, profile.getWorkers());
+	}
+	
 	@Override
 	public Request loadResource(Uri uri, DataHandler dataHandler,
 			Callback callback) {
-		IORequest request=new IORequest();
-		request.originatingLooper=Looper.myLooper();
-		request.dataHandler=dataHandler;
-		request.callback=callback;
-		request.uri=uri;
+		IOCall call=new IOCall();
+		call.originatingLooper=Looper.myLooper();
+		call.callback=callback;
 		
-		if (request.pipelineable && "http".equals(uri.getScheme())) {
-			request.queue=getHttpQueue(uri);
-		} else {
-			request.queue=getQueue("default", DEFAULT_WORKERS_PER_QUEUE, DEFAULT_IDLE_LINGER);
+		IOQueue queue=queueFor(uri);
+		IORequest request;
+		synchronized (flights) {
+			request=attachCall(call, uri, dataHandler, queue);
 		}
+		if (request!=null) queue.add(request);
 		
-		request.queue.add(request);
+		return call;
+	}
+	
+	/**
+	 * Submits the batch with one pass over the flight table and one add
+	 * (and wakeup) per queue.  Each request is queued at its entry's
+	 * priority so nothing needs to be reordered afterwards.
+	 */
+	@Override
+	public void loadResources(List<BatchEntry> entries) {
+		Looper looper=Looper.myLooper();
+		int count=entries.size();
+		Uri[] uris=new Uri[count];
+		IOQueue[] entryQueues=new IOQueue[count];
+		Map<String, IOQueue> queueCache=new HashMap<String, IOQueue>();
+		for (int i=0; i<count; i++) {
+			uris[i]=Uri.parse(entries.get(i).uri.toString());
+			String queueName=uris[i].getScheme() + ':' + uris[i].getAuthority();
+			IOQueue queue=queueCache.get(queueName);
+			if (queue==null) {
+				queue=queueFor(uris[i]);
+				queueCache.put(queueName, queue);
+			}
+			entryQueues[i]=queue;
+		}
+		
+		Map<IOQueue, ArrayList<IORequest>> added=new HashMap<IOQueue, ArrayList<IORequest>>();
+		synchronized (flights) {
+			for (int i=0; i<count; i++) {
+				BatchEntry entry=entries.get(i);
+				IOCall call=new IOCall();
+				call.originatingLooper=looper;
+				call.callback=entry.callback;
+				call.priority=entry.priority;
+				entry.request=call;
+				
+				IORequest request=attachCall(call, uris[i], entry.dataHandler, entryQueues[i]);
+				if (request==null) continue;	// Joined one in flight
+				request.requestedPriority=entry.priority;
+				ArrayList<IORequest> list=added.get(request.queue);
+				if (list==null) {
+					list=new ArrayList<IORequest>();
+					added.put(request.queue, list);
+				}
+				list.add(request);
+			}
+		}
 		
+		for (Map.Entry<IOQueue, ArrayList<IORequest>> e: added.entrySet()) {
+			e.getKey().addAll(e.getValue());
+		}
+	}
+	
+	/**
+	 * @param uri
+	 * @return true if the uri is loaded through a pipelined http queue
+	 */
+	static boolean isHttp(Uri uri) {
+		String scheme=uri.getScheme();
+		return "http".equals(scheme) || "https".equals(scheme);
+	}
+	
+	IOQueue queueFor(Uri uri) {
+		if (isHttp(uri)) {
+			return getHttpQueue(uri);
+		} else {
+			return getQueue("default", DEFAULT_WORKERS_PER_QUEUE, idleLinger);
+		}
+	}
+	
+	/**
+	 * Attach a call to an identical request in flight or create a new one.
+	 * Must hold the flights lock.
+	 * @return the new request, which the caller must queue, or null if the
+	 * call joined an existing one
+	 */
+	private IORequest attachCall(IOCall call, Uri uri, DataHandler dataHandler, IOQueue queue) {
+		FlightKey flightKey=new FlightKey(uri.toString(), dataHandler);
+		IORequest request=flights.get(flightKey);
+		if (request!=null && request.attach(call)) {
+			request.updatePriority();
+			return null;
+		}
+		
+		request=new IORequest();
+		request.flightKey=flightKey;
+		request.dataHandler=dataHandler;
+		request.uri=uri;
+		request.queue=queue;
+		LoadTracer localTracer=tracer;
+		if (localTracer!=null) request.trace=localTracer.start(flightKey.uri);
+		request.attach(call);
+		flights.put(flightKey, request);
 		return request;
 	}
 
@@ -0,0 +1,722 @@
+package net.rcode.nanomaps.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.rcode.nanomaps.util.Constants;
+
+import android.util.Log;
+
+/**
+ * Stores raw resource bytes in a directory under a fixed byte budget.
+ * Entries are tracked by an append-only journal so that opening the cache
+ * normally only reads the journal and does not scan the directory.  When the budget
+ * is exceeded, least recently used entries are evicted.
+ * <p>
+ * The journal is a text file with one operation per line:
+ * <ul>
+ * <li>CLEAN hash size [expires etag lastModified] - An entry was written or its
+ * validators were refreshed.  Validators are url encoded with "-" for none.
+ * <li>READ hash - An entry was accessed (moves it to most recently used)
+ * <li>REMOVE hash - An entry was deleted
+ * </ul>
+ * Replaying the journal in order reconstructs both the index and the
+ * access order.  When the journal accumulates too many redundant lines,
+ * it is rewritten from the in-memory index.  Lines that cannot be parsed
+ * (ie. torn by a crash mid-write) are skipped, and the directory is then
+ * swept once to delete files the index does not know about.
+ * <p>
+ * All methods may be called from any thread.  The in-memory index has its
+ * own lock that is never held during file io, so lookups like
+ * getValidators() and contains() do not wait behind disk reads or writes.
+ * Changes to entry files are serialized by a separate write lock.  Journal
+ * lines are queued in index order while the index lock is held and
+ * appended afterwards under the journal lock.
+ *
+ * @author stella
+ *
+ */
+public class DiskCache {
+	static final String JOURNAL_NAME="journal";
+	static final String JOURNAL_TMP_NAME="journal.tmp";
+	static final String OP_CLEAN="CLEAN";
+	static final String OP_READ="READ";
+	static final String OP_REMOVE="REMOVE";
+	static final int COMPACT_THRESHOLD=2000;
+
+	static class Entry {
+		public String hash;
+		public long size;
+		public long expires;
+		public String etag;
+		public String lastModified;
+	}
+
+	private File directory;
+
+	/*
+	 * Index.  Guarded by this.
+	 */
+	private long maxBytes;
+	private long size;
+	private int redundantOps;
+	private LinkedHashMap<String, Entry> entries=new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	private ArrayList<String> pendingOps=new ArrayList<String>();
+
+	/**
+	 * Serializes renames and deletes of entry files with the matching index
+	 * change.  Taken before this, never while holding it.
+	 */
+	private final Object writeLock=new Object();
+
+	/**
+	 * Guards the journal file.  Taken before this, never while holding it.
+	 */
+	private final Object journalLock=new Object();
+	private Writer journal;
+
+	public DiskCache(File directory, long maxBytes) {
+		this.directory=directory;
+		this.maxBytes=maxBytes;
+	}
+
+	/**
+	 * Open the cache, replaying its journal.  Must be called before any
+	 * other method.  Corrupt journal lines are skipped.  Files the journal
+	 * does not account for (ie. left by a put interrupted by the process
+	 * dying) are deleted.
+	 * @throws IOException
+	 */
+	public void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create cache directory " + directory);
+		}
+
+		synchronized (writeLock) {
+			synchronized (journalLock) {
+				File journalFile=new File(directory, JOURNAL_NAME);
+				synchronized (this) {
+					if (journalFile.exists()) {
+						int badLines;
+						try {
+							badLines=readJournal(journalFile);
+						} catch (IOException e) {
+							Log.e(Constants.LOG_TAG, "Error reading disk cache journal", e);
+							badLines=1;
+						}
+						if (badLines>0) {
+							Log.w(Constants.LOG_TAG, "Skipped " + badLines + " corrupt disk cache journal lines");
+						}
+					}
+					sweepDirectory();
+				}
+
+				// Always start with a compact journal
+				rebuildJournal();
+			}
+			trimToSize();
+		}
+		flushJournal();
+	}
+
+	/**
+	 * Close the journal.  The cache can be reopened with open().
+	 */
+	public void close() {
+		flushJournal();
+		synchronized (journalLock) {
+			if (journal!=null) {
+				try {
+					journal.close();
+				} catch (IOException e) {
+					Log.e(Constants.LOG_TAG, "Error closing disk cache journal", e);
+				}
+				journal=null;
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return true if the index contains an entry for the key.  Does not
+	 * touch the disk or update access order.
+	 */
+	public synchronized boolean contains(String key) {
+		return entries.containsKey(hashKey(key));
+	}
+
+	/**
+	 * Read the entry for key fully into memory.
+	 * @param key
+	 * @return contents or null if not present
+	 */
+	public byte[] get(String key) {
+		String hash=hashKey(key);
+		Entry entry;
+		int expectedSize;
+		synchronized (this) {
+			entry=entries.get(hash);
+			if (entry==null) return null;
+			expectedSize=(int)entry.size;
+		}
+
+		File file=entryFile(hash);
+		byte[] contents;
+		try {
+			contents=readFully(file, expectedSize);
+		} catch (IOException e) {
+			// Lost behind our back
+			Log.e(Constants.LOG_TAG, "Error reading disk cache entry " + key, e);
+			removeIfCurrent(entry);
+			return null;
+		}
+
+		synchronized (this) {
+			journalOp(OP_READ, hash);
+		}
+		flushJournal();
+		return contents;
+	}
+
+	/**
+	 * Read the entry for key fully into a pooled array.
+	 * @param key
+	 * @param pool
+	 * @return contents (release() when done) or null if not present
+	 */
+	public BufferInputStream getBody(String key, ByteArrayPool pool) {
+		String hash=hashKey(key);
+		Entry entry;
+		int expectedSize;
+		synchronized (this) {
+			entry=entries.get(hash);
+			if (entry==null) return null;
+			expectedSize=(int)entry.size;
+		}
+
+		BufferInputStream body;
+		try {
+			InputStream in=new FileInputStream(entryFile(hash));
+			try {
+				body=pool.readFully(in, expectedSize);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Lost behind our back
+			Log.e(Constants.LOG_TAG, "Error reading disk cache entry " + key, e);
+			removeIfCurrent(entry);
+			return null;
+		}
+
+		synchronized (this) {
+			journalOp(OP_READ, hash);
+		}
+		flushJournal();
+		return body;
+	}
+
+	/**
+	 * Get the validators stored with an entry.  Counts as an access for
+	 * eviction order but is not journaled.
+	 * @param key
+	 * @return a copy of the validators or null if no entry
+	 */
+	public synchronized Validators getValidators(String key) {
+		Entry entry=entries.get(hashKey(key));
+		if (entry==null) return null;
+		return new Validators(entry.etag, entry.lastModified, entry.expires);
+	}
+
+	/**
+	 * Replace the validators for an existing entry (ie. after a 304 response)
+	 * @param key
+	 * @param validators
+	 */
+	public void updateValidators(String key, Validators validators) {
+		synchronized (this) {
+			Entry entry=entries.get(hashKey(key));
+			if (entry==null) return;
+			setValidators(entry, validators);
+			redundantOps++;
+			journalEntry(entry);
+		}
+		flushJournal();
+	}
+
+	/**
+	 * Store an entry without validators
+	 * @see #put(String, byte[], int, int, Validators)
+	 */
+	public void put(String key, byte[] data, int offset, int length) {
+		put(key, data, offset, length, null);
+	}
+
+	/**
+	 * Store an entry, replacing any existing entry for the key and evicting
+	 * least recently used entries if over budget.
+	 * @param key
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param validators may be null
+	 */
+	public void put(String key, byte[] data, int offset, int length, Validators validators) {
+		if (length>getMaxBytes()) return;
+
+		String hash=hashKey(key);
+		File file=entryFile(hash);
+		File tmpFile=null;
+		try {
+			// Written without any lock.  Concurrent puts get their own file.
+			tmpFile=File.createTempFile(hash, ".tmp", directory);
+			FileOutputStream out=new FileOutputStream(tmpFile);
+			try {
+				out.write(data, offset, length);
+			} finally {
+				out.close();
+			}
+			
+			synchronized (writeLock) {
+				if (!tmpFile.renameTo(file)) {
+					throw new IOException("Could not rename " + tmpFile + " to " + file);
+				}
+				synchronized (this) {
+					Entry entry=entries.get(hash);
+					if (entry==null) {
+						entry=new Entry();
+						entry.hash=hash;
+						entries.put(hash, entry);
+					} else {
+						size-=entry.size;
+						redundantOps++;
+					}
+					entry.size=length;
+					size+=length;
+					setValidators(entry, validators);
+					journalEntry(entry);
+				}
+				trimToSize();
+			}
+		} catch (IOException e) {
+			Log.e(Constants.LOG_TAG, "Error writing disk cache entry " + key, e);
+			if (tmpFile!=null) tmpFile.delete();
+		}
+		flushJournal();
+	}
+
+	/**
+	 * Remove the entry for the key if present
+	 * @param key
+	 */
+	public void remove(String key) {
+		synchronized (writeLock) {
+			Entry entry;
+			synchronized (this) {
+				entry=entries.get(hashKey(key));
+			}
+			if (entry!=null) removeEntry(entry);
+		}
+		flushJournal();
+	}
+
+	/**
+	 * @return total bytes of all entries
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		synchronized (writeLock) {
+			synchronized (this) {
+				this.maxBytes=maxBytes;
+			}
+			trimToSize();
+		}
+		flushJournal();
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Remove an entry from the index and delete its file.  Must hold the
+	 * write lock.
+	 */
+	private void removeEntry(Entry entry) {
+		synchronized (this) {
+			if (entries.get(entry.hash)!=entry) return;
+			entries.remove(entry.hash);
+			size-=entry.size;
+			journalOp(OP_REMOVE, entry.hash);
+		}
+		entryFile(entry.hash).delete();
+	}
+
+	/**
+	 * Remove an entry whose file could not be read unless it has been
+	 * replaced since
+	 */
+	private void removeIfCurrent(Entry entry) {
+		synchronized (writeLock) {
+			removeEntry(entry);
+		}
+		flushJournal();
+	}
+
+	/**
+	 * Evict least recently used entries until under budget.  Must hold the
+	 * write lock.
+	 */
+	private void trimToSize() {
+		// Collect first so we don't disturb the iterator
+		ArrayList<Entry> evict=new ArrayList<Entry>();
+		synchronized (this) {
+			if (size<=maxBytes) return;
+			long remaining=size;
+			Iterator<Entry> iter=entries.values().iterator();
+			while (remaining>maxBytes && iter.hasNext()) {
+				Entry entry=iter.next();
+				evict.add(entry);
+				remaining-=entry.size;
+			}
+		}
+
+		for (int i=0; i<evict.size(); i++) {
+			removeEntry(evict.get(i));
+		}
+	}
+
+	private static void setValidators(Entry entry, Validators validators) {
+		if (validators==null) {
+			entry.expires=0;
+			entry.etag=null;
+			entry.lastModified=null;
+		} else {
+			entry.expires=validators.expires;
+			entry.etag=validators.etag;
+			entry.lastModified=validators.lastModified;
+		}
+	}
+
+	/**
+	 * Queue a CLEAN line for the entry.  Must hold this.
+	 */
+	private void journalEntry(Entry entry) {
+		pendingOps.add(entryLine(entry));
+	}
+
+	private static String entryLine(Entry entry) {
+		StringBuilder sb=new StringBuilder(64);
+		sb.append(OP_CLEAN).append(' ').append(entry.hash).append(' ').append(entry.size);
+		if (entry.expires!=0 || entry.etag!=null || entry.lastModified!=null) {
+			sb.append(' ').append(entry.expires);
+			sb.append(' ').append(encodeField(entry.etag));
+			sb.append(' ').append(encodeField(entry.lastModified));
+		}
+		sb.append('\n');
+		return sb.toString();
+	}
+
+	private static String encodeField(String value) {
+		if (value==null) return "-";
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String decodeField(String value) {
+		if ("-".equals(value)) return null;
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Queue a READ or REMOVE line.  Must hold this.
+	 */
+	private void journalOp(String op, String hash) {
+		redundantOps++;
+		pendingOps.add(op + ' ' + hash + '\n');
+	}
+
+	/**
+	 * Append queued journal lines, compacting if the journal has grown too
+	 * redundant.  Must not hold this.
+	 */
+	private void flushJournal() {
+		synchronized (journalLock) {
+			String[] lines;
+			boolean compact;
+			synchronized (this) {
+				if (pendingOps.isEmpty()) return;
+				lines=pendingOps.toArray(new String[pendingOps.size()]);
+				pendingOps.clear();
+				compact=redundantOps>=COMPACT_THRESHOLD && redundantOps>=entries.size();
+			}
+
+			if (compact) {
+				// The rewrite includes everything queued
+				try {
+					rebuildJournal();
+				} catch (IOException e) {
+					Log.e(Constants.LOG_TAG, "Error compacting disk cache journal", e);
+				}
+				return;
+			}
+
+			if (journal==null) return;
+			try {
+				for (int i=0; i<lines.length; i++) {
+					journal.write(lines[i]);
+				}
+				journal.flush();
+			} catch (IOException e) {
+				Log.e(Constants.LOG_TAG, "Error writing disk cache journal", e);
+			}
+		}
+	}
+
+	/**
+	 * Replay the journal into the index, skipping lines that do not parse.
+	 * Must hold this.
+	 * @return number of lines skipped
+	 */
+	private int readJournal(File journalFile) throws IOException {
+		int badLines=0;
+		BufferedReader in=new BufferedReader(new FileReader(journalFile), 8192);
+		try {
+			String line;
+			while ((line=in.readLine())!=null) {
+				if (!replayLine(line)) {
+					Log.w(Constants.LOG_TAG, "Bad disk cache journal line: " + line);
+					badLines++;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return badLines;
+	}
+
+	/**
+	 * Apply one journal line to the index.  Must hold this.
+	 * @return false if the line is malformed, in which case the index is
+	 * unchanged
+	 */
+	private boolean replayLine(String line) {
+		String[] parts=line.split(" ");
+		if (parts.length<2) return false;
+		String op=parts[0];
+		String hash=parts[1];
+		if (!isHash(hash)) return false;
+
+		if (OP_CLEAN.equals(op)) {
+			if (parts.length!=3 && parts.length!=6) return false;
+			long entrySize;
+			long expires=0;
+			String etag=null, lastModified=null;
+			try {
+				entrySize=Long.parseLong(parts[2]);
+				if (parts.length==6) {
+					expires=Long.parseLong(parts[3]);
+					etag=decodeField(parts[4]);
+					lastModified=decodeField(parts[5]);
+				}
+			} catch (IllegalArgumentException e) {
+				// Includes NumberFormatException
+				return false;
+			}
+			if (entrySize<0) return false;
+
+			Entry entry=entries.get(hash);
+			if (entry==null) {
+				entry=new Entry();
+				entry.hash=hash;
+				entries.put(hash, entry);
+			} else {
+				size-=entry.size;
+			}
+			entry.size=entrySize;
+			entry.expires=expires;
+			entry.etag=etag;
+			entry.lastModified=lastModified;
+			size+=entrySize;
+		} else if (OP_READ.equals(op)) {
+			if (parts.length!=2) return false;
+			// Access moves to the end in access order
+			entries.get(hash);
+		} else if (OP_REMOVE.equals(op)) {
+			if (parts.length!=2) return false;
+			Entry entry=entries.remove(hash);
+			if (entry!=null) size-=entry.size;
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reconcile the index with the directory: delete entry files with no
+	 * entry and abandoned temp files, and drop entries whose file is missing
+	 * or the wrong size.  Other files are left alone.  Must hold this.
+	 */
+	private void sweepDirectory() {
+		File[] files=directory.listFiles();
+		if (files==null) return;
+
+		// Look entries up by iterating rather than get() so the access
+		// order is left alone
+		HashMap<String, File> unindexed=new HashMap<String, File>();
+		for (int i=0; i<files.length; i++) {
+			File file=files[i];
+			String name=file.getName();
+			if (JOURNAL_NAME.equals(name) || JOURNAL_TMP_NAME.equals(name) || !file.isFile()) continue;
+			unindexed.put(name, file);
+		}
+
+		Iterator<Entry> iter=entries.values().iterator();
+		while (iter.hasNext()) {
+			Entry entry=iter.next();
+			File file=unindexed.get(entry.hash);
+			if (file!=null && file.length()==entry.size) {
+				unindexed.remove(entry.hash);
+			} else {
+				iter.remove();
+				size-=entry.size;
+			}
+		}
+
+		for (Map.Entry<String, File> file: unindexed.entrySet()) {
+			String name=file.getKey();
+			if (isHash(name) || name.endsWith(".tmp")) file.getValue().delete();
+		}
+	}
+
+	private static boolean isHash(String s) {
+		if (s.length()!=32) return false;
+		for (int i=0; i<s.length(); i++) {
+			char c=s.charAt(i);
+			if (!((c>='0' && c<='9') || (c>='a' && c<='f'))) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Rewrite the journal from the index.  Must hold the journal lock and not
+	 * this.
+	 */
+	private void rebuildJournal() throws IOException {
+		if (journal!=null) {
+			journal.close();
+			journal=null;
+		}
+
+		// Iterate in access order so that replay reconstructs it
+		String[] lines;
+		synchronized (this) {
+			lines=new String[entries.size()];
+			int i=0;
+			for (Map.Entry<String, Entry> me: entries.entrySet()) {
+				lines[i++]=entryLine(me.getValue());
+			}
+			pendingOps.clear();
+			redundantOps=0;
+		}
+
+		File journalFile=new File(directory, JOURNAL_NAME);
+		File tmpFile=new File(directory, JOURNAL_TMP_NAME);
+		Writer out=new BufferedWriter(new FileWriter(tmpFile), 8192);
+		try {
+			for (int i=0; i<lines.length; i++) {
+				out.write(lines[i]);
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!tmpFile.renameTo(journalFile)) {
+			throw new IOException("Could not replace journal " + journalFile);
+		}
+		journal=new BufferedWriter(new FileWriter(journalFile, true), 1024);
+	}
+
+	private File entryFile(String hash) {
+		return new File(directory, hash);
+	}
+
+	static byte[] readFully(File file, int expectedLength) throws IOException {
+		InputStream in=new FileInputStream(file);
+		try {
+			return readFully(in, expectedLength);
+		} finally {
+			in.close();
+		}
+	}
+
+	static byte[] readFully(InputStream in, int expectedLength) throws IOException {
+		ByteArrayOutputStream out=new ByteArrayOutputStream(expectedLength>0 ? expectedLength : 8192);
+		byte[] buffer=new byte[4096];
+		int r;
+		while ((r=in.read(buffer))>=0) {
+			out.write(buffer, 0, r);
+		}
+		return out.toByteArray();
+	}
+
+	private static final char[] HEX_DIGITS="0123456789abcdef".toCharArray();
+
+	/**
+	 * Hash a key to a filesystem safe name
+	 * @param key
+	 * @return hex md5 of the key
+	 */
+	static String hashKey(String key) {
+		try {
+			MessageDigest digest=MessageDigest.getInstance("MD5");
+			byte[] hash=digest.digest(key.getBytes("UTF-8"));
+			char[] hex=new char[hash.length*2];
+			for (int i=0; i<hash.length; i++) {
+				hex[i*2]=HEX_DIGITS[(hash[i]>>4) & 0xf];
+				hex[i*2+1]=HEX_DIGITS[hash[i] & 0xf];
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package net.rcode.nanomaps.io;
+
+import android.os.SystemClock;
+
+/**
+ * Per-host knowledge learned while talking to a server.  Profiles are
+ * kept for the life of the process so that a new IOQueue or HttpAgent for
+ * the same host starts with what was learned before.
+ * <p>
+ * The number of connections (workers) and the pipeline depth to use are
+ * tuned by additive-increase/multiplicative-decrease.  Completions are
+ * counted in windows.  Windows in which work was waiting and the error rate
+ * stayed low step one of the values up, alternating between them, as long
+ * as throughput keeps up with the previous window.  A drop in throughput
+ * undoes the last step and a high error rate halves both.  Only transport
+ * failures count as errors (a 404 is the server working) and time with
+ * nothing outstanding is left out of the window.
+ * 
+ * @author stella
+ *
+ */
+public class HostProfile {
+	static final int DEFAULT_WORKERS=3;
+	static final int DEFAULT_MIN_WORKERS=1;
+	static final int DEFAULT_MAX_WORKERS=6;
+	static final int DEFAULT_PIPELINE_DEPTH=7;
+	static final int DEFAULT_MIN_PIPELINE_DEPTH=1;
+	static final int DEFAULT_MAX_PIPELINE_DEPTH=16;
+	
+	/**
+	 * A tuning window closes after this long and this many completions
+	 */
+	static final long TUNE_WINDOW=2000;
+	static final int TUNE_MIN_SAMPLES=8;
+	
+	/**
+	 * Error rate above which both values are halved
+	 */
+	static final float TUNE_ERROR_THRESHOLD=0.1f;
+	
+	/**
+	 * Throughput below this fraction of the previous window undoes the last step
+	 */
+	static final float TUNE_DROP_THRESHOLD=0.9f;
+	
+	/**
+	 * A connection limit is only applied once seen this many times in a row
+	 */
+	static final int LIMIT_CONFIRMATIONS=2;
+	
+	/**
+	 * A learned connection limit is forgotten after this long and relearned,
+	 * since while it applies nothing past it can be seen
+	 */
+	static final long LIMIT_TTL=300000;
+	
+	private static final int STEP_NONE=0;
+	private static final int STEP_DEPTH=1;
+	private static final int STEP_WORKERS=2;
+	
+	private final String host;
+	private final int port;
+	private final boolean secure;
+	private int maxRequestsPerConnection;
+	private long limitLearned;
+	private int limitCandidate;
+	private int limitVotes;
+	private final RequestTemplate requestTemplate;
+	
+	private int workers=DEFAULT_WORKERS;
+	private int minWorkers=DEFAULT_MIN_WORKERS;
+	private int maxWorkers=DEFAULT_MAX_WORKERS;
+	private int pipelineDepth=DEFAULT_PIPELINE_DEPTH;
+	private int minPipelineDepth=DEFAULT_MIN_PIPELINE_DEPTH;
+	private int maxPipelineDepth=DEFAULT_MAX_PIPELINE_DEPTH;
+	
+	private long windowStart=-1;
+	private int active;
+	private long idleSince=-1;
+	private int windowSuccesses;
+	private int windowFailures;
+	private boolean windowBacklogged;
+	private float lastRate;
+	private int lastStep=STEP_NONE;
+	private int nextStep=STEP_DEPTH;
+	
+	public HostProfile(String host, int port) {
+		this(host, port, false);
+	}
+	
+	/**
+	 * @param host
+	 * @param port
+	 * @param secure true to talk https
+	 */
+	public HostProfile(String host, int port, boolean secure) {
+		this.host=host;
+		this.port=port;
+		this.secure=secure;
+		this.requestTemplate=new RequestTemplate(host, port, secure);
+	}
+	
+	/**
+	 * @return preformatted request bytes for this host
+	 */
+	RequestTemplate getRequestTemplate() {
+		return requestTemplate;
+	}
+	
+	public String getHost() {
+		return host;
+	}
+	
+	public int getPort() {
+		return port;
+	}
+	
+	/**
+	 * @return true if connections to the host are over TLS
+	 */
+	public boolean isSecure() {
+		return secure;
+	}
+	
+	/**
+	 * @return the number of requests the server answers on a keep-alive
+	 * connection before closing it or 0 if not known
+	 */
+	public int getMaxRequestsPerConnection() {
+		return getMaxRequestsPerConnection(SystemClock.uptimeMillis());
+	}
+	
+	/**
+	 * getMaxRequestsPerConnection with an explicit clock
+	 * @param now uptime ms
+	 */
+	public synchronized int getMaxRequestsPerConnection(long now) {
+		if (maxRequestsPerConnection>0 && now-limitLearned>=LIMIT_TTL) {
+			// Probe past it again
+			maxRequestsPerConnection=0;
+			limitCandidate=0;
+			limitVotes=0;
+		}
+		return maxRequestsPerConnection;
+	}
+	
+	/**
+	 * Record that the server closed a connection after answering count
+	 * requests while more were outstanding.  The count becomes the limit
+	 * only when it repeats, so that a spurious early drop does not throttle
+	 * the host, and it expires after LIMIT_TTL.
+	 * @param count
+	 */
+	public void observeConnectionLimit(int count) {
+		observeConnectionLimit(count, SystemClock.uptimeMillis());
+	}
+	
+	/**
+	 * observeConnectionLimit with an explicit clock
+	 * @param count
+	 * @param now uptime ms
+	 */
+	public synchronized void observeConnectionLimit(int count, long now) {
+		if (count==limitCandidate) {
+			limitVotes++;
+		} else {
+			limitCandidate=count;
+			limitVotes=1;
+		}
+		if (limitVotes>=LIMIT_CONFIRMATIONS) {
+			maxRequestsPerConnection=count;
+			limitLearned=now;
+		}
+	}
+	
+	/**
+	 * @return number of connections to keep to the host
+	 */
+	public synchronized int getWorkers() {
+		return workers;
+	}
+	
+	/**
+	 * @return number of requests to keep outstanding on each connection
+	 */
+	public synchronized int getPipelineDepth() {
+		return pipelineDepth;
+	}
+	
+	/**
+	 * Set the range the worker count is tuned in.  min==max fixes it.
+	 * @param min
+	 * @param max
+	 */
+	public synchronized void setWorkerBounds(int min, int max) {
+		minWorkers=Math.max(1, min);
+		maxWorkers=Math.max(minWorkers, max);
+		workers=clamp(workers, minWorkers, maxWorkers);
+	}
+	
+	/**
+	 * Set the range the pipeline depth is tuned in.  min==max fixes it.
+	 * @param min
+	 * @param max
+	 */
+	public synchronized void setPipelineDepthBounds(int min, int max) {
+		minPipelineDepth=Math.max(1, min);
+		maxPipelineDepth=Math.max(minPipelineDepth, max);
+		pipelineDepth=clamp(pipelineDepth, minPipelineDepth, maxPipelineDepth);
+	}
+	
+	/**
+	 * A request was taken to be sent to the host.  Each must be followed by
+	 * recordResult() or requestAbandoned().
+	 */
+	public void requestStarted() {
+		requestStarted(SystemClock.uptimeMillis());
+	}
+	
+	/**
+	 * requestStarted with an explicit clock
+	 * @param now uptime ms
+	 */
+	public synchronized void requestStarted(long now) {
+		if (windowStart<0) {
+			windowStart=now;
+		} else if (active==0 && idleSince>=0) {
+			// Leave the idle gap out of the window
+			windowStart+=now-idleSince;
+		}
+		active++;
+	}
+	
+	/**
+	 * A started request was cancelled without a result
+	 */
+	public void requestAbandoned() {
+		requestAbandoned(SystemClock.uptimeMillis());
+	}
+	
+	/**
+	 * requestAbandoned with an explicit clock
+	 * @param now uptime ms
+	 */
+	public synchronized void requestAbandoned(long now) {
+		if (active>0 && --active==0) idleSince=now;
+	}
+	
+	/**
+	 * Record the outcome of a request and retune at the end of a window
+	 * @param success true if the server answered, false for a transport
+	 * failure
+	 * @param backlogged true if other requests were waiting for a
+	 * connection at the time, meaning that throughput was limited by the
+	 * connections rather than by demand
+	 */
+	public void recordResult(boolean success, boolean backlogged) {
+		recordResult(success, backlogged, SystemClock.uptimeMillis());
+	}
+	
+	/**
+	 * recordResult with an explicit clock
+	 * @param success
+	 * @param backlogged
+	 * @param now uptime ms
+	 */
+	public synchronized void recordResult(boolean success, boolean backlogged, long now) {
+		if (windowStart<0) windowStart=now;
+		if (active>0 && --active==0) idleSince=now;
+		if (success) windowSuccesses++;
+		else windowFailures++;
+		if (backlogged) windowBacklogged=true;
+		
+		long elapsed=now-windowStart;
+		if (elapsed<TUNE_WINDOW || windowSuccesses+windowFailures<TUNE_MIN_SAMPLES) return;
+		
+		float rate=windowSuccesses * 1000f / elapsed;
+		float errorRate=(float)windowFailures / (windowSuccesses+windowFailures);
+		
+		if (errorRate>TUNE_ERROR_THRESHOLD) {
+			// Multiplicative decrease
+			workers=clamp(workers/2, minWorkers, maxWorkers);
+			pipelineDepth=clamp(pipelineDepth/2, minPipelineDepth, maxPipelineDepth);
+			lastStep=STEP_NONE;
+		} else if (lastStep!=STEP_NONE && rate<lastRate*TUNE_DROP_THRESHOLD) {
+			// The last step made things worse.  Take it back.
+			if (lastStep==STEP_DEPTH) pipelineDepth=clamp(pipelineDepth-1, minPipelineDepth, maxPipelineDepth);
+			else workers=clamp(workers-1, minWorkers, maxWorkers);
+			lastStep=STEP_NONE;
+		} else if (windowBacklogged) {
+			// Additive increase, alternating between the two
+			lastStep=STEP_NONE;
+			for (int i=0; i<2 && lastStep==STEP_NONE; i++) {
+				if (nextStep==STEP_DEPTH && pipelineDepth<maxPipelineDepth) {
+					pipelineDepth++;
+					lastStep=STEP_DEPTH;
+				} else if (nextStep==STEP_WORKERS && workers<maxWorkers) {
+					workers++;
+					lastStep=STEP_WORKERS;
+				}
+				nextStep=nextStep==STEP_DEPTH ? STEP_WORKERS : STEP_DEPTH;
+			}
+		} else {
+			lastStep=STEP_NONE;
+		}
+		
+		lastRate=rate;
+		windowStart=now;
+		windowSuccesses=0;
+		windowFailures=0;
+		windowBacklogged=false;
+	}
+	
+	private static int clamp(int value, int min, int max) {
+		return value<min ? min : (value>max ? max : value);
+	}
+	
+	@Override
+	public String toString() {
+		return secure ? "https:" + host + ':' + port : host + ':' + port;
+	}
+}
@@ -1,168 +1,509 @@
 package net.rcode.nanomaps.io;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.LinkedList;
 
 import net.rcode.nanomaps.util.Constants;
 
-import org.apache.http.Header;
 import org.apache.http.HttpException;
-import org.apache.http.HttpMessage;
-import org.apache.http.HttpRequest;
-import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolException;
-import org.apache.http.entity.BasicHttpEntity;
-import org.apache.http.impl.DefaultHttpResponseFactory;
-import org.apache.http.impl.io.ChunkedInputStream;
-import org.apache.http.impl.io.ContentLengthInputStream;
-import org.apache.http.impl.io.HttpRequestWriter;
-import org.apache.http.impl.io.HttpResponseParser;
-import org.apache.http.impl.io.SocketInputBuffer;
-import org.apache.http.impl.io.SocketOutputBuffer;
-import org.apache.http.message.BasicLineFormatter;
-import org.apache.http.message.BasicLineParser;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 
 /**
  * An HttpAgent talks to a single http server and pipelines requests to it.
- * TODO: This class started with one design in mind and ended with another.
- * It needs some rework.
+ * <p>
+ * Requests are pipelined as a sliding window: up to pipelineDepth requests
+ * are written ahead of the responses being read.  As each response completes,
+ * the window is refilled from the submitted requests and then from an optional
+ * Source, so the connection never drains to zero while there is work.
+ * <p>
+ * If the connection drops or the server closes it with requests still
+ * unanswered, those requests are put back at the front of the pending list
+ * and sent again on a fresh connection, up to MAX_ATTEMPTS times each.  The
+ * number of requests the server answers per connection is recorded in the
+ * HostProfile and the agent stops writing past it.
+ * <p>
+ * Cancelled interactions are dropped without being written.  If most of
+ * what is in flight has been cancelled (see setAbandonThreshold()), the
+ * connection is abandoned and the rest is sent again on a new one rather
+ * than reading responses nobody wants.
+ * <p>
+ * If the profile is secure, the connection is https.  TLS is set up by
+ * the ConnectionPool, which resumes the previous session when it has to
+ * reconnect, and pipelining works over it the same way.
+ * <p>
+ * This is the default HttpTransport.Agent used by DefaultResourceLoader.
  * 
  * @author stella
  */
-public class HttpAgent {
+public class HttpAgent implements HttpTransport.Agent {
+	/**
+	 * Transport creating an HttpAgent per worker.  The default for
+	 * DefaultResourceLoader.
+	 */
+	public static final HttpTransport DEFAULT_TRANSPORT=new HttpTransport() {
+		@Override
+		public HttpTransport.Agent createAgent(HostProfile profile, ConnectionPool pool) {
+			HttpAgent agent=new HttpAgent(profile);
+			agent.setConnectionPool(pool);
+			return agent;
+		}
+	};
+	
+	/**
+	 * Supplies further interactions as the pipeline window opens up.
+	 * Must not block.
+	 */
+	public interface Source {
+		/**
+		 * @return the next interaction to send or null if none are ready
+		 */
+		public HttpInteraction nextInteraction();
+	}
+	
+	/**
+	 * Maximum times a request will be written before it is failed
+	 */
+	public static final int MAX_ATTEMPTS=3;
+	
+	/**
+	 * Connections are never abandoned with fewer than this many in flight
+	 */
+	static final int ABANDON_MIN_INFLIGHT=3;
+	
+	/**
+	 * Socket buffer sizes.  Large enough for a typical tile in one read.
+	 */
+	static final int BUFFER_SIZE=16384;
+	static final int MAX_HEADER_BUFFER=65536;
+	
 	private String host;
 	private int port;
+	private HostProfile profile;
+	private ConnectionPool pool=ConnectionPool.getDefault();
+	private ConnectionPool.Connection connection;
 	private Socket socket;
+	private int pipelineDepth=1;
+	private LoaderMetrics.HostStats stats;
+	private float abandonThreshold;
+	
+	/**
+	 * Requests written and responses read on the current connection
+	 */
+	private int writtenOnConnection;
+	private int readOnConnection;
+	
+	/**
+	 * readOnConnection when the connection was taken from the pool
+	 */
+	private int readBeforeAcquire;
+	
+	/**
+	 * Set by connect() until the first write so that traces can attribute
+	 * the setup to the request that waited for it
+	 */
+	private boolean justConnected;
 
-	private HttpParams params;
-	private SocketInputBuffer socketIn;
-	private SocketOutputBuffer socketOut;
+	/**
+	 * Buffers reused across connections.  in is kept in drain mode.
+	 */
+	private ByteBuffer in=ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer out=ByteBuffer.allocate(BUFFER_SIZE);
+	private InputStream socketIn;
+	private OutputStream socketOut;
+	private ResponseParser parser=new ResponseParser(ByteArrayPool.getDefault());
 	
+	/**
+	 * Submitted but not yet written
+	 */
 	private LinkedList<HttpInteraction> pending=new LinkedList<HttpInteraction>();
 	
+	/**
+	 * Written and awaiting a response, in order
+	 */
+	private LinkedList<HttpInteraction> inflight=new LinkedList<HttpInteraction>();
+	
 	public HttpAgent(String host, int port) {
-		this.params=new BasicHttpParams();
-		this.host=host;
-		this.port=port;
+		this(new HostProfile(host, port));
+	}
+	
+	public HttpAgent(HostProfile profile) {
+		this.profile=profile;
+		this.host=profile.getHost();
+		this.port=profile.getPort();
+	}
+	
+	public HostProfile getProfile() {
+		return profile;
+	}
+	
+	/**
+	 * Set the pool connections are taken from and returned to
+	 * @param pool
+	 */
+	public void setConnectionPool(ConnectionPool pool) {
+		this.pool=pool;
+	}
+	
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+	
+	/**
+	 * Set the maximum number of requests outstanding on the connection
+	 * @param pipelineDepth
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		this.pipelineDepth=pipelineDepth>0 ? pipelineDepth : 1;
+	}
+	
+	/**
+	 * Record pipeline occupancy and write times for the host
+	 * @param stats stats or null to not record
+	 */
+	public void setStats(LoaderMetrics.HostStats stats) {
+		this.stats=stats;
+	}
+	
+	/**
+	 * Abandon the connection when at least this fraction of the requests in
+	 * flight (and at least ABANDON_MIN_INFLIGHT of them) have been cancelled.
+	 * @param abandonThreshold fraction or 0 to always read every response
+	 */
+	public void setAbandonThreshold(float abandonThreshold) {
+		this.abandonThreshold=abandonThreshold;
 	}
 	
 	public void failAll(Throwable t) {
-		while (!pending.isEmpty()) {
-			HttpInteraction hi=pending.removeFirst();
-			hi.httpResponse=null;
-			hi.exception=t;
-			try {
-				hi.callback.handleHttpResponse(hi);
-			} catch (Throwable th) {
-				Log.e(Constants.LOG_TAG, "Recursive error handling error.  Not much to do about it but ignore.", th);
-			}
+		// Fail in submission order
+		inflight.addAll(pending);
+		pending.clear();
+		while (!inflight.isEmpty()) {
+			fail(inflight.removeFirst(), t);
+		}
+	}
+	
+	private void fail(HttpInteraction hi, Throwable t) {
+		hi.httpResponse=null;
+		hi.statusCode=0;
+		hi.body=null;
+		hi.exception=t;
+		try {
+			hi.callback.handleHttpResponse(hi);
+		} catch (Throwable th) {
+			Log.e(Constants.LOG_TAG, "Recursive error handling error.  Not much to do about it but ignore.", th);
 		}
 	}
 	
+	/**
+	 * @return number of requests submitted or in flight without a response
+	 */
 	public int getPendingCount() {
-		return pending.size();
+		return pending.size() + inflight.size();
+	}
+	
+	/**
+	 * @return number of requests written to the connection without a response
+	 */
+	public int getInflightCount() {
+		return inflight.size();
 	}
 
 	public void shutdown() {
+		if (connection!=null) connection.close();
+		detach();
+		
+		// Anything written to the old connection must be sent again
+		if (!inflight.isEmpty()) {
+			pending.addAll(0, inflight);
+			inflight.clear();
+		}
+	}
+	
+	/**
+	 * Give the connection back to the pool if it is clean and reusable,
+	 * otherwise close it.  Called when there is nothing left to do so that
+	 * the connection outlives the worker.
+	 */
+	public void releaseConnection() {
+		if (connection==null) return;
+		if (!inflight.isEmpty()) {
+			shutdown();
+			return;
+		}
+		
+		int limit=profile.getMaxRequestsPerConnection();
+		connection.requests=writtenOnConnection;
+		if (limit>0 && writtenOnConnection>=limit) connection.close();
+		else pool.release(connection);
+		detach();
+	}
+	
+	private void detach() {
 		socketIn=null;
 		socketOut=null;
-		if (socket!=null) {
-			try {
-				socket.close();
-			} catch (IOException e) {
-				Log.e(Constants.LOG_TAG, "Error closing socket", e);
+		parser.reset();
+		in.clear();
+		in.flip();
+		out.clear();
+		connection=null;
+		socket=null;
+		writtenOnConnection=0;
+		readOnConnection=0;
+		readBeforeAcquire=0;
+	}
+	
+	/**
+	 * The connection was lost with requests outstanding.  Learn from it,
+	 * close it and fail anything that has been tried too many times.
+	 * The rest will go out on the next connection.
+	 * @param cause
+	 */
+	private void connectionLost(IOException cause) {
+		// A pooled connection that fails before answering anything most likely
+		// timed out while idle, which says nothing about the server's limit
+		if (readOnConnection>readBeforeAcquire && !inflight.isEmpty()) {
+			profile.observeConnectionLimit(readOnConnection);
+		}
+		shutdown();
+		
+		Iterator<HttpInteraction> iter=pending.iterator();
+		while (iter.hasNext()) {
+			HttpInteraction hi=iter.next();
+			if (hi.attempts>=MAX_ATTEMPTS) {
+				iter.remove();
+				fail(hi, cause);
 			}
 		}
-		socket=null;
 	}
 	
 	public void submit(HttpInteraction interaction) {
 		pending.add(interaction);
 	}
 	
-	public void doIO() throws IOException, HttpException {
-		if (socket==null) {
-			Log.d(Constants.LOG_TAG, "Establishing http connection to " + host + ":" + port);
-			socket=new Socket(host, port);
-			socket.setSoLinger(false, 0);
-			socket.setSoTimeout(30000);
-			socketIn=new SocketInputBuffer(socket, 1500, params);
-			socketOut=new SocketOutputBuffer(socket, 1500, params);
+	private void connect() throws IOException {
+		connection=pool.acquire(host, port, profile.isSecure());
+		socket=connection.socket;
+		writtenOnConnection=connection.requests;
+		readOnConnection=connection.requests;
+		readBeforeAcquire=connection.requests;
+		justConnected=true;
+		socketIn=socket.getInputStream();
+		socketOut=socket.getOutputStream();
+		parser.reset();
+		in.clear();
+		in.flip();
+		out.clear();
+	}
+	
+	/**
+	 * Encode a request into the output buffer
+	 * @param interaction
+	 */
+	private void writeRequest(HttpInteraction interaction) {
+		byte[] encoded=null;
+		int length;
+		if (interaction.template!=null) {
+			length=interaction.template.length(interaction.path, interaction.requestValidators);
+		} else {
+			encoded=RequestTemplate.encode(interaction.httpRequest);
+			length=encoded.length;
 		}
 		
-		// Write all pending requests
-		HttpRequestWriter requestWriter=new HttpRequestWriter(socketOut, new BasicLineFormatter(), params);
-		for (HttpInteraction interaction: pending) {
-			HttpRequest request=interaction.httpRequest;
-			requestWriter.write(request);
+		if (out.remaining()<length) {
+			ByteBuffer larger=ByteBuffer.allocate(Math.max(out.capacity()*2, out.position()+length));
+			out.flip();
+			larger.put(out);
+			out=larger;
 		}
+		if (encoded!=null) out.put(encoded);
+		else interaction.template.write(out, interaction.path, interaction.requestValidators);
+	}
+	
+	private void flush() throws IOException {
+		socketOut.write(out.array(), 0, out.position());
 		socketOut.flush();
-		
-		// Now loop through reading responses and dispatching
-		HttpResponseParser responseParser=new HttpResponseParser(socketIn, new BasicLineParser(), new DefaultHttpResponseFactory(), params);
-		while (!pending.isEmpty()) {
-			HttpInteraction next=pending.getFirst();
-			HttpMessage message=responseParser.parse();
-			next.httpResponse=(HttpResponse) message;
-			
-			BasicHttpEntity entity=new BasicHttpEntity();
-			boolean hasBody=false;
-			
-			Header header=message.getFirstHeader("Content-Encoding");
-			if (header!=null) {
-				entity.setContentEncoding(header);
-			}
-			
-			header=message.getFirstHeader("Content-Type");
-			if (header!=null) {
-				entity.setContentType(header);
+		out.clear();
+	}
+	
+	/**
+	 * Read more of the response into the input buffer, blocking
+	 */
+	private void fill() throws IOException, HttpException {
+		in.compact();
+		if (!in.hasRemaining()) {
+			// A header line did not fit
+			if (in.capacity()>=MAX_HEADER_BUFFER) {
+				in.flip();
+				throw new ProtocolException("Response header too long");
 			}
+			ByteBuffer larger=ByteBuffer.allocate(in.capacity()*2);
+			in.flip();
+			larger.put(in);
+			in=larger;
+		}
+		int r;
+		try {
+			r=socketIn.read(in.array(), in.position(), in.remaining());
+		} finally {
+			in.flip();
+		}
+		if (r<0) throw new IOException("Connection closed by server");
+		in.limit(in.limit()+r);
+	}
+	
+	/**
+	 * Write requests until the window is full or there are none left.
+	 * @param source optional source of further requests
+	 * @return number written
+	 */
+	private int fillWindow(Source source) throws IOException, HttpException {
+		int count=0;
+		int limit=profile.getMaxRequestsPerConnection();
+		while (inflight.size() < pipelineDepth) {
+			// Don't pipeline past what the server will answer
+			if (limit>0 && writtenOnConnection>=limit) break;
 			
-			header=message.getFirstHeader("Content-Length");
-			if (header!=null) {
-				long length=Long.parseLong(header.getValue());
-				entity.setContentLength(length);
-				entity.setContent(new ContentLengthInputStream(socketIn, length));
-				hasBody=true;
-			}
+			HttpInteraction interaction;
+			if (!pending.isEmpty()) interaction=pending.removeFirst();
+			else if (source!=null) interaction=source.nextInteraction();
+			else interaction=null;
+			if (interaction==null) break;
+			if (interaction.cancelled) continue;
 			
-			header=message.getFirstHeader("Transfer-Encoding");
-			if (header!=null) {
-				if (header.getValue().indexOf("chunked")>=0) {
-					entity.setChunked(true);
-					entity.setContent(new ChunkedInputStream(socketIn));
-					hasBody=true;
+			interaction.attempts++;
+			if (stats!=null) interaction.writeTime=SystemClock.uptimeMillis();
+			inflight.add(interaction);
+			writtenOnConnection++;
+			count++;
+			if (interaction.trace!=null && justConnected) interaction.trace.stamp(LoadTracer.CONNECTED);
+			writeRequest(interaction);
+			if (interaction.trace!=null) interaction.trace.stamp(LoadTracer.WRITTEN);
+		}
+		justConnected=false;
+		if (count>0) {
+			flush();
+			if (stats!=null) stats.occupancy(inflight.size());
+		}
+		return count;
+	}
+	
+	public void doIO() throws IOException, HttpException {
+		doIO(null);
+	}
+	
+	/**
+	 * Service the connection until there are no outstanding requests or the
+	 * server closes it.  As each response is read, the window is refilled
+	 * from pending requests and then from the source.  If the connection is
+	 * lost, unanswered requests are left pending for the next call.
+	 * Exceptions are only thrown for failures that retrying will not fix
+	 * (ie. failure to connect or a protocol error).
+	 * @param source optional source of further requests
+	 */
+	public void doIO(Source source) throws IOException, HttpException {
+		int limit=profile.getMaxRequestsPerConnection();
+		if (socket!=null && limit>0 && writtenOnConnection>=limit) {
+			// The server is going to close this one.  Start fresh.
+			shutdown();
+		}
+		if (socket==null) {
+			connect();
+		}
+		
+		try {
+			pipeline(source);
+		} catch (IOException e) {
+			Log.d(Constants.LOG_TAG, "Connection to " + profile + " lost after " + readOnConnection + " responses with " + inflight.size() + " outstanding: " + e);
+			connectionLost(e);
+		}
+	}
+	
+	private void pipeline(Source source) throws IOException, HttpException {
+		fillWindow(source);
+		while (!inflight.isEmpty()) {
+			HttpInteraction next=inflight.getFirst();
+			boolean stamped=next.trace==null;
+			for (;;) {
+				// Don't buffer bodies nobody wants anymore
+				parser.setDiscard(next.cancelled);
+				boolean complete;
+				try {
+					complete=parser.parse(in);
+				} catch (IOException e) {
+					// Retrying won't fix a malformed response
+					throw new ProtocolException(e.getMessage());
 				}
+				if (!stamped && parser.hasHeaders()) {
+					next.trace.stamp(LoadTracer.FIRST_BYTE);
+					stamped=true;
+				}
+				if (complete) break;
+				fill();
 			}
 			
-			next.httpResponse.setEntity(entity);
-			
-			if (!hasBody) {
-				throw new ProtocolException("Response was neither fixed length or chunked");
-			}
+			next.httpResponse=null;
+			next.statusCode=parser.statusCode;
+			next.bodyBytes=parser.getBodyBytes();
+			next.body=parser.takeBody();
+			next.responseValidators=parser.getValidators();
+			boolean close=parser.close;
+			parser.reset();
 			
 			next.callback.handleHttpResponse(next);
 
 			// Success.  Shift it off.
-			pending.removeFirst();
+			inflight.removeFirst();
+			readOnConnection++;
 
-			header=message.getFirstHeader("Connection");
-			if (header!=null && header.getValue().indexOf("close")>=0) {
-				// Close the connection
-				Log.d(Constants.LOG_TAG, "Server signalled to close the connection with " + pending.size() + " responses outstanding.");
-				shutdown();
+			if (close) {
+				// Close the connection.  Anything still in flight goes out
+				// again on the next one.
+				Log.d(Constants.LOG_TAG, "Server signalled to close the connection with " + getPendingCount() + " responses outstanding.");
+				connectionLost(new IOException("Connection closed by server"));
+				return;
+			}
+			
+			if (shouldAbandon()) {
+				abandon();
 				return;
-			} else {
-				//Log.d(Constants.LOG_TAG, "Persisting connection to next request");
-				
 			}
+			
+			// Slide the window
+			fillWindow(source);
+		}
+	}
+	
+	private boolean shouldAbandon() {
+		if (abandonThreshold<=0 || inflight.size()<ABANDON_MIN_INFLIGHT) return false;
+		int cancelled=0;
+		for (HttpInteraction hi: inflight) {
+			if (hi.cancelled) cancelled++;
+		}
+		return cancelled>=ABANDON_MIN_INFLIGHT && cancelled>=inflight.size()*abandonThreshold;
+	}
+	
+	/**
+	 * Drop the connection and everything cancelled on it.  The rest goes out
+	 * again without it counting as another attempt.
+	 */
+	private void abandon() {
+		Log.d(Constants.LOG_TAG, "Abandoning connection to " + profile + " with " + inflight.size() + " mostly cancelled responses outstanding");
+		Iterator<HttpInteraction> iter=inflight.iterator();
+		while (iter.hasNext()) {
+			HttpInteraction hi=iter.next();
+			if (hi.cancelled) iter.remove();
+			else hi.attempts--;
 		}
+		shutdown();
 	}
 	
 }
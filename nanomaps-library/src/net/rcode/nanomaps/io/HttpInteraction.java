@@ -14,13 +14,78 @@ public class HttpInteraction {
 	 */
 	public Object correlation;
 	
+	/**
+	 * The request.  May be null if the interaction was created from a
+	 * template (see getHttpRequest()).
+	 */
 	public HttpRequest httpRequest;
+	
+	/**
+	 * Set by HttpAgent's own parser instead of httpResponse: the status,
+	 * the body (owned by the callback, null if none or discarded), body
+	 * bytes received and the response validators
+	 */
 	public HttpResponse httpResponse;
+	public int statusCode;
+	public BufferInputStream body;
+	public long bodyBytes;
+	public Validators responseValidators;
+	
 	public Throwable exception;
 	
+	/**
+	 * For interactions created from a template: the host's preformatted
+	 * request, the encoded path and query and any validators making the
+	 * request conditional
+	 */
+	RequestTemplate template;
+	String path;
+	Validators requestValidators;
+	
 	public HttpCallback callback;
 	
+	/**
+	 * Number of times the request has been written to a connection
+	 */
+	public int attempts;
+	
+	/**
+	 * SystemClock.uptimeMillis() of the last write when the agent is
+	 * recording metrics
+	 */
+	public long writeTime;
+	
+	/**
+	 * Set when nobody wants the response anymore.  The agent will not write
+	 * a cancelled request and counts cancelled requests in flight when
+	 * deciding whether to abandon a connection.
+	 */
+	public volatile boolean cancelled;
+	
+	/**
+	 * Trace to stamp as the request goes out and the response comes in,
+	 * if sampled
+	 */
+	public LoadTracer.Trace trace;
+	
 	public HttpInteraction(HttpRequest httpRequest, HttpCallback callback) {
 		this.httpRequest=httpRequest;
 	}
+	
+	HttpInteraction(RequestTemplate template, String path, Validators requestValidators) {
+		this.template=template;
+		this.path=path;
+		this.requestValidators=requestValidators;
+	}
+	
+	/**
+	 * @return the request, built on first use for interactions created from
+	 * a template
+	 */
+	public HttpRequest getHttpRequest() {
+		if (httpRequest==null && template!=null) {
+			httpRequest=template.toHttpRequest(path, requestValidators);
+		}
+		return httpRequest;
+	}
 }
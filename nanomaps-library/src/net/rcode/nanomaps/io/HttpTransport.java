@@ -0,0 +1,79 @@
+package net.rcode.nanomaps.io;
+
+import java.io.IOException;
+
+import org.apache.http.HttpException;
+
+/**
+ * Strategy for carrying a DefaultResourceLoader's http requests.  Each
+ * worker of an http queue creates one Agent and drives it from its own
+ * thread, so an Agent need not be thread safe.  The pipelined HttpAgent is
+ * the default (see HttpAgent.DEFAULT_TRANSPORT).  Other implementations can
+ * route requests elsewhere (ie. a loopback stand-in for tests).
+ *
+ * @author stella
+ *
+ */
+public interface HttpTransport {
+	/**
+	 * One worker's connection to a host
+	 */
+	public interface Agent {
+		/**
+		 * Queue an interaction to be sent on the next doIO()
+		 * @param interaction
+		 */
+		public void submit(HttpInteraction interaction);
+
+		/**
+		 * @return number of interactions submitted or in flight without a response
+		 */
+		public int getPendingCount();
+
+		/**
+		 * Service submitted interactions, pulling more from the source as
+		 * there is room, and call each interaction's callback with its
+		 * response.  Unanswered interactions may be left pending for the
+		 * next call.
+		 * @param source optional source of further interactions
+		 */
+		public void doIO(HttpAgent.Source source) throws IOException, HttpException;
+
+		/**
+		 * Fail everything pending with the given cause
+		 * @param t
+		 */
+		public void failAll(Throwable t);
+
+		/**
+		 * Close the connection.  Anything in flight stays pending.
+		 */
+		public void shutdown();
+
+		/**
+		 * Nothing is left to do for now.  Give up the connection (ie. back to
+		 * a pool).
+		 */
+		public void releaseConnection();
+
+		public void setPipelineDepth(int pipelineDepth);
+
+		/**
+		 * @param stats stats or null to not record
+		 */
+		public void setStats(LoaderMetrics.HostStats stats);
+
+		/**
+		 * @param abandonThreshold see HttpAgent.setAbandonThreshold()
+		 */
+		public void setAbandonThreshold(float abandonThreshold);
+	}
+
+	/**
+	 * Create an agent for one worker
+	 * @param profile host being talked to
+	 * @param pool the loader's connection pool
+	 * @return agent
+	 */
+	public Agent createAgent(HostProfile profile, ConnectionPool pool);
+}
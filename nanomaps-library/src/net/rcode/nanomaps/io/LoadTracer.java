@@ -0,0 +1,303 @@
+package net.rcode.nanomaps.io;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Records where the time goes for individual loads.  A sampled request
+ * carries a Trace that is stamped as it passes each stage (queue, connect,
+ * first byte, body, decode, dispatch to the UI and finally being drawn).
+ * When the trace ends, its spans are copied into a fixed size ring buffer
+ * that is allocated up front, overwriting the oldest.
+ * <p>
+ * Nothing is traced unless a tracer has been installed with
+ * DefaultResourceLoader.setTracer().  The ring can be exported with
+ * writeJson() in the trace event format read by chrome://tracing and
+ * Perfetto, one row per request.  Cancelled loads are not recorded.
+ *
+ * @author stella
+ *
+ */
+public class LoadTracer {
+	public static final int DEFAULT_CAPACITY=4096;
+
+	/*
+	 * Stamps.  Spans run from one stamp to the next one that was set.
+	 */
+	public static final int QUEUED=0;
+	public static final int DEQUEUED=1;
+	public static final int CONNECTED=2;
+	public static final int WRITTEN=3;
+	public static final int FIRST_BYTE=4;
+	public static final int BODY_READ=5;
+	public static final int DECODE_START=6;
+	public static final int DECODED=7;
+	public static final int DELIVERED=8;
+	public static final int DRAWN=9;
+	static final int STAMP_COUNT=10;
+
+	/**
+	 * Name of the span ending at each stamp
+	 */
+	static final String[] SPAN_NAMES={
+		null, "queue", "connect", "write", "ttfb", "body", "decode-wait", "decode", "dispatch", "display"
+	};
+	static final int LOAD_SPAN=STAMP_COUNT;
+
+	/**
+	 * Timing for one sampled request.  Each stage is stamped by the thread
+	 * that runs it.  Stages run one after another so no locking is needed.
+	 */
+	public static class Trace {
+		final LoadTracer tracer;
+		final int id;
+		final String uri;
+		final long[] stamps=new long[STAMP_COUNT];
+		boolean claimed;
+		boolean ended;
+
+		Trace(LoadTracer tracer, int id, String uri) {
+			this.tracer=tracer;
+			this.id=id;
+			this.uri=uri;
+		}
+
+		/**
+		 * Record that the stage has been reached now
+		 * @param stamp
+		 */
+		public void stamp(int stamp) {
+			stamps[stamp]=System.nanoTime();
+		}
+
+		/**
+		 * Take over ending the trace (ie. to stamp DRAWN later).  Otherwise
+		 * it ends once the load has been delivered.
+		 */
+		public void claim() {
+			claimed=true;
+		}
+
+		/**
+		 * Stamp the final stage and record the trace
+		 * @param stamp
+		 */
+		public void end(int stamp) {
+			stamp(stamp);
+			end();
+		}
+
+		public void end() {
+			if (ended) return;
+			ended=true;
+			tracer.record(this);
+		}
+
+		/**
+		 * Called after the load's callbacks have run
+		 */
+		void delivered() {
+			if (!claimed) end();
+		}
+	}
+
+	/**
+	 * Implemented by requests that may carry a trace
+	 */
+	public interface Traced {
+		/**
+		 * @return the request's trace or null if not sampled
+		 */
+		public Trace getTrace();
+	}
+
+	/**
+	 * @param request
+	 * @return the trace carried by a request or null
+	 */
+	public static Trace traceOf(ResourceLoader.Request request) {
+		if (request instanceof Traced) return ((Traced) request).getTrace();
+		return null;
+	}
+
+	private float sampleRate;
+	private float sampleCredit;
+	private int nextId;
+
+	// The ring
+	private final int capacity;
+	private final int[] ids;
+	private final byte[] kinds;
+	private final long[] starts;
+	private final long[] durations;
+	private final String[] labels;
+	private int head;
+	private int count;
+	private final long origin=System.nanoTime();
+
+	public LoadTracer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity number of spans kept
+	 */
+	public LoadTracer(int capacity) {
+		this.capacity=capacity;
+		ids=new int[capacity];
+		kinds=new byte[capacity];
+		starts=new long[capacity];
+		durations=new long[capacity];
+		labels=new String[capacity];
+		sampleRate=1;
+	}
+
+	public synchronized float getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @param sampleRate fraction of requests traced.  0 turns tracing off.
+	 */
+	public synchronized void setSampleRate(float sampleRate) {
+		this.sampleRate=sampleRate;
+		this.sampleCredit=0;
+	}
+
+	/**
+	 * Start a trace for a new request if it is sampled
+	 * @param uri
+	 * @return trace (stamped QUEUED) or null
+	 */
+	public Trace start(String uri) {
+		int id;
+		synchronized (this) {
+			if (sampleRate<=0) return null;
+			sampleCredit+=sampleRate;
+			if (sampleCredit<1) return null;
+			sampleCredit-=1;
+			id=++nextId;
+		}
+		Trace trace=new Trace(this, id, uri);
+		trace.stamp(QUEUED);
+		return trace;
+	}
+
+	synchronized void record(Trace trace) {
+		long[] stamps=trace.stamps;
+		long begin=stamps[QUEUED];
+		long last=begin;
+		for (int i=1; i<STAMP_COUNT; i++) {
+			// Skip stages not reached (or left from an earlier attempt)
+			if (stamps[i]==0 || stamps[i]<last) continue;
+			put(trace.id, i, last, stamps[i]-last, null);
+			last=stamps[i];
+		}
+		put(trace.id, LOAD_SPAN, begin, last-begin, trace.uri);
+	}
+
+	private void put(int id, int kind, long start, long duration, String label) {
+		ids[head]=id;
+		kinds[head]=(byte) kind;
+		starts[head]=start;
+		durations[head]=duration;
+		labels[head]=label;
+		head=(head+1) % capacity;
+		if (count<capacity) count++;
+	}
+
+	/**
+	 * @return number of spans in the ring
+	 */
+	public synchronized int getSpanCount() {
+		return count;
+	}
+
+	public synchronized void clear() {
+		head=0;
+		count=0;
+		for (int i=0; i<capacity; i++) labels[i]=null;
+	}
+
+	/**
+	 * Write the ring as a trace event JSON document
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeJson(Writer out) throws IOException {
+		int n;
+		int[] localIds;
+		byte[] localKinds;
+		long[] localStarts, localDurations;
+		String[] localLabels;
+		synchronized (this) {
+			n=count;
+			localIds=new int[n];
+			localKinds=new byte[n];
+			localStarts=new long[n];
+			localDurations=new long[n];
+			localLabels=new String[n];
+			int first=(head-count+capacity) % capacity;
+			for (int i=0; i<n; i++) {
+				int index=(first+i) % capacity;
+				localIds[i]=ids[index];
+				localKinds[i]=kinds[index];
+				localStarts[i]=starts[index];
+				localDurations[i]=durations[index];
+				localLabels[i]=labels[index];
+			}
+		}
+
+		out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+		for (int i=0; i<n; i++) {
+			if (i>0) out.write(',');
+			out.write("\n{\"ph\":\"X\",\"pid\":1,\"tid\":");
+			out.write(Integer.toString(localIds[i]));
+			out.write(",\"cat\":\"load\",\"name\":\"");
+			out.write(localKinds[i]==LOAD_SPAN ? "load" : SPAN_NAMES[localKinds[i]]);
+			out.write("\",\"ts\":");
+			out.write(Long.toString((localStarts[i]-origin)/1000));
+			out.write(",\"dur\":");
+			out.write(Long.toString(localDurations[i]/1000));
+			if (localLabels[i]!=null) {
+				out.write(",\"args\":{\"uri\":\"");
+				writeEscaped(out, localLabels[i]);
+				out.write("\"}");
+			}
+			out.write('}');
+		}
+		out.write("\n]}\n");
+	}
+
+	/**
+	 * Write the ring to a file that profilers can open
+	 * @param file
+	 * @throws IOException
+	 */
+	public void export(File file) throws IOException {
+		Writer out=new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			writeJson(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeEscaped(Writer out, String s) throws IOException {
+		for (int i=0; i<s.length(); i++) {
+			char c=s.charAt(i);
+			if (c=='"' || c=='\\') {
+				out.write('\\');
+				out.write(c);
+			} else if (c<0x20) {
+				out.write(String.format("\\u%04x", (int) c));
+			} else {
+				out.write(c);
+			}
+		}
+	}
+}
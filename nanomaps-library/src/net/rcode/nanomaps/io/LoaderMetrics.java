@@ -0,0 +1,454 @@
+package net.rcode.nanomaps.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Registry of loader and map statistics.  Nothing is recorded unless a
+ * registry has been installed with DefaultResourceLoader.setMetrics() (and
+ * MapTileView.setMetrics() for map timings), so instrumented code costs a
+ * null check when disabled.
+ * <p>
+ * Statistics can be polled with snapshot() or delivered periodically to a
+ * Listener on the looper that subscribed.
+ *
+ * @author stella
+ *
+ */
+public class LoaderMetrics {
+	/**
+	 * Rates are counted in fixed buckets of uptime this long and reported
+	 * for the last complete bucket
+	 */
+	static final long RATE_WINDOW=5000;
+
+	public interface Listener {
+		public void onMetrics(Snapshot snapshot);
+	}
+
+	/**
+	 * Counters for one http host.  Live instances are updated by the loader.
+	 * Instances in a Snapshot are copies and do not change.  Rates are
+	 * bucketed as they are recorded so that taking a snapshot does not
+	 * change them.
+	 */
+	public static class HostStats {
+		private String host;
+		private long requests;
+		private long bytes;
+		private long errors;
+		private long cancellations;
+		private long cancelledBytes;
+		private int queueDepth;
+		private long queueWaitCount;
+		private long queueWaitTotal;
+		private long queueWaitMax;
+		private long roundTripCount;
+		private long roundTripTotal;
+		private long occupancySamples;
+		private long occupancyTotal;
+
+		/**
+		 * Counts for the bucket being recorded and the one before it
+		 */
+		private long bucket;
+		private long bucketRequests;
+		private long bucketBytes;
+		private long lastBucketRequests;
+		private long lastBucketBytes;
+
+		/**
+		 * Only set on copies
+		 */
+		private float requestsPerSecond;
+		private float bytesPerSecond;
+
+		HostStats(String host) {
+			this.host=host;
+		}
+
+		synchronized void queued() {
+			queueDepth++;
+		}
+
+		synchronized void unqueued() {
+			if (queueDepth>0) queueDepth--;
+		}
+
+		synchronized void dequeued(long wait) {
+			if (queueDepth>0) queueDepth--;
+			queueWaitCount++;
+			queueWaitTotal+=wait;
+			if (wait>queueWaitMax) queueWaitMax=wait;
+		}
+
+		synchronized void responded(long roundTrip, int length) {
+			roundTripCount++;
+			roundTripTotal+=roundTrip;
+			if (length>0) {
+				bytes+=length;
+				roll(SystemClock.uptimeMillis());
+				bucketBytes+=length;
+			}
+		}
+
+		synchronized void completed(boolean loaded) {
+			if (loaded) {
+				requests++;
+				roll(SystemClock.uptimeMillis());
+				bucketRequests++;
+			} else {
+				errors++;
+			}
+		}
+
+		synchronized void cancelled() {
+			cancellations++;
+		}
+
+		synchronized void cancelledBytes(long length) {
+			cancelledBytes+=length;
+		}
+
+		synchronized void occupancy(int inflight) {
+			occupancySamples++;
+			occupancyTotal+=inflight;
+		}
+
+		/**
+		 * Move to the bucket containing now
+		 */
+		private void roll(long now) {
+			long current=now/RATE_WINDOW;
+			if (current==bucket) return;
+			if (current==bucket+1) {
+				lastBucketRequests=bucketRequests;
+				lastBucketBytes=bucketBytes;
+			} else {
+				// Nothing recorded in the bucket before this one
+				lastBucketRequests=0;
+				lastBucketBytes=0;
+			}
+			bucket=current;
+			bucketRequests=0;
+			bucketBytes=0;
+		}
+
+		/**
+		 * Copy with rates for the last bucket completed before now.  Does not
+		 * modify this.
+		 */
+		synchronized HostStats copy(long now) {
+			long current=now/RATE_WINDOW;
+			long completeRequests, completeBytes;
+			if (current==bucket) {
+				completeRequests=lastBucketRequests;
+				completeBytes=lastBucketBytes;
+			} else if (current==bucket+1) {
+				completeRequests=bucketRequests;
+				completeBytes=bucketBytes;
+			} else {
+				completeRequests=0;
+				completeBytes=0;
+			}
+
+			HostStats ret=new HostStats(host);
+			ret.requests=requests;
+			ret.bytes=bytes;
+			ret.errors=errors;
+			ret.cancellations=cancellations;
+			ret.cancelledBytes=cancelledBytes;
+			ret.queueDepth=queueDepth;
+			ret.queueWaitCount=queueWaitCount;
+			ret.queueWaitTotal=queueWaitTotal;
+			ret.queueWaitMax=queueWaitMax;
+			ret.roundTripCount=roundTripCount;
+			ret.roundTripTotal=roundTripTotal;
+			ret.occupancySamples=occupancySamples;
+			ret.occupancyTotal=occupancyTotal;
+			ret.requestsPerSecond=completeRequests * 1000f / RATE_WINDOW;
+			ret.bytesPerSecond=completeBytes * 1000f / RATE_WINDOW;
+			return ret;
+		}
+
+		/**
+		 * @return host:port
+		 */
+		public String getHost() {
+			return host;
+		}
+
+		/**
+		 * @return requests loaded successfully
+		 */
+		public long getRequests() {
+			return requests;
+		}
+
+		/**
+		 * @return response body bytes received
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		/**
+		 * @return requests cancelled by every caller before completing
+		 */
+		public long getCancellations() {
+			return cancellations;
+		}
+
+		/**
+		 * @return bytes received for requests that had been cancelled.  These
+		 * are not decoded and are not included in getBytes().
+		 */
+		public long getCancelledBytes() {
+			return cancelledBytes;
+		}
+
+		/**
+		 * @return requests waiting in the IOQueue
+		 */
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+
+		/**
+		 * @return mean ms between being queued and being taken by a worker
+		 */
+		public float getMeanQueueWait() {
+			return queueWaitCount>0 ? (float)queueWaitTotal/queueWaitCount : 0;
+		}
+
+		public long getMaxQueueWait() {
+			return queueWaitMax;
+		}
+
+		/**
+		 * @return mean ms from writing a request to having its whole response
+		 */
+		public float getMeanRoundTrip() {
+			return roundTripCount>0 ? (float)roundTripTotal/roundTripCount : 0;
+		}
+
+		/**
+		 * @return mean number of requests outstanding on a connection, sampled
+		 * each time requests are written
+		 */
+		public float getMeanPipelineOccupancy() {
+			return occupancySamples>0 ? (float)occupancyTotal/occupancySamples : 0;
+		}
+
+		/**
+		 * @return successful requests per second over the last rate window
+		 */
+		public float getRequestsPerSecond() {
+			return requestsPerSecond;
+		}
+
+		/**
+		 * @return body bytes per second over the last rate window
+		 */
+		public float getBytesPerSecond() {
+			return bytesPerSecond;
+		}
+
+		@Override
+		public String toString() {
+			return "HostStats(" + host + ": requests=" + requests + ", bytes=" + bytes + ", errors=" + errors +
+				", cancellations=" + cancellations + ", cancelledBytes=" + cancelledBytes + ", queueDepth=" + queueDepth +
+				", req/s=" + requestsPerSecond + ", bytes/s=" + bytesPerSecond +
+				", queueWait=" + getMeanQueueWait() + "ms, rtt=" + getMeanRoundTrip() + "ms" +
+				", occupancy=" + getMeanPipelineOccupancy() + ")";
+		}
+	}
+
+	/**
+	 * Time-to-full-screen for one map view: the time from a map state update
+	 * that left visible tiles unloaded until every visible tile was loaded.
+	 */
+	public static class MapStats {
+		private String name;
+		private long count;
+		private long last;
+		private long total;
+		private long max;
+
+		MapStats(String name) {
+			this.name=name;
+		}
+
+		/**
+		 * Record one time-to-full-screen
+		 * @param time ms
+		 */
+		public synchronized void fullScreen(long time) {
+			count++;
+			last=time;
+			total+=time;
+			if (time>max) max=time;
+		}
+
+		synchronized MapStats copy() {
+			MapStats ret=new MapStats(name);
+			ret.count=count;
+			ret.last=last;
+			ret.total=total;
+			ret.max=max;
+			return ret;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getLastTimeToFullScreen() {
+			return last;
+		}
+
+		public float getMeanTimeToFullScreen() {
+			return count>0 ? (float)total/count : 0;
+		}
+
+		public long getMaxTimeToFullScreen() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "MapStats(" + name + ": count=" + count + ", last=" + last + "ms, mean=" + getMeanTimeToFullScreen() + "ms, max=" + max + "ms)";
+		}
+	}
+
+	/**
+	 * Point in time copy of everything in the registry
+	 */
+	public static class Snapshot {
+		private long time;
+		private HostStats[] hosts;
+		private MapStats[] maps;
+
+		/**
+		 * @return SystemClock.uptimeMillis() when taken
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public HostStats[] getHosts() {
+			return hosts;
+		}
+
+		public HostStats getHost(String host) {
+			for (int i=0; i<hosts.length; i++) {
+				if (hosts[i].host.equals(host)) return hosts[i];
+			}
+			return null;
+		}
+
+		public MapStats[] getMaps() {
+			return maps;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb=new StringBuilder("Snapshot(");
+			for (int i=0; i<hosts.length; i++) sb.append("\n  ").append(hosts[i]);
+			for (int i=0; i<maps.length; i++) sb.append("\n  ").append(maps[i]);
+			sb.append(")");
+			return sb.toString();
+		}
+	}
+
+	private Map<String, HostStats> hosts=new HashMap<String, HostStats>();
+	private ArrayList<MapStats> maps=new ArrayList<MapStats>();
+	private Handler reportHandler;
+	private Runnable reportRunnable;
+
+	/**
+	 * @param host host:port
+	 * @return the live stats for the host, creating them if needed
+	 */
+	public HostStats getHostStats(String host) {
+		synchronized (hosts) {
+			HostStats ret=hosts.get(host);
+			if (ret==null) {
+				ret=new HostStats(host);
+				hosts.put(host, ret);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * @param name name to report the map under
+	 * @return the live stats for the map, creating them if needed
+	 */
+	public MapStats getMapStats(String name) {
+		synchronized (maps) {
+			for (int i=0; i<maps.size(); i++) {
+				if (maps.get(i).name.equals(name)) return maps.get(i);
+			}
+			MapStats ret=new MapStats(name);
+			maps.add(ret);
+			return ret;
+		}
+	}
+
+	public Snapshot snapshot() {
+		Snapshot ret=new Snapshot();
+		ret.time=SystemClock.uptimeMillis();
+		synchronized (hosts) {
+			ret.hosts=new HostStats[hosts.size()];
+			int i=0;
+			for (HostStats stats: hosts.values()) {
+				ret.hosts[i++]=stats.copy(ret.time);
+			}
+		}
+		synchronized (maps) {
+			ret.maps=new MapStats[maps.size()];
+			for (int i=0; i<ret.maps.length; i++) {
+				ret.maps[i]=maps.get(i).copy();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Deliver a snapshot to the listener every interval ms on the calling
+	 * thread's looper.  Replaces any previous subscription.
+	 * @param listener listener or null to stop
+	 * @param interval
+	 */
+	public void setListener(final Listener listener, final long interval) {
+		if (reportHandler!=null) {
+			reportHandler.removeCallbacks(reportRunnable);
+			reportHandler=null;
+			reportRunnable=null;
+		}
+		if (listener==null) return;
+
+		final Handler handler=new Handler();
+		reportRunnable=new Runnable() {
+			public void run() {
+				listener.onMetrics(snapshot());
+				handler.postDelayed(this, interval);
+			}
+		};
+		reportHandler=handler;
+		handler.postDelayed(reportRunnable, interval);
+	}
+}
@@ -0,0 +1,177 @@
+package net.rcode.nanomaps.io;
+
+import java.io.InputStream;
+
+import net.rcode.nanomaps.io.ResourceLoader.Callback;
+import net.rcode.nanomaps.io.ResourceLoader.DataHandler;
+import net.rcode.nanomaps.util.Constants;
+import android.net.Uri;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Request for a tile stored in a local file (MBTiles or TileArchive).
+ * Named by a uri of the form scheme:///level/x/y and decoded on the
+ * DecodeExecutor like network tiles.
+ *
+ * @author stella
+ *
+ */
+class LocalTileRequest implements ResourceLoader.Request {
+	Looper originatingLooper;
+	DataHandler dataHandler;
+	Callback callback;
+	volatile boolean cancelled;
+	int priority=ResourceLoader.PRIORITY_DEFAULT;
+	int level;
+	int tileX;
+	int tileY;
+
+	/**
+	 * Tile bytes once found, either up front or by lookup() in the decode
+	 * task.  Owned by the decode task.
+	 */
+	InputStream body;
+	int bodyLength;
+
+	boolean complete;
+	boolean loaded;
+	Object results;
+
+	LocalTileRequest(DataHandler dataHandler, Callback callback) {
+		this.originatingLooper=Looper.myLooper();
+		this.dataHandler=dataHandler;
+		this.callback=callback;
+	}
+
+	/**
+	 * Parse level/x/y out of the uri path.  Any extension is ignored.
+	 * @param uri
+	 * @param scheme
+	 * @return false if the uri does not name a tile
+	 */
+	boolean parse(Uri uri, String scheme) {
+		if (!scheme.equals(uri.getScheme())) return false;
+		String path=uri.getPath();
+		if (path==null) return false;
+
+		int dot=path.lastIndexOf('.');
+		if (dot>path.lastIndexOf('/')) path=path.substring(0, dot);
+		String[] segments=path.split("/");
+		int[] values=new int[3];
+		int count=0;
+		try {
+			for (int i=0; i<segments.length; i++) {
+				if (segments[i].length()==0) continue;
+				if (count==3) return false;
+				values[count++]=Integer.parseInt(segments[i]);
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (count!=3 || values[0]<0 || values[0]>30) return false;
+
+		level=values[0];
+		tileX=values[1];
+		tileY=values[2];
+		return true;
+	}
+
+	/**
+	 * Called on the decode thread if body was not set before the task was
+	 * submitted.  Subclasses find the tile here to keep io off the caller's
+	 * thread.  The default finds nothing.
+	 * @return false if there is no such tile, otherwise body and bodyLength
+	 * are set
+	 */
+	boolean lookup() {
+		return false;
+	}
+
+	/**
+	 * @return a task that runs the DataHandler over body, looking it up
+	 * first if needed
+	 */
+	DecodeExecutor.Task decodeTask() {
+		return new DecodeExecutor.Task() {
+			@Override
+			public boolean isCancelled() {
+				return cancelled;
+			}
+
+			@Override
+			public void discard() {
+				body=null;
+			}
+
+			@Override
+			public void run() {
+				if (body==null && !lookup()) {
+					finish(false, null);
+					return;
+				}
+				InputStream input=body;
+				body=null;
+				Object result=dataHandler.transformResult(input, bodyLength);
+				if (result==null) Log.e(Constants.LOG_TAG, "No decoded results for " + LocalTileRequest.this);
+				finish(result!=null, result);
+			}
+		};
+	}
+
+	@Override
+	public boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	@Override
+	public Object getResults() {
+		return results;
+	}
+
+	@Override
+	public void cancel() {
+		synchronized (this) {
+			callback=null;
+		}
+		cancelled=true;
+	}
+
+	@Override
+	public int getPriority() {
+		return priority;
+	}
+
+	@Override
+	public void setPriority(int priority) {
+		this.priority=priority;
+	}
+
+	void finish(boolean loaded, Object results) {
+		final Callback localCallback;
+		synchronized (this) {
+			if (callback==null) return;	// Dispatch once
+			this.complete=true;
+			this.loaded=loaded;
+			this.results=results;
+			localCallback=callback;
+			callback=null;
+		}
+
+		CompletionMailbox.forLooper(originatingLooper).post(new Runnable() {
+			public void run() {
+				localCallback.onComplete(LocalTileRequest.this);
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		return "Tile(level=" + level + ",x=" + tileX + ",y=" + tileY + ")";
+	}
+}
@@ -0,0 +1,286 @@
+package net.rcode.nanomaps.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.rcode.nanomaps.util.Constants;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Loads tiles out of an MBTiles (SQLite) database.  Resources are named
+ * mbtiles:///level/x/y with x and y in the usual top-left origin scheme of
+ * CartesianTileKey.  MBTiles rows are stored TMS style (bottom-left origin)
+ * and are flipped here.
+ * <p>
+ * Requests made during one pass of the calling looper (ie. every new tile
+ * from one mapStateUpdated()) are collected and looked up together with a
+ * range query per level on the DecodeExecutor.  The tile blobs then go to
+ * the DataHandler through the same decode tasks as network tiles.  None of
+ * the http machinery is involved.
+ *
+ * @author stella
+ *
+ */
+public class MBTilesResourceLoader extends ResourceLoader {
+	public static final String SCHEME="mbtiles";
+
+	static final String SQL_RANGE="SELECT tile_column, tile_row, tile_data FROM tiles " +
+			"WHERE zoom_level=? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?";
+	static final String SQL_METADATA="SELECT value FROM metadata WHERE name=?";
+
+	/**
+	 * A batch is read with one range query per level unless the requested
+	 * tiles cover less than this fraction of their bounding box
+	 */
+	static final float MIN_RANGE_DENSITY=0.25f;
+
+	private File file;
+	private SQLiteDatabase database;
+	private DecodeExecutor executor=DecodeExecutor.getDefault();
+
+	/**
+	 * Requests waiting for the end of the looper pass that made them
+	 */
+	private ArrayList<MBTilesRequest> pending=new ArrayList<MBTilesRequest>();
+
+	private Runnable flushRunnable=new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	public MBTilesResourceLoader(File file) {
+		this.file=file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @param level
+	 * @param tileX
+	 * @param tileY
+	 * @return the uri that names the tile
+	 */
+	public static String uriFor(int level, int tileX, int tileY) {
+		return SCHEME + ":///" + level + '/' + tileX + '/' + tileY;
+	}
+
+	/**
+	 * Read a value from the metadata table (ie. "name", "format", "minzoom",
+	 * "maxzoom", "bounds").  This does io and should not be called on the
+	 * ui thread.
+	 * @param name
+	 * @return value or null
+	 */
+	public String getMetadata(String name) {
+		Cursor cursor=getDatabase().rawQuery(SQL_METADATA, new String[] { name });
+		try {
+			if (cursor.moveToNext()) return cursor.getString(0);
+			return null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Close the database.  It is reopened if more tiles are requested.
+	 */
+	public synchronized void close() {
+		if (database!=null) {
+			database.close();
+			database=null;
+		}
+	}
+
+	synchronized SQLiteDatabase getDatabase() {
+		if (database==null) {
+			database=SQLiteDatabase.openDatabase(file.getPath(), null,
+					SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		}
+		return database;
+	}
+
+	@Override
+	public Request loadResource(Uri uri, DataHandler dataHandler, Callback callback) {
+		MBTilesRequest request=new MBTilesRequest(dataHandler, callback);
+		if (!request.parse(uri, SCHEME)) {
+			Log.e(Constants.LOG_TAG, "Not an mbtiles uri: " + uri);
+			request.finish(false, null);
+			return request;
+		}
+
+		boolean schedule;
+		synchronized (pending) {
+			schedule=pending.isEmpty();
+			pending.add(request);
+		}
+		if (schedule) {
+			// Wait for the rest of this looper pass to add to the batch
+			if (request.originatingLooper!=null) new Handler().post(flushRunnable);
+			else flush();
+		}
+		return request;
+	}
+
+	/**
+	 * Hand everything pending to the executor as one batch
+	 */
+	void flush() {
+		BatchTask task=new BatchTask();
+		synchronized (pending) {
+			if (pending.isEmpty()) return;
+			task.requests=pending.toArray(new MBTilesRequest[pending.size()]);
+			pending.clear();
+		}
+		executor.submit(task);
+	}
+
+	/**
+	 * Looks up every tile in a batch
+	 */
+	class BatchTask extends DecodeExecutor.Task {
+		MBTilesRequest[] requests;
+
+		@Override
+		public boolean isCancelled() {
+			for (int i=0; i<requests.length; i++) {
+				if (!requests[i].cancelled) return false;
+			}
+			return true;
+		}
+
+		@Override
+		public void run() {
+			ArrayList<MBTilesRequest> found=new ArrayList<MBTilesRequest>(requests.length);
+			boolean[] done=new boolean[requests.length];
+			try {
+				SQLiteDatabase db=getDatabase();
+				for (int i=0; i<requests.length; i++) {
+					if (done[i]) continue;
+					readLevel(db, requests[i].level, done, found);
+				}
+			} catch (SQLException e) {
+				Log.e(Constants.LOG_TAG, "Error reading tiles from " + file, e);
+			}
+
+			// The executor is LIFO so submit the most urgent last
+			MBTilesRequest[] decodes=found.toArray(new MBTilesRequest[found.size()]);
+			for (int i=1; i<decodes.length; i++) {
+				MBTilesRequest request=decodes[i];
+				int j=i-1;
+				for (; j>=0 && decodes[j].priority<request.priority; j--) {
+					decodes[j+1]=decodes[j];
+				}
+				decodes[j+1]=request;
+			}
+			for (int i=0; i<decodes.length; i++) {
+				executor.submit(decodes[i].decodeTask());
+			}
+
+			// Anything not in the database failed
+			for (int i=0; i<requests.length; i++) {
+				if (!requests[i].found) requests[i].finish(false, null);
+			}
+		}
+
+		/**
+		 * Read every live request in the batch at one level
+		 */
+		private void readLevel(SQLiteDatabase db, int level, boolean[] done, ArrayList<MBTilesRequest> found) {
+			Map<Long, MBTilesRequest> byTile=new HashMap<Long, MBTilesRequest>();
+			int minX=Integer.MAX_VALUE, maxX=Integer.MIN_VALUE, minRow=Integer.MAX_VALUE, maxRow=Integer.MIN_VALUE;
+			for (int i=0; i<requests.length; i++) {
+				MBTilesRequest request=requests[i];
+				if (done[i] || request.level!=level) continue;
+				done[i]=true;
+				if (request.cancelled) continue;
+
+				Long tile=tileId(request.tileX, request.row);
+				request.next=byTile.get(tile);
+				byTile.put(tile, request);
+				minX=Math.min(minX, request.tileX);
+				maxX=Math.max(maxX, request.tileX);
+				minRow=Math.min(minRow, request.row);
+				maxRow=Math.max(maxRow, request.row);
+			}
+			if (byTile.isEmpty()) return;
+
+			String levelArg=String.valueOf(level);
+			long area=(long)(maxX-minX+1) * (maxRow-minRow+1);
+			if (byTile.size() >= area*MIN_RANGE_DENSITY) {
+				query(db, new String[] { levelArg, String.valueOf(minX), String.valueOf(maxX),
+						String.valueOf(minRow), String.valueOf(maxRow) }, byTile, found);
+			} else {
+				// Too sparse for a range.  Same statement, one tile at a time.
+				MBTilesRequest[] sparse=byTile.values().toArray(new MBTilesRequest[byTile.size()]);
+				for (int i=0; i<sparse.length; i++) {
+					String x=String.valueOf(sparse[i].tileX), row=String.valueOf(sparse[i].row);
+					query(db, new String[] { levelArg, x, x, row, row }, byTile, found);
+				}
+			}
+		}
+
+		private void query(SQLiteDatabase db, String[] args, Map<Long, MBTilesRequest> byTile, ArrayList<MBTilesRequest> found) {
+			Cursor cursor=db.rawQuery(SQL_RANGE, args);
+			try {
+				while (cursor.moveToNext()) {
+					MBTilesRequest request=byTile.get(tileId(cursor.getInt(0), cursor.getInt(1)));
+					if (request==null) continue;
+					byte[] data=cursor.getBlob(2);
+					if (data==null) continue;
+					for (; request!=null; request=request.next) {
+						// The blob is already a private copy so it is wrapped
+						// rather than moved into a pooled array
+						request.found=true;
+						request.body=new BufferInputStream(data, 0, data.length);
+						request.bodyLength=data.length;
+						found.add(request);
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+	}
+
+	private static Long tileId(int x, int row) {
+		return Long.valueOf(((long)x << 32) | (row & 0xffffffffL));
+	}
+
+	static class MBTilesRequest extends LocalTileRequest {
+		/**
+		 * TMS row
+		 */
+		int row;
+
+		/**
+		 * Set on the batch thread when the tile is found
+		 */
+		boolean found;
+
+		/**
+		 * Next request in the same batch for the same tile
+		 */
+		MBTilesRequest next;
+
+		MBTilesRequest(DataHandler dataHandler, Callback callback) {
+			super(dataHandler, callback);
+		}
+
+		@Override
+		boolean parse(Uri uri, String scheme) {
+			if (!super.parse(uri, scheme)) return false;
+			row=(1<<level) - 1 - tileY;
+			return true;
+		}
+	}
+}
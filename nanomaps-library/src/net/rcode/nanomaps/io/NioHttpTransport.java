@@ -0,0 +1,541 @@
+package net.rcode.nanomaps.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import net.rcode.nanomaps.io.DefaultResourceLoader.IOQueue;
+import net.rcode.nanomaps.io.DefaultResourceLoader.IORequest;
+import net.rcode.nanomaps.util.Constants;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Non-blocking alternative to running HttpAgents on IOWorker threads.  A
+ * single selector thread drives the connections for every http IOQueue,
+ * pipelining over each of them the same way HttpAgent does: a sliding window
+ * of up to the queue's pipeline depth, no further than the HostProfile says
+ * the server will answer, with unanswered requests put back on the queue
+ * when a connection drops.
+ * <p>
+ * Responses are parsed incrementally as bytes arrive and complete bodies are
+ * handed to the decode stage, so the selector thread never blocks on
+ * anything but name resolution.  Bodies of requests cancelled while in
+ * flight are skipped over rather than buffered, and a connection whose
+ * pipeline is mostly cancelled is abandoned in favor of a fresh one.
+ *
+ * @author stella
+ *
+ */
+class NioHttpTransport implements Runnable {
+	static final int SELECT_TIMEOUT=1000;
+	static final int CONNECT_TIMEOUT=30000;
+	static final int READ_TIMEOUT=30000;
+	static final int BUFFER_SIZE=8192;
+	static final int MAX_HEADER_BUFFER=65536;
+
+	private DefaultResourceLoader loader;
+	private ByteArrayPool bufferPool;
+	private int idleLinger;
+
+	private Selector selector;
+	private Thread thread;
+
+	/**
+	 * Queues with new work that the selector thread has not looked at yet
+	 */
+	private ArrayList<IOQueue> signalled=new ArrayList<IOQueue>();
+
+	/**
+	 * Owned by the selector thread
+	 */
+	private ArrayList<Connection> connections=new ArrayList<Connection>();
+	private Map<IOQueue, ArrayList<Connection>> queueConnections=new HashMap<IOQueue, ArrayList<Connection>>();
+
+	public NioHttpTransport(DefaultResourceLoader loader, int idleLinger) {
+		this.loader=loader;
+		this.bufferPool=loader.bufferPool;
+		this.idleLinger=idleLinger;
+	}
+
+	/**
+	 * Tell the selector thread that a queue has work, starting the thread
+	 * if needed.
+	 * @param queue
+	 * @return false if the transport could not be started and the caller
+	 * should fall back to blocking workers
+	 */
+	public boolean signal(IOQueue queue) {
+		synchronized (this) {
+			if (!signalled.contains(queue)) signalled.add(queue);
+			if (thread!=null) {
+				selector.wakeup();
+				return true;
+			}
+
+			try {
+				selector=Selector.open();
+			} catch (IOException e) {
+				Log.e(Constants.LOG_TAG, "Could not open selector", e);
+				signalled.clear();
+				return false;
+			}
+			thread=new Thread(this);
+			thread.setName("nmnio");
+			thread.start();
+			return true;
+		}
+	}
+
+	/**
+	 * @return number of open connections (for diagnostics)
+	 */
+	public int getConnectionCount() {
+		synchronized (this) {
+			return connections.size();
+		}
+	}
+
+	@Override
+	public void run() {
+		Log.d(Constants.LOG_TAG, "Starting nio transport thread");
+		long idleSince=SystemClock.uptimeMillis();
+		for (;;) {
+			try {
+				selector.select(SELECT_TIMEOUT);
+			} catch (IOException e) {
+				Log.e(Constants.LOG_TAG, "Error selecting", e);
+			}
+			long now=SystemClock.uptimeMillis();
+
+			// Service ready connections
+			Iterator<SelectionKey> iter=selector.selectedKeys().iterator();
+			while (iter.hasNext()) {
+				SelectionKey key=iter.next();
+				iter.remove();
+				if (key.isValid()) {
+					((Connection) key.attachment()).service(key, now);
+				}
+			}
+
+			// Pick up new work
+			IOQueue[] queues;
+			synchronized (this) {
+				queues=signalled.toArray(new IOQueue[signalled.size()]);
+				signalled.clear();
+			}
+			for (int i=0; i<queues.length; i++) {
+				startWork(queues[i], now);
+			}
+
+			// Timeouts and idle connections.  Connections remove themselves.
+			for (int i=connections.size()-1; i>=0; i--) {
+				if (i<connections.size()) connections.get(i).checkTimeout(now);
+			}
+
+			if (!connections.isEmpty()) {
+				idleSince=now;
+			} else if (now-idleSince>=idleLinger) {
+				synchronized (this) {
+					if (signalled.isEmpty()) {
+						thread=null;
+						try {
+							selector.close();
+						} catch (IOException e) {
+							// Ignore
+						}
+						selector=null;
+						break;
+					}
+				}
+			}
+		}
+		Log.d(Constants.LOG_TAG, "Ending nio transport thread");
+	}
+
+	/**
+	 * Top up the windows of the queue's connections and open another one if
+	 * there is still work left over.  Connections are added one per pass
+	 * so that a short burst does not open the maximum.
+	 * @param queue
+	 * @param now
+	 */
+	private void startWork(IOQueue queue, long now) {
+		ArrayList<Connection> list=queueConnections.get(queue);
+		if (list==null) {
+			list=new ArrayList<Connection>();
+			queueConnections.put(queue, list);
+		}
+
+		boolean connecting=false;
+		for (int i=list.size()-1; i>=0; i--) {
+			if (i>=list.size()) continue;
+			Connection c=list.get(i);
+			if (c.connected) c.fillWindow(now);
+			else connecting=true;
+		}
+
+		if (!connecting && list.size()<queue.getMaxWorkers() && queue.hasWork() && addressReady(queue)) {
+			Connection c=new Connection(queue, list);
+			c.open(now);
+		}
+	}
+
+	/**
+	 * Resolving blocks, so it is done by the ConnectionPool in the
+	 * background and the queue is signalled again when it finishes.
+	 * @return true if the host's address is cached (or known not to resolve)
+	 */
+	private boolean addressReady(final IOQueue queue) {
+		try {
+			return loader.connectionPool.lookup(queue.httpProfile.getHost(), new Runnable() {
+				public void run() {
+					signal(queue);
+				}
+			})!=null;
+		} catch (UnknownHostException e) {
+			// Let the connection fail the requests
+			return true;
+		}
+	}
+
+	private void signalFromSelector(IOQueue queue) {
+		synchronized (this) {
+			if (!signalled.contains(queue)) signalled.add(queue);
+		}
+	}
+
+	/**
+	 * One non-blocking connection to a host
+	 */
+	class Connection {
+		IOQueue queue;
+		ArrayList<Connection> siblings;
+		HostProfile profile;
+		SocketChannel channel;
+		SelectionKey key;
+		boolean connected;
+		boolean closed;
+		long lastActivity;
+
+		/**
+		 * Written and awaiting a response, in order
+		 */
+		LinkedList<IORequest> inflight=new LinkedList<IORequest>();
+		int writtenOnConnection;
+		int readOnConnection;
+
+		/**
+		 * Out is kept in fill mode, in is kept in fill mode between reads
+		 */
+		ByteBuffer out=ByteBuffer.allocate(BUFFER_SIZE);
+		ByteBuffer in=ByteBuffer.allocate(BUFFER_SIZE);
+		ResponseParser parser=new ResponseParser(bufferPool);
+
+		public Connection(IOQueue queue, ArrayList<Connection> siblings) {
+			this.queue=queue;
+			this.siblings=siblings;
+			this.profile=queue.httpProfile;
+		}
+
+		void open(long now) {
+			lastActivity=now;
+			synchronized (NioHttpTransport.this) {
+				connections.add(this);
+			}
+			siblings.add(this);
+
+			try {
+				Log.d(Constants.LOG_TAG, "Establishing nio http connection to " + profile);
+				channel=SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				// Cached by addressReady() so this does not block
+				InetSocketAddress address=new InetSocketAddress(
+						loader.connectionPool.resolve(profile.getHost()), profile.getPort());
+				if (channel.connect(address)) {
+					key=channel.register(selector, SelectionKey.OP_READ, this);
+					connected(now);
+				} else {
+					key=channel.register(selector, SelectionKey.OP_CONNECT, this);
+				}
+			} catch (IOException e) {
+				lost(e);
+			} catch (RuntimeException e) {
+				lost(wrap(e));
+			}
+		}
+
+		private void connected(long now) {
+			connected=true;
+			lastActivity=now;
+			key.interestOps(SelectionKey.OP_READ);
+			fillWindow(now);
+		}
+
+		void service(SelectionKey key, long now) {
+			try {
+				if (key.isConnectable()) {
+					if (!channel.finishConnect()) return;
+					connected(now);
+				}
+				if (channel!=null && key.isValid() && key.isWritable()) {
+					flush();
+				}
+				if (channel!=null && key.isValid() && key.isReadable()) {
+					read(now);
+				}
+			} catch (IOException e) {
+				lost(e);
+			} catch (RuntimeException e) {
+				// Never let one connection take down the selector thread
+				lost(wrap(e));
+			}
+		}
+
+		void checkTimeout(long now) {
+			long elapsed=now-lastActivity;
+			if (!connected) {
+				if (elapsed>=CONNECT_TIMEOUT) lost(new SocketTimeoutException("Connect timed out"));
+			} else if (!inflight.isEmpty()) {
+				if (elapsed>=READ_TIMEOUT) lost(new SocketTimeoutException("Read timed out"));
+			} else if (elapsed>=idleLinger || siblings.size()>queue.getMaxWorkers()) {
+				// Idle, or surplus since the host was tuned down
+				close();
+			}
+		}
+
+		/**
+		 * Write requests until the window is full or the queue is empty
+		 */
+		void fillWindow(long now) {
+			if (channel==null) return;
+			int limit=profile.getMaxRequestsPerConnection();
+			LoaderMetrics.HostStats stats=queue.getStats();
+			int count=0;
+			while (inflight.size() < queue.getPipelineDepth()) {
+				// Don't pipeline past what the server will answer
+				if (limit>0 && writtenOnConnection>=limit) break;
+
+				IORequest request=queue.next(null, true);
+				if (request==null) break;
+				if (inflight.isEmpty()) lastActivity=now;
+
+				request.attempts++;
+				if (stats!=null) request.writeTime=now;
+				inflight.add(request);
+				writtenOnConnection++;
+				count++;
+				writeRequest(request);
+			}
+
+			if (count>0) {
+				if (stats!=null) stats.occupancy(inflight.size());
+				try {
+					flush();
+				} catch (IOException e) {
+					lost(e);
+				}
+			}
+		}
+
+		private void writeRequest(IORequest request) {
+			RequestTemplate template=profile.getRequestTemplate();
+			String path=request.getPath();
+			Validators validators=request.getRequestValidators();
+			int length=template.length(path, validators);
+			if (out.remaining()<length) {
+				ByteBuffer larger=ByteBuffer.allocate(Math.max(out.capacity()*2, out.position()+length));
+				out.flip();
+				larger.put(out);
+				out=larger;
+			}
+			template.write(out, path, validators);
+		}
+
+		private void flush() throws IOException {
+			out.flip();
+			try {
+				channel.write(out);
+			} finally {
+				out.compact();
+			}
+			int ops=SelectionKey.OP_READ;
+			if (out.position()>0) ops|=SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+
+		private void read(long now) throws IOException {
+			int r=channel.read(in);
+			if (r<0) throw new IOException("Connection closed by server");
+			lastActivity=now;
+
+			in.flip();
+			try {
+				for (;;) {
+					// Don't buffer bodies nobody wants anymore
+					if (!inflight.isEmpty()) parser.setDiscard(inflight.getFirst().isCancelled());
+					if (!parser.parse(in)) break;
+					if (!responseComplete(now)) return;
+				}
+			} finally {
+				if (channel!=null) {
+					in.compact();
+					if (!in.hasRemaining()) {
+						// A header line did not fit
+						if (in.capacity()>=MAX_HEADER_BUFFER) throw new IOException("Response header too long");
+						ByteBuffer larger=ByteBuffer.allocate(in.capacity()*2);
+						in.flip();
+						larger.put(in);
+						in=larger;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Dispatch the response the parser just completed
+		 * @return false if the connection was closed
+		 */
+		private boolean responseComplete(long now) throws IOException {
+			if (inflight.isEmpty()) throw new IOException("Unsolicited response");
+			IORequest request=inflight.removeFirst();
+			readOnConnection++;
+
+			int statusCode=parser.statusCode;
+			long received=parser.getBodyBytes();
+			BufferInputStream body=parser.takeBody();
+			Validators responseValidators=parser.getValidators();
+			boolean close=parser.close;
+			parser.reset();
+			
+			loader.dispatchResponse(request, statusCode, body, received, responseValidators, now-request.writeTime);
+
+			if (close) {
+				// Anything still in flight goes out again on another connection
+				Log.d(Constants.LOG_TAG, "Server signalled to close the connection with " + inflight.size() + " responses outstanding.");
+				lost(new IOException("Connection closed by server"));
+				return false;
+			}
+
+			if (shouldAbandon()) {
+				abandon();
+				return false;
+			}
+
+			// Slide the window
+			fillWindow(now);
+			return channel!=null;
+		}
+
+		private boolean shouldAbandon() {
+			if (inflight.size()<HttpAgent.ABANDON_MIN_INFLIGHT) return false;
+			int cancelled=0;
+			for (IORequest request: inflight) {
+				if (request.isCancelled()) cancelled++;
+			}
+			return cancelled>=HttpAgent.ABANDON_MIN_INFLIGHT &&
+				cancelled>=inflight.size()*DefaultResourceLoader.DEFAULT_ABANDON_THRESHOLD;
+		}
+
+		/**
+		 * Close without learning anything about the host.  Requests still
+		 * wanted go back on the queue without counting as an attempt.
+		 */
+		private void abandon() {
+			Log.d(Constants.LOG_TAG, "Abandoning connection to " + profile + " with " + inflight.size() + " mostly cancelled responses outstanding");
+			IORequest[] unanswered=inflight.toArray(new IORequest[inflight.size()]);
+			inflight.clear();
+			close();
+			for (int i=0; i<unanswered.length; i++) {
+				IORequest request=unanswered[i];
+				if (request.isCancelled()) continue;
+				request.attempts--;
+				queue.add(request);
+			}
+		}
+
+		/**
+		 * The connection failed.  Learn from it, put unanswered requests back on
+		 * the queue (or fail them if they have been tried too many times) and
+		 * close.
+		 * @param cause
+		 */
+		void lost(IOException cause) {
+			if (closed) return;
+			Log.d(Constants.LOG_TAG, "Connection to " + profile + " lost after " + readOnConnection + " responses with " + inflight.size() + " outstanding: " + cause);
+			if (readOnConnection>0 && !inflight.isEmpty()) {
+				profile.observeConnectionLimit(readOnConnection);
+			}
+
+			if (!connected) {
+				// Could not connect.  Fail one waiting request, as a blocking
+				// worker would, so that a dead host does not spin.
+				IORequest request=queue.next(null, true);
+				if (request!=null && !loader.requeueIfOffline(request)) {
+					Log.e(Constants.LOG_TAG, "Error connecting for request " + request.uri, cause);
+					request.transportFailed=true;
+					request.finish(true, false, null);
+				}
+			}
+
+			IORequest[] unanswered=inflight.toArray(new IORequest[inflight.size()]);
+			inflight.clear();
+			close();
+
+			for (int i=0; i<unanswered.length; i++) {
+				IORequest request=unanswered[i];
+				if (loader.requeueIfOffline(request)) {
+					continue;
+				} else if (request.attempts>=HttpAgent.MAX_ATTEMPTS) {
+					Log.e(Constants.LOG_TAG, "Error running pipelined request " + request.uri, cause);
+					request.transportFailed=true;
+					request.finish(true, false, null);
+				} else if (!request.isCancelled()) {
+					queue.add(request);
+				}
+			}
+		}
+
+		void close() {
+			if (closed) return;
+			closed=true;
+			if (key!=null) key.cancel();
+			if (channel!=null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					Log.e(Constants.LOG_TAG, "Error closing channel", e);
+				}
+				channel=null;
+			}
+			parser.reset();
+
+			synchronized (NioHttpTransport.this) {
+				connections.remove(this);
+			}
+			siblings.remove(this);
+			if (siblings.isEmpty()) queueConnections.remove(queue);
+
+			// Let another connection pick up what is left
+			if (queue.hasWork()) signalFromSelector(queue);
+		}
+	}
+
+	private static IOException wrap(RuntimeException e) {
+		IOException ret=new IOException(e.toString());
+		ret.initCause(e);
+		return ret;
+	}
+}
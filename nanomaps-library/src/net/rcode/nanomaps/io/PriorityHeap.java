@@ -0,0 +1,184 @@
+package net.rcode.nanomaps.io;
+
+/**
+ * Binary min-heap of entries ordered by priority (lower first) and then
+ * by insertion order.  Entries track their own index so that they can be
+ * removed or re-prioritized in O(log n) without a scan.
+ * <p>
+ * Not synchronized.  An entry can be a member of only one heap at a time.
+ *
+ * @author stella
+ *
+ */
+class PriorityHeap<T extends PriorityHeap.Entry> {
+	static class Entry {
+		/**
+		 * Lower values are taken first.  Only modify through
+		 * PriorityHeap.update() while a member.
+		 */
+		int priority;
+		long sequence;
+		int heapIndex=-1;
+
+		public final boolean isQueued() {
+			return heapIndex>=0;
+		}
+		
+		/**
+		 * @return true if purge() should drop this entry
+		 */
+		boolean isDead() {
+			return false;
+		}
+	}
+
+	private Entry[] heap;
+	private int size;
+	private long nextSequence;
+
+	public PriorityHeap(int initialCapacity) {
+		heap=new Entry[initialCapacity>0 ? initialCapacity : 16];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	public void add(T entry) {
+		if (entry.heapIndex>=0) return;
+		if (size==heap.length) {
+			Entry[] newHeap=new Entry[heap.length*2];
+			System.arraycopy(heap, 0, newHeap, 0, size);
+			heap=newHeap;
+		}
+		entry.sequence=nextSequence++;
+		entry.heapIndex=size;
+		heap[size++]=entry;
+		siftUp(entry.heapIndex);
+	}
+
+	@SuppressWarnings("unchecked")
+	public T peek() {
+		if (size==0) return null;
+		return (T) heap[0];
+	}
+
+	public T poll() {
+		T ret=peek();
+		if (ret!=null) removeAt(0);
+		return ret;
+	}
+
+	/**
+	 * Remove the entry if it is a member
+	 * @param entry
+	 * @return true if removed
+	 */
+	public boolean remove(T entry) {
+		int index=entry.heapIndex;
+		if (index<0 || index>=size || heap[index]!=entry) return false;
+		removeAt(index);
+		return true;
+	}
+
+	/**
+	 * Change the priority of an entry, reordering it if it is a member
+	 * @param entry
+	 * @param priority
+	 */
+	public void update(T entry, int priority) {
+		int old=entry.priority;
+		entry.priority=priority;
+		int index=entry.heapIndex;
+		if (index<0 || index>=size || heap[index]!=entry) return;
+		if (priority<old) siftUp(index);
+		else if (priority>old) siftDown(index);
+	}
+
+	public void clear() {
+		for (int i=0; i<size; i++) {
+			heap[i].heapIndex=-1;
+			heap[i]=null;
+		}
+		size=0;
+	}
+
+	/**
+	 * Drop every dead entry and re-heapify in O(n)
+	 * @return number of entries dropped
+	 */
+	public int purge() {
+		int live=0;
+		for (int i=0; i<size; i++) {
+			Entry entry=heap[i];
+			if (entry.isDead()) {
+				entry.heapIndex=-1;
+			} else {
+				entry.heapIndex=live;
+				heap[live++]=entry;
+			}
+		}
+		int dropped=size-live;
+		for (int i=live; i<size; i++) heap[i]=null;
+		size=live;
+		for (int i=(size >>> 1)-1; i>=0; i--) siftDown(i);
+		return dropped;
+	}
+
+	private void removeAt(int index) {
+		Entry removed=heap[index];
+		removed.heapIndex=-1;
+		size--;
+		if (index==size) {
+			heap[size]=null;
+			return;
+		}
+
+		Entry last=heap[size];
+		heap[size]=null;
+		heap[index]=last;
+		last.heapIndex=index;
+		siftDown(index);
+		if (heap[index]==last) siftUp(index);
+	}
+
+	private static boolean less(Entry a, Entry b) {
+		if (a.priority!=b.priority) return a.priority<b.priority;
+		return a.sequence<b.sequence;
+	}
+
+	private void siftUp(int index) {
+		Entry entry=heap[index];
+		while (index>0) {
+			int parent=(index-1) >>> 1;
+			Entry p=heap[parent];
+			if (!less(entry, p)) break;
+			heap[index]=p;
+			p.heapIndex=index;
+			index=parent;
+		}
+		heap[index]=entry;
+		entry.heapIndex=index;
+	}
+
+	private void siftDown(int index) {
+		Entry entry=heap[index];
+		int half=size >>> 1;
+		while (index<half) {
+			int child=(index<<1) + 1;
+			int right=child+1;
+			if (right<size && less(heap[right], heap[child])) child=right;
+			Entry c=heap[child];
+			if (!less(c, entry)) break;
+			heap[index]=c;
+			c.heapIndex=index;
+			index=child;
+		}
+		heap[index]=entry;
+		entry.heapIndex=index;
+	}
+}
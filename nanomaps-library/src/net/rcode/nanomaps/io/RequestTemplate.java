@@ -0,0 +1,151 @@
+package net.rcode.nanomaps.io;
+
+import java.nio.ByteBuffer;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.RequestLine;
+import org.apache.http.message.BasicHttpRequest;
+
+/**
+ * Preformatted GET request for one host.  Everything but the path and
+ * any validators is encoded once, so writing a request is a couple of
+ * array copies into the connection's buffer.
+ * <p>
+ * Text is encoded as ISO-8859-1.  Characters outside it are written as
+ * '?' in the path, and validators that cannot be sent verbatim (outside
+ * ISO-8859-1 or containing control characters) are left off, making the
+ * request unconditional rather than sending a mangled value.
+ *
+ * @author stella
+ *
+ */
+public class RequestTemplate {
+	static final String USER_AGENT="nanomaps-droid";
+
+	private static final byte[] GET=latin1("GET ");
+	private static final byte[] IF_NONE_MATCH=latin1("If-None-Match: ");
+	private static final byte[] IF_MODIFIED_SINCE=latin1("If-Modified-Since: ");
+	private static final byte[] CRLF=latin1("\r\n");
+
+	private final String hostHeader;
+
+	/**
+	 * " HTTP/1.1" and the fixed headers
+	 */
+	private final byte[] tail;
+
+	public RequestTemplate(String host, int port, boolean secure) {
+		int defaultPort=secure ? 443 : 80;
+		hostHeader=port>0 && port!=defaultPort ? host + ':' + port : host;
+		tail=latin1(" HTTP/1.1\r\nHost: " + hostHeader + "\r\nUser-Agent: " + USER_AGENT + "\r\n");
+	}
+
+	public String getHostHeader() {
+		return hostHeader;
+	}
+
+	/**
+	 * @return encoded length of the request
+	 */
+	public int length(String path, Validators validators) {
+		int length=GET.length + path.length() + tail.length + CRLF.length;
+		if (validators!=null) {
+			if (isHeaderValue(validators.etag)) length+=IF_NONE_MATCH.length + validators.etag.length() + CRLF.length;
+			if (isHeaderValue(validators.lastModified)) length+=IF_MODIFIED_SINCE.length + validators.lastModified.length() + CRLF.length;
+		}
+		return length;
+	}
+
+	/**
+	 * Encode a request.  The caller makes sure length() bytes are free.
+	 * @param out
+	 * @param path encoded path and query
+	 * @param validators makes the request conditional if not null
+	 */
+	public void write(ByteBuffer out, String path, Validators validators) {
+		out.put(GET);
+		putLatin1(out, path);
+		out.put(tail);
+		if (validators!=null) {
+			if (isHeaderValue(validators.etag)) {
+				out.put(IF_NONE_MATCH);
+				putLatin1(out, validators.etag);
+				out.put(CRLF);
+			}
+			if (isHeaderValue(validators.lastModified)) {
+				out.put(IF_MODIFIED_SINCE);
+				putLatin1(out, validators.lastModified);
+				out.put(CRLF);
+			}
+		}
+		out.put(CRLF);
+	}
+
+	/**
+	 * Build the equivalent HttpRequest for code that wants one
+	 */
+	public HttpRequest toHttpRequest(String path, Validators validators) {
+		BasicHttpRequest request=new BasicHttpRequest("GET", path);
+		request.addHeader("Host", hostHeader);
+		request.addHeader("User-Agent", USER_AGENT);
+		if (validators!=null) {
+			if (isHeaderValue(validators.etag)) request.addHeader("If-None-Match", validators.etag);
+			if (isHeaderValue(validators.lastModified)) request.addHeader("If-Modified-Since", validators.lastModified);
+		}
+		return request;
+	}
+
+	/**
+	 * Encode an arbitrary request.  Only used for interactions that were
+	 * not built from a template.
+	 * @return the encoded request
+	 */
+	static byte[] encode(HttpRequest request) {
+		StringBuilder sb=new StringBuilder(256);
+		RequestLine line=request.getRequestLine();
+		sb.append(line.getMethod()).append(' ').append(line.getUri()).append(' ').append(line.getProtocolVersion()).append("\r\n");
+		Header[] headers=request.getAllHeaders();
+		for (int i=0; i<headers.length; i++) {
+			sb.append(headers[i].getName()).append(": ").append(headers[i].getValue()).append("\r\n");
+		}
+		sb.append("\r\n");
+		return latin1(sb.toString());
+	}
+
+	/**
+	 * @return true if value is present and can be sent as a header value
+	 * byte for byte
+	 */
+	static boolean isHeaderValue(String value) {
+		if (value==null) return false;
+		int length=value.length();
+		for (int i=0; i<length; i++) {
+			char c=value.charAt(i);
+			if (c>0xff || (c<' ' && c!='\t') || c==0x7f) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Encode one char as ISO-8859-1, '?' if unmappable
+	 */
+	private static byte latin1(char c) {
+		return c<=0xff ? (byte) c : (byte) '?';
+	}
+
+	private static void putLatin1(ByteBuffer out, String s) {
+		int length=s.length();
+		for (int i=0; i<length; i++) {
+			out.put(latin1(s.charAt(i)));
+		}
+	}
+
+	private static byte[] latin1(String s) {
+		byte[] ret=new byte[s.length()];
+		for (int i=0; i<ret.length; i++) {
+			ret[i]=latin1(s.charAt(i));
+		}
+		return ret;
+	}
+}
@@ -1,6 +1,7 @@
 package net.rcode.nanomaps.io;
 
 import java.io.InputStream;
+import java.util.List;
 
 import android.net.Uri;
 
@@ -10,6 +11,11 @@ import android.net.Uri;
  *
  */
 public abstract class ResourceLoader {
+	/**
+	 * Called on the looper of the thread that made the request.  Requests
+	 * made from a thread without a looper complete on whichever thread
+	 * finishes them.
+	 */
 	public interface Callback {
 		public void onComplete(Request request);
 	}
@@ -18,6 +24,37 @@ public abstract class ResourceLoader {
 		public Object transformResult(InputStream input, int size);
 	}
 	
+	/**
+	 * DataHandler for callers that cache what they load and want to revalidate
+	 * it with a conditional request.  Loaders that understand http send the
+	 * request validators as If-None-Match/If-Modified-Since and report the
+	 * response validators.  Other loaders just call transformResult().
+	 */
+	public interface ValidatingDataHandler extends DataHandler {
+		/**
+		 * @return validators of the copy the caller already has or null
+		 * to make an unconditional request
+		 */
+		public Validators getRequestValidators();
+		
+		/**
+		 * Called instead of transformResult() for a full response
+		 * @param input
+		 * @param size
+		 * @param responseValidators validators and freshness from the response
+		 * @return result or null on error
+		 */
+		public Object transformValidatedResult(InputStream input, int size, Validators responseValidators);
+		
+		/**
+		 * Called when the server answered that the caller's copy is still
+		 * current (304)
+		 * @param responseValidators validators and freshness from the response
+		 * @return result or null on error
+		 */
+		public Object transformNotModified(Validators responseValidators);
+	}
+	
 	public interface Request {
 		/**
 		 * Signals resource completion, either due to load or (non-retrying)
@@ -41,7 +78,53 @@ public abstract class ResourceLoader {
 		 * and may stop io operations in progress.
 		 */
 		public void cancel();
+		
+		/**
+		 * Set the load priority.  Lower values are loaded first.  This may
+		 * be called repeatedly while the request is outstanding to reorder
+		 * pending loads (ie. as the viewport moves).
+		 * @param priority
+		 */
+		public void setPriority(int priority);
+		
+		/**
+		 * @return the current load priority
+		 */
+		public int getPriority();
 	}
+	
+	/**
+	 * One load in a batch passed to loadResources()
+	 */
+	public static class BatchEntry {
+		public final CharSequence uri;
+		public final DataHandler dataHandler;
+		public final Callback callback;
+		public final int priority;
+		
+		/**
+		 * Set by loadResources()
+		 */
+		public Request request;
+		
+		public BatchEntry(CharSequence uri, DataHandler dataHandler, Callback callback, int priority) {
+			this.uri=uri;
+			this.dataHandler=dataHandler;
+			this.callback=callback;
+			this.priority=priority;
+		}
+	}
+	
+	/**
+	 * Priority of requests that have not been assigned one
+	 */
+	public static final int PRIORITY_DEFAULT=0;
+	
+	/**
+	 * Priority for bulk work (ie. offline downloads) that should only use
+	 * capacity that interactive loads leave over
+	 */
+	public static final int PRIORITY_BACKGROUND=1<<24;
 
 	/**
 	 * Initiate a resource load
@@ -59,4 +142,27 @@ public abstract class ResourceLoader {
 	 * @return Request
 	 */
 	public abstract Request loadResource(Uri uri, DataHandler dataHandler, Callback callback);
+	
+	/**
+	 * Initiate several loads at once, each at its given priority.  Loaders
+	 * that queue work submit the whole batch with one lock acquisition and
+	 * wakeup per queue instead of one per load.  The default just calls
+	 * loadResource() for each.
+	 * @param entries on return, each entry's request is set
+	 */
+	public void loadResources(List<BatchEntry> entries) {
+		for (int i=0; i<entries.size(); i++) {
+			BatchEntry entry=entries.get(i);
+			entry.request=loadResource(entry.uri, entry.dataHandler, entry.callback);
+			if (entry.priority!=PRIORITY_DEFAULT) entry.request.setPriority(entry.priority);
+		}
+	}
+	
+	/**
+	 * Hint that resources from the uri's host will be wanted soon so that
+	 * connections can be set up ahead of time.  The default does nothing.
+	 * @param uri
+	 */
+	public void preconnect(Uri uri) {
+	}
 }
@@ -0,0 +1,412 @@
+package net.rcode.nanomaps.io;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import org.apache.http.HttpStatus;
+
+/**
+ * Incremental http/1.1 response parser shared by HttpAgent and the
+ * NioHttpTransport.  Fed whatever bytes have arrived and keeps its place
+ * between calls.  Bodies are framed directly (Content-Length or chunked)
+ * into pooled arrays.
+ * <p>
+ * Lines are scanned in place.  Only the headers the loader uses are
+ * looked at and only the validator values are turned into Strings, so a
+ * typical tile response allocates nothing but its BufferInputStream.
+ * <p>
+ * Malformed responses, lines longer than MAX_LINE_LENGTH and bodies
+ * longer than MAX_BODY_LENGTH are rejected with a ProtocolException.
+ *
+ * @author stella
+ *
+ */
+public class ResponseParser {
+	/**
+	 * Longest status, header or chunk size line accepted
+	 */
+	public static final int MAX_LINE_LENGTH=65536;
+
+	/**
+	 * Largest body accepted, whether fixed length or chunked
+	 */
+	public static final long MAX_BODY_LENGTH=32*1024*1024;
+
+	static final int STATE_STATUS=0;
+	static final int STATE_HEADERS=1;
+	static final int STATE_BODY=2;
+	static final int STATE_CHUNK_SIZE=3;
+	static final int STATE_CHUNK_DATA=4;
+	static final int STATE_CHUNK_END=5;
+	static final int STATE_TRAILERS=6;
+
+	private ByteArrayPool pool;
+	private int state;
+	private long remaining;
+	private byte[] body;
+	private int bodyLength;
+	private long bodyBytes;
+	private boolean discard;
+
+	/**
+	 * Bounds of the line found by nextLine(), excluding the terminator
+	 */
+	private int lineStart;
+	private int lineEnd;
+
+	int statusCode;
+	long contentLength;
+	boolean chunked;
+	boolean close;
+	String etag;
+	String lastModified;
+	String cacheControl;
+	String expires;
+
+	public ResponseParser(ByteArrayPool pool) {
+		this.pool=pool;
+		reset();
+	}
+
+	/**
+	 * Prepare for the next response, releasing any partial body
+	 */
+	public void reset() {
+		if (body!=null) {
+			pool.release(body);
+			body=null;
+		}
+		state=STATE_STATUS;
+		bodyLength=0;
+		bodyBytes=0;
+		discard=false;
+		remaining=0;
+		statusCode=0;
+		contentLength=-1;
+		chunked=false;
+		close=false;
+		etag=null;
+		lastModified=null;
+		cacheControl=null;
+		expires=null;
+	}
+
+	/**
+	 * Skip over the body of the current response instead of buffering it
+	 * @param discard
+	 */
+	public void setDiscard(boolean discard) {
+		if (discard && body!=null) {
+			pool.release(body);
+			body=null;
+		}
+		this.discard=discard;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return the Content-Length header or -1 if none
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	public boolean isChunked() {
+		return chunked;
+	}
+
+	/**
+	 * @return true if the server will close the connection after this response
+	 */
+	public boolean isClose() {
+		return close;
+	}
+
+	/**
+	 * @return true once the current response's headers have been read
+	 */
+	public boolean hasHeaders() {
+		return state!=STATE_STATUS && state!=STATE_HEADERS;
+	}
+
+	/**
+	 * @return body bytes received for the current response, whether
+	 * buffered or discarded
+	 */
+	public long getBodyBytes() {
+		return bodyBytes;
+	}
+
+	/**
+	 * @return the completed body or null if the response had none or it
+	 * was discarded.  The parser no longer owns it.
+	 */
+	public BufferInputStream takeBody() {
+		if (body==null) return null;
+		BufferInputStream ret=new BufferInputStream(body, 0, bodyLength, pool);
+		body=null;
+		return ret;
+	}
+
+	/**
+	 * @return validators from the current response's headers
+	 */
+	public Validators getValidators() {
+		return Validators.fromHeaders(etag, lastModified, cacheControl, expires, System.currentTimeMillis());
+	}
+
+	/**
+	 * Consume as much of in as possible
+	 * @param in buffer in drain mode
+	 * @return true if a response was completed.  Call reset() before
+	 * parsing the next one.
+	 * @throws ProtocolException on malformed or oversized responses
+	 */
+	public boolean parse(ByteBuffer in) throws ProtocolException {
+		for (;;) {
+			switch (state) {
+			case STATE_STATUS: {
+				if (!nextLine(in)) return false;
+				if (lineEnd==lineStart) continue;	// Tolerate stray CRLF
+				statusCode=parseStatus(in, lineStart, lineEnd);
+				state=STATE_HEADERS;
+				break;
+			}
+			case STATE_HEADERS: {
+				if (!nextLine(in)) return false;
+				if (lineEnd>lineStart) {
+					header(in, lineStart, lineEnd);
+				} else if (statusCode<200) {
+					// Interim response.  The real one follows.
+					reset();
+				} else if (statusCode==HttpStatus.SC_NOT_MODIFIED || statusCode==HttpStatus.SC_NO_CONTENT) {
+					state=STATE_BODY;
+					return true;
+				} else if (chunked) {
+					state=STATE_CHUNK_SIZE;
+				} else if (contentLength>=0) {
+					if (contentLength>MAX_BODY_LENGTH) {
+						throw new ProtocolException("Response body too long: " + contentLength);
+					}
+					state=STATE_BODY;
+					if (contentLength==0) return true;
+					if (!discard) ensureCapacity((int) contentLength);
+					remaining=contentLength;
+				} else {
+					throw new ProtocolException("Response was neither fixed length or chunked");
+				}
+				break;
+			}
+			case STATE_BODY:
+			case STATE_CHUNK_DATA: {
+				int count=(int) Math.min(remaining, in.remaining());
+				if (count==0) return false;
+				if (discard) {
+					in.position(in.position()+count);
+				} else {
+					ensureCapacity(bodyLength+count);
+					in.get(body, bodyLength, count);
+					bodyLength+=count;
+				}
+				bodyBytes+=count;
+				remaining-=count;
+				if (remaining>0) return false;
+				if (state==STATE_BODY) return true;
+				state=STATE_CHUNK_END;
+				break;
+			}
+			case STATE_CHUNK_SIZE: {
+				if (!nextLine(in)) return false;
+				remaining=parseChunkSize(in, lineStart, lineEnd);
+				if (bodyBytes+remaining>MAX_BODY_LENGTH) {
+					throw new ProtocolException("Response body too long");
+				}
+				state=remaining>0 ? STATE_CHUNK_DATA : STATE_TRAILERS;
+				break;
+			}
+			case STATE_CHUNK_END: {
+				if (!nextLine(in)) return false;
+				state=STATE_CHUNK_SIZE;
+				break;
+			}
+			case STATE_TRAILERS: {
+				if (!nextLine(in)) return false;
+				if (lineEnd==lineStart) {
+					state=STATE_BODY;
+					return true;
+				}
+				break;
+			}
+			}
+		}
+	}
+
+	/**
+	 * Find the next CRLF (or LF) terminated line and consume it
+	 * @return false if a whole line has not arrived yet
+	 * @throws ProtocolException if no line ends within MAX_LINE_LENGTH
+	 */
+	private boolean nextLine(ByteBuffer in) throws ProtocolException {
+		int start=in.position();
+		int limit=in.limit();
+		for (int i=start; i<limit; i++) {
+			if (in.get(i)=='\n') {
+				int end=i;
+				if (end>start && in.get(end-1)=='\r') end--;
+				lineStart=start;
+				lineEnd=end;
+				in.position(i+1);
+				return true;
+			}
+		}
+		if (limit-start>=MAX_LINE_LENGTH) throw new ProtocolException("Response line too long");
+		return false;
+	}
+
+	private static int parseStatus(ByteBuffer in, int start, int end) throws ProtocolException {
+		// HTTP/x.y nnn
+		if (end-start<12 || !regionMatches(in, start, start+5, "http/") || in.get(start+8)!=' ' ||
+				(end-start>12 && in.get(start+12)!=' ')) {
+			throw new ProtocolException("Bad status line: " + text(in, start, end));
+		}
+		int code=0;
+		for (int i=start+9; i<start+12; i++) {
+			int digit=in.get(i)-'0';
+			if (digit<0 || digit>9) throw new ProtocolException("Bad status line: " + text(in, start, end));
+			code=code*10 + digit;
+		}
+		if (code<100) throw new ProtocolException("Bad status line: " + text(in, start, end));
+		return code;
+	}
+
+	private static long parseChunkSize(ByteBuffer in, int start, int end) throws ProtocolException {
+		long size=0;
+		int digits=0;
+		for (int i=start; i<end; i++) {
+			int c=in.get(i);
+			int digit;
+			if (c>='0' && c<='9') digit=c-'0';
+			else if (c>='a' && c<='f') digit=c-'a'+10;
+			else if (c>='A' && c<='F') digit=c-'A'+10;
+			else if (c==';') break;	// Extension
+			else if (c==' ' || c=='\t') {
+				if (digits>0) break;
+				continue;
+			} else throw new ProtocolException("Bad chunk size: " + text(in, start, end));
+			size=(size<<4) + digit;
+			if (size>MAX_BODY_LENGTH) throw new ProtocolException("Chunk too long: " + text(in, start, end));
+			digits++;
+		}
+		if (digits==0) throw new ProtocolException("Bad chunk size: " + text(in, start, end));
+		return size;
+	}
+
+	private void header(ByteBuffer in, int start, int end) {
+		int colon=-1;
+		for (int i=start; i<end; i++) {
+			if (in.get(i)==':') {
+				colon=i;
+				break;
+			}
+		}
+		if (colon<=start) return;
+
+		int nameEnd=colon;
+		while (nameEnd>start && isSpace(in.get(nameEnd-1))) nameEnd--;
+		int valueStart=colon+1;
+		while (valueStart<end && isSpace(in.get(valueStart))) valueStart++;
+		int valueEnd=end;
+		while (valueEnd>valueStart && isSpace(in.get(valueEnd-1))) valueEnd--;
+
+		// Dispatch on length before comparing
+		switch (nameEnd-start) {
+		case 4:
+			if (regionMatches(in, start, nameEnd, "etag")) etag=text(in, valueStart, valueEnd);
+			break;
+		case 7:
+			if (regionMatches(in, start, nameEnd, "expires")) expires=text(in, valueStart, valueEnd);
+			break;
+		case 10:
+			if (regionMatches(in, start, nameEnd, "connection")) {
+				if (contains(in, valueStart, valueEnd, "close")) close=true;
+			}
+			break;
+		case 13:
+			if (regionMatches(in, start, nameEnd, "last-modified")) lastModified=text(in, valueStart, valueEnd);
+			else if (regionMatches(in, start, nameEnd, "cache-control")) cacheControl=text(in, valueStart, valueEnd);
+			break;
+		case 14:
+			if (regionMatches(in, start, nameEnd, "content-length")) contentLength=parseLength(in, valueStart, valueEnd);
+			break;
+		case 17:
+			if (regionMatches(in, start, nameEnd, "transfer-encoding")) {
+				if (contains(in, valueStart, valueEnd, "chunked")) chunked=true;
+			}
+			break;
+		}
+	}
+
+	/**
+	 * @return the length, -1 if it does not parse or Long.MAX_VALUE if it
+	 * is beyond MAX_BODY_LENGTH
+	 */
+	private static long parseLength(ByteBuffer in, int start, int end) {
+		if (start==end) return -1;
+		long value=0;
+		for (int i=start; i<end; i++) {
+			int digit=in.get(i)-'0';
+			if (digit<0 || digit>9) return -1;
+			// Saturate rather than overflow
+			if (value>MAX_BODY_LENGTH) value=Long.MAX_VALUE;
+			else value=value*10 + digit;
+		}
+		return value;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b==' ' || b=='\t';
+	}
+
+	/**
+	 * @param lower lower case ascii to compare against
+	 * @return true if the bytes from start to end are lower, ignoring case
+	 */
+	private static boolean regionMatches(ByteBuffer in, int start, int end, String lower) {
+		if (end-start!=lower.length()) return false;
+		for (int i=0; i<lower.length(); i++) {
+			int c=in.get(start+i);
+			if (c>='A' && c<='Z') c+='a'-'A';
+			if (c!=lower.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private static boolean contains(ByteBuffer in, int start, int end, String lower) {
+		for (int i=start; i+lower.length()<=end; i++) {
+			if (regionMatches(in, i, i+lower.length(), lower)) return true;
+		}
+		return false;
+	}
+
+	private static String text(ByteBuffer in, int start, int end) {
+		char[] chars=new char[end-start];
+		for (int i=0; i<chars.length; i++) {
+			chars[i]=(char) (in.get(start+i) & 0xff);
+		}
+		return new String(chars);
+	}
+
+	private void ensureCapacity(int size) {
+		if (body==null) {
+			body=pool.get(size);
+		} else if (body.length<size) {
+			byte[] larger=pool.get(Math.max(size, body.length*2));
+			System.arraycopy(body, 0, larger, 0, bodyLength);
+			pool.release(body);
+			body=larger;
+		}
+	}
+}
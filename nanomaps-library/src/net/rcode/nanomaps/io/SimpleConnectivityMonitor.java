@@ -0,0 +1,41 @@
+package net.rcode.nanomaps.io;
+
+/**
+ * ConnectivityMonitor whose state is set explicitly.  Useful for tests and
+ * for applications that track connectivity themselves.
+ * 
+ * @author stella
+ *
+ */
+public class SimpleConnectivityMonitor implements ConnectivityMonitor {
+	private boolean connected;
+	private Listener listener;
+	
+	public SimpleConnectivityMonitor(boolean connected) {
+		this.connected=connected;
+	}
+	
+	@Override
+	public synchronized boolean isConnected() {
+		return connected;
+	}
+	
+	@Override
+	public synchronized void setListener(Listener listener) {
+		this.listener=listener;
+	}
+	
+	/**
+	 * Change the state, notifying the listener if it is different
+	 * @param connected
+	 */
+	public void setConnected(boolean connected) {
+		Listener localListener;
+		synchronized (this) {
+			if (this.connected==connected) return;
+			this.connected=connected;
+			localListener=listener;
+		}
+		if (localListener!=null) localListener.onConnectivityChanged(connected);
+	}
+}
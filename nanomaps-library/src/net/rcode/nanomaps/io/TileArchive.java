@@ -0,0 +1,179 @@
+package net.rcode.nanomaps.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only single file tile archive, memory mapped so that a lookup is a
+ * binary search of the index and a slice of the mapped data with no
+ * copying or per-tile files.  Archives are built with TileArchiveWriter.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * header   int magic ("NMTA"), int version, int count, int maxLength,
+ *          long indexOffset, long dataOffset
+ * index    count * (long key, long offset, int length) sorted by key
+ * data     tile blobs in key order
+ * </pre>
+ * Keys are the level in the top byte and the Morton (quadkey) order of
+ * x/y below it, so the tiles of an area sit near each other in the file.
+ * Data offsets are relative to dataOffset.
+ * <p>
+ * Mapped memory is released by the garbage collector, not by close().
+ * Instances are safe to use from multiple threads.
+ *
+ * @author stella
+ *
+ */
+public class TileArchive {
+	public static final int MAGIC=0x4e4d5441;
+	public static final int VERSION=1;
+	static final int HEADER_SIZE=32;
+	static final int ENTRY_SIZE=20;
+	public static final int MAX_LEVEL=28;
+
+	/**
+	 * Data is mapped in segments of this size, each overlapping the next by
+	 * maxLength so that every blob lies wholly inside one segment
+	 */
+	static final long SEGMENT_SIZE=1L<<30;
+
+	private File file;
+	private RandomAccessFile raf;
+	private int count;
+	private int maxLength;
+	private ByteBuffer index;
+	private ByteBuffer[] segments;
+
+	public TileArchive(File file) throws IOException {
+		this.file=file;
+		raf=new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel=raf.getChannel();
+			ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position())<0) throw new IOException("Truncated tile archive " + file);
+			}
+			header.flip();
+			if (header.getInt()!=MAGIC) throw new IOException("Not a tile archive " + file);
+			int version=header.getInt();
+			if (version!=VERSION) throw new IOException("Unsupported tile archive version " + version);
+			count=header.getInt();
+			maxLength=header.getInt();
+			long indexOffset=header.getLong();
+			long dataOffset=header.getLong();
+
+			index=channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long)count * ENTRY_SIZE);
+
+			long dataLength=channel.size() - dataOffset;
+			int segmentCount=(int) Math.max(1, (dataLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			segments=new ByteBuffer[segmentCount];
+			for (int i=0; i<segmentCount; i++) {
+				long start=i * SEGMENT_SIZE;
+				long length=Math.min(dataLength - start, SEGMENT_SIZE + maxLength);
+				segments[i]=channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + start, Math.max(0, length));
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param level
+	 * @param tileX
+	 * @param tileY
+	 * @return the index key for a tile
+	 */
+	public static long key(int level, int tileX, int tileY) {
+		return ((long)level << 56) | (spread(tileX) << 1) | spread(tileY);
+	}
+
+	/**
+	 * Spread the low 28 bits of v out to the even bits of a long
+	 */
+	private static long spread(int v) {
+		long x=v & 0x0fffffffL;
+		x=(x | (x << 16)) & 0x0000ffff0000ffffL;
+		x=(x | (x << 8)) & 0x00ff00ff00ff00ffL;
+		x=(x | (x << 4)) & 0x0f0f0f0f0f0f0f0fL;
+		x=(x | (x << 2)) & 0x3333333333333333L;
+		x=(x | (x << 1)) & 0x5555555555555555L;
+		return x;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return number of tiles in the archive
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param level
+	 * @param tileX
+	 * @param tileY
+	 * @return true if the archive has the tile
+	 */
+	public boolean contains(int level, int tileX, int tileY) {
+		return find(key(level, tileX, tileY))>=0;
+	}
+
+	/**
+	 * Look up a tile.  No bytes are copied.
+	 * @param level
+	 * @param tileX
+	 * @param tileY
+	 * @return a read-only buffer positioned over the tile's bytes or null
+	 */
+	public ByteBuffer get(int level, int tileX, int tileY) {
+		if (level<0 || level>MAX_LEVEL) return null;
+		int entry=find(key(level, tileX, tileY));
+		if (entry<0) return null;
+
+		int position=entry * ENTRY_SIZE;
+		long offset=index.getLong(position + 8);
+		int length=index.getInt(position + 16);
+		ByteBuffer segment=segments[(int) (offset / SEGMENT_SIZE)];
+		ByteBuffer ret=segment.duplicate();
+		int start=(int) (offset % SEGMENT_SIZE);
+		ret.limit(start + length);
+		ret.position(start);
+		return ret.slice();
+	}
+
+	/**
+	 * Binary search of the index.  Uses only absolute gets so it is safe
+	 * to run concurrently.
+	 * @return entry number or -1
+	 */
+	private int find(long key) {
+		int low=0, high=count-1;
+		while (low<=high) {
+			int mid=(low+high) >>> 1;
+			long midKey=index.getLong(mid * ENTRY_SIZE);
+			if (midKey<key) low=mid+1;
+			else if (midKey>key) high=mid-1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Close the file.  Buffers already returned remain valid.
+	 */
+	public void close() {
+		try {
+			raf.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package net.rcode.nanomaps.io;
+
+import java.nio.ByteBuffer;
+
+import net.rcode.nanomaps.util.Constants;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Loads tiles out of a TileArchive.  Resources are named
+ * tilearchive:///level/x/y.  The index lookup and the decode both run on
+ * the DecodeExecutor, so the caller only parses the uri.  The mapped bytes
+ * go straight to the DataHandler as a ByteBufferInputStream.
+ *
+ * @author stella
+ *
+ */
+public class TileArchiveResourceLoader extends ResourceLoader {
+	public static final String SCHEME="tilearchive";
+
+	private TileArchive archive;
+	private DecodeExecutor executor=DecodeExecutor.getDefault();
+
+	public TileArchiveResourceLoader(TileArchive archive) {
+		this.archive=archive;
+	}
+
+	public TileArchive getArchive() {
+		return archive;
+	}
+
+	@Override
+	public Request loadResource(Uri uri, DataHandler dataHandler, Callback callback) {
+		LocalTileRequest request=new ArchiveRequest(dataHandler, callback);
+		if (!request.parse(uri, SCHEME)) {
+			Log.e(Constants.LOG_TAG, "Not a tile archive uri: " + uri);
+			request.finish(false, null);
+			return request;
+		}
+
+		executor.submit(request.decodeTask());
+		return request;
+	}
+
+	/**
+	 * Finds its tile in the archive on the decode thread
+	 */
+	private class ArchiveRequest extends LocalTileRequest {
+		ArchiveRequest(DataHandler dataHandler, Callback callback) {
+			super(dataHandler, callback);
+		}
+
+		@Override
+		boolean lookup() {
+			ByteBuffer data=archive.get(level, tileX, tileY);
+			if (data==null) return false;
+			body=new ByteBufferInputStream(data);
+			bodyLength=data.remaining();
+			return true;
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package net.rcode.nanomaps.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Builds a TileArchive.  Tiles can be added from a directory tree of
+ * level/x/y.ext files, from files one at a time or from bytes (ie. out of
+ * a DiskCache, see RegionDownloader.exportTo()).  Bytes are spooled to a
+ * temporary file so that memory use is only the index.  Adding the same
+ * tile twice keeps the last one.
+ * <p>
+ * Can also be run from the command line:
+ * <pre>
+ * java net.rcode.nanomaps.io.TileArchiveWriter tiledir archive.nmta
+ * </pre>
+ *
+ * @author stella
+ *
+ */
+public class TileArchiveWriter {
+	static class Entry {
+		long key;
+		int length;
+
+		/**
+		 * Source file or null if spooled
+		 */
+		File file;
+		long spoolOffset;
+	}
+
+	private static final Comparator<Entry> KEY_ORDER=new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			return a.key<b.key ? -1 : (a.key==b.key ? 0 : 1);
+		}
+	};
+
+	private ArrayList<Entry> entries=new ArrayList<Entry>();
+	private File spoolFile;
+	private RandomAccessFile spool;
+
+	/**
+	 * @return number of tiles added
+	 */
+	public int getCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Add a tile from memory
+	 * @param level
+	 * @param tileX
+	 * @param tileY
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void add(int level, int tileX, int tileY, byte[] data, int offset, int length) throws IOException {
+		checkLevel(level);
+		if (spool==null) {
+			spoolFile=File.createTempFile("nmta", ".spool");
+			spool=new RandomAccessFile(spoolFile, "rw");
+		}
+		Entry entry=new Entry();
+		entry.key=TileArchive.key(level, tileX, tileY);
+		entry.length=length;
+		entry.spoolOffset=spool.length();
+		spool.seek(entry.spoolOffset);
+		spool.write(data, offset, length);
+		entries.add(entry);
+	}
+
+	/**
+	 * Add a tile that will be copied from a file when the archive is written
+	 * @param level
+	 * @param tileX
+	 * @param tileY
+	 * @param file
+	 */
+	public void add(int level, int tileX, int tileY, File file) {
+		checkLevel(level);
+		long length=file.length();
+		if (length>Integer.MAX_VALUE) throw new IllegalArgumentException("Tile too large: " + file);
+		Entry entry=new Entry();
+		entry.key=TileArchive.key(level, tileX, tileY);
+		entry.length=(int) length;
+		entry.file=file;
+		entries.add(entry);
+	}
+
+	/**
+	 * Add every file under root laid out as level/x/y.ext (the usual
+	 * http tile layout).  Anything else is ignored.
+	 * @param root
+	 * @return number of tiles added
+	 */
+	public int addDirectory(File root) {
+		int added=0;
+		File[] levels=root.listFiles();
+		if (levels==null) return 0;
+		for (int l=0; l<levels.length; l++) {
+			int level=parseName(levels[l]);
+			if (level<0 || level>TileArchive.MAX_LEVEL || !levels[l].isDirectory()) continue;
+			File[] columns=levels[l].listFiles();
+			if (columns==null) continue;
+			for (int c=0; c<columns.length; c++) {
+				int tileX=parseName(columns[c]);
+				if (tileX<0 || !columns[c].isDirectory()) continue;
+				File[] tiles=columns[c].listFiles();
+				if (tiles==null) continue;
+				for (int t=0; t<tiles.length; t++) {
+					int tileY=parseName(tiles[t]);
+					if (tileY<0 || !tiles[t].isFile()) continue;
+					add(level, tileX, tileY, tiles[t]);
+					added++;
+				}
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * @return the integer before any extension in the file's name or -1
+	 */
+	private static int parseName(File file) {
+		String name=file.getName();
+		int dot=name.indexOf('.');
+		if (dot>=0) name=name.substring(0, dot);
+		try {
+			return Integer.parseInt(name);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void checkLevel(int level) {
+		if (level<0 || level>TileArchive.MAX_LEVEL) throw new IllegalArgumentException("Level out of range: " + level);
+	}
+
+	/**
+	 * Write the archive.  The writer can continue to be used afterwards.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		// Sort is stable so the last of any duplicates is last in its run
+		ArrayList<Entry> sorted=new ArrayList<Entry>(entries);
+		Collections.sort(sorted, KEY_ORDER);
+		ArrayList<Entry> unique=new ArrayList<Entry>(sorted.size());
+		for (int i=0; i<sorted.size(); i++) {
+			if (i+1<sorted.size() && sorted.get(i+1).key==sorted.get(i).key) continue;
+			unique.add(sorted.get(i));
+		}
+
+		int maxLength=0;
+		for (int i=0; i<unique.size(); i++) {
+			maxLength=Math.max(maxLength, unique.get(i).length);
+		}
+		long indexOffset=TileArchive.HEADER_SIZE;
+		long dataOffset=indexOffset + (long)unique.size() * TileArchive.ENTRY_SIZE;
+
+		DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+		try {
+			out.writeInt(TileArchive.MAGIC);
+			out.writeInt(TileArchive.VERSION);
+			out.writeInt(unique.size());
+			out.writeInt(maxLength);
+			out.writeLong(indexOffset);
+			out.writeLong(dataOffset);
+
+			long offset=0;
+			for (int i=0; i<unique.size(); i++) {
+				Entry entry=unique.get(i);
+				out.writeLong(entry.key);
+				out.writeLong(offset);
+				out.writeInt(entry.length);
+				offset+=entry.length;
+			}
+
+			byte[] buffer=new byte[Math.max(maxLength, 1)];
+			for (int i=0; i<unique.size(); i++) {
+				Entry entry=unique.get(i);
+				if (entry.file!=null) {
+					InputStream in=new FileInputStream(entry.file);
+					try {
+						readFully(in, buffer, entry.length);
+					} finally {
+						in.close();
+					}
+				} else {
+					spool.seek(entry.spoolOffset);
+					spool.readFully(buffer, 0, entry.length);
+				}
+				out.write(buffer, 0, entry.length);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+		int position=0;
+		while (position<length) {
+			int r=in.read(buffer, position, length-position);
+			if (r<0) throw new IOException("File changed while writing archive");
+			position+=r;
+		}
+	}
+
+	/**
+	 * Release the spool file
+	 */
+	public void close() {
+		if (spool!=null) {
+			try {
+				spool.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+			spool=null;
+			spoolFile.delete();
+		}
+		entries.clear();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length!=2) {
+			System.err.println("Usage: TileArchiveWriter <tile directory> <archive file>");
+			System.exit(1);
+		}
+		TileArchiveWriter writer=new TileArchiveWriter();
+		try {
+			int count=writer.addDirectory(new File(args[0]));
+			writer.write(new File(args[1]));
+			System.out.println("Wrote " + count + " tiles to " + args[1]);
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package net.rcode.nanomaps.io;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Cache validators and freshness for a resource as reported by an http
+ * server.  Used to make conditional requests (If-None-Match /
+ * If-Modified-Since) for cached resources that have expired.
+ *
+ * @author stella
+ *
+ */
+public class Validators {
+	/**
+	 * ETag response header or null
+	 */
+	public String etag;
+
+	/**
+	 * Last-Modified response header (verbatim) or null
+	 */
+	public String lastModified;
+
+	/**
+	 * Wall clock time (ms) after which the resource must be revalidated.
+	 * Zero if not known.
+	 */
+	public long expires;
+
+	/**
+	 * The response had Cache-Control: no-store and must not be cached
+	 */
+	public boolean noStore;
+
+	public Validators() {
+	}
+
+	public Validators(String etag, String lastModified, long expires) {
+		this.etag=etag;
+		this.lastModified=lastModified;
+		this.expires=expires;
+	}
+
+	/**
+	 * @return true if there is something to send in a conditional request
+	 */
+	public boolean isConditional() {
+		return etag!=null || lastModified!=null;
+	}
+
+	/**
+	 * @param now wall clock time
+	 * @return true if the resource can be used without revalidation
+	 */
+	public boolean isFresh(long now) {
+		return expires<=0 || now<expires;
+	}
+
+	/**
+	 * Fill in anything missing from this (ie. from a 304 that does not repeat
+	 * the validators) with values from other.
+	 * @param other
+	 */
+	public void merge(Validators other) {
+		if (other==null) return;
+		if (etag==null) etag=other.etag;
+		if (lastModified==null) lastModified=other.lastModified;
+	}
+
+	/**
+	 * Build from raw response header values.  Every Cache-Control directive
+	 * is read before any is applied: no-cache and no-store always make the
+	 * response expire immediately, wherever they appear, and no-store also
+	 * sets noStore.  Otherwise max-age takes precedence over Expires.  If
+	 * neither is present, expires is left at zero for the caller to apply a
+	 * default.
+	 * @param etag
+	 * @param lastModified
+	 * @param cacheControl
+	 * @param expiresHeader
+	 * @param now wall clock time the response was received
+	 * @return validators
+	 */
+	public static Validators fromHeaders(String etag, String lastModified, String cacheControl, String expiresHeader, long now) {
+		Validators ret=new Validators(etag, lastModified, 0);
+
+		if (cacheControl!=null) {
+			long maxAge=-1;
+			boolean noCache=false;
+			String[] directives=cacheControl.split(",");
+			for (int i=0; i<directives.length; i++) {
+				String directive=directives[i].trim().toLowerCase(Locale.US);
+				if (directive.startsWith("max-age=")) {
+					try {
+						if (maxAge<0) maxAge=Long.parseLong(directive.substring(8).trim());
+					} catch (NumberFormatException e) {
+						// Ignore
+					}
+				} else if (directive.equals("no-cache") || directive.startsWith("no-cache=")) {
+					noCache=true;
+				} else if (directive.equals("no-store")) {
+					ret.noStore=true;
+				}
+			}
+
+			if (noCache || ret.noStore) {
+				// Always revalidate
+				ret.expires=now;
+				return ret;
+			}
+			if (maxAge>=0) {
+				ret.expires=now + maxAge*1000;
+				return ret;
+			}
+		}
+
+		if (expiresHeader!=null) {
+			long time=parseHttpDate(expiresHeader);
+			// Invalid dates (ie. "0") mean already expired
+			ret.expires=time>0 ? time : now;
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Parse an RFC 1123 date
+	 * @param value
+	 * @return time in ms or -1 if not parseable
+	 */
+	static long parseHttpDate(String value) {
+		SimpleDateFormat format=new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return format.parse(value.trim()).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Validators(etag=" + etag + ",lastModified=" + lastModified + ",expires=" + expires + (noStore ? ",noStore" : "") + ")";
+	}
+}
@@ -1,12 +1,15 @@
 package net.rcode.nanomaps.tile;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+import net.rcode.nanomaps.io.BufferInputStream;
+import net.rcode.nanomaps.io.ByteBufferInputStream;
+import net.rcode.nanomaps.io.LoadTracer;
 import net.rcode.nanomaps.io.ResourceLoader;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 
 /**
  * Tile implementation for dealing with bitmaps.
@@ -20,9 +23,31 @@ public class BitmapTile extends Tile {
 	 */
 	ResourceLoader.Request request;
 	
+	/**
+	 * The loaded bitmap if STATE_LOADED
+	 */
+	Bitmap bitmap;
+	
+	/**
+	 * If not null, the loaded bitmap is put here when the tile is destroyed
+	 */
+	TileCache cache;
+	
 	private static final ResourceLoader.DataHandler BITMAP_DECODER=new ResourceLoader.DataHandler() {
 		@Override
 		public Object transformResult(InputStream in, int size) {
+			if (in instanceof BufferInputStream) {
+				// Already in memory.  Decode without copying.
+				BufferInputStream body=(BufferInputStream) in;
+				return BitmapFactory.decodeByteArray(body.getBuffer(), body.getOffset(), body.getLength());
+			}
+			if (in instanceof ByteBufferInputStream) {
+				ByteBuffer buffer=((ByteBufferInputStream) in).getBuffer();
+				if (buffer.hasArray()) {
+					return BitmapFactory.decodeByteArray(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				}
+				// Mapped.  Stream straight out of the mapping.
+			}
 			return BitmapFactory.decodeStream(in);
 		}
 	};
@@ -31,8 +56,18 @@ public class BitmapTile extends Tile {
 		super(key);
 	}
 	
+	public BitmapTile(TileKey key, TileCache cache) {
+		super(key);
+		this.cache=cache;
+	}
+	
 	@Override
 	public void destroy() {
+		if (cache!=null && bitmap!=null && getState()==STATE_LOADED) {
+			cache.put(getKey(), bitmap);
+		}
+		bitmap=null;
+		
 		super.destroy();
 		if (request!=null) {
 			request.cancel();
@@ -40,8 +75,40 @@ public class BitmapTile extends Tile {
 		}
 	}
 	
+	@Override
+	public void setLoadPriority(int priority) {
+		if (request!=null) request.setPriority(priority);
+	}
 	
-
+	/**
+	 * Sets the tile content to an already decoded bitmap
+	 * @param bitmap
+	 */
+	public void setBitmap(Bitmap bitmap) {
+		this.bitmap=bitmap;
+		updateContent(new BitmapDrawable(bitmap), STATE_LOADED);
+	}
+	
+	private final ResourceLoader.Callback loadCallback=new ResourceLoader.Callback() {
+		@Override
+		public void onComplete(ResourceLoader.Request request) {
+			// Clear out our request
+			BitmapTile.this.request=null;
+			
+			if (!request.isLoaded()) {
+				// Error
+				updateContent(getDrawable(), STATE_ERROR);
+			} else {
+				// Success.  A traced load ends when the tile is first drawn.
+				LoadTracer.Trace loadTrace=LoadTracer.traceOf(request);
+				if (loadTrace!=null) {
+					loadTrace.claim();
+					trace=loadTrace;
+				}
+				setBitmap((Bitmap) request.getResults());
+			}
+		}
+	};
 	
 	/**
 	 * Schedules this tile for loading from the given loader
@@ -50,24 +117,26 @@ public class BitmapTile extends Tile {
 	 */
 	public void load(ResourceLoader loader, CharSequence uri) {
 		if (request!=null) throw new IllegalStateException();
-		request=loader.loadResource(uri,
-			BITMAP_DECODER,
-			new ResourceLoader.Callback() {
-				@Override
-				public void onComplete(ResourceLoader.Request request) {
-					// Clear out our request
-					BitmapTile.this.request=null;
-					
-					if (!request.isLoaded()) {
-						// Error
-						updateContent(getDrawable(), STATE_ERROR);
-					} else {
-						// Success
-						Drawable drawable=new BitmapDrawable((Bitmap) request.getResults());
-						updateContent(drawable, STATE_LOADED);
-					}
-				}
-			});
+		request=loader.loadResource(uri, BITMAP_DECODER, loadCallback);
+	}
+	
+	/**
+	 * Describe this tile's load for ResourceLoader.loadResources().  Call
+	 * loadSubmitted() with the entry once the batch has been submitted.
+	 * @param uri
+	 * @param priority
+	 * @return entry
+	 */
+	public ResourceLoader.BatchEntry createLoad(CharSequence uri, int priority) {
+		if (request!=null) throw new IllegalStateException();
+		return new ResourceLoader.BatchEntry(uri, BITMAP_DECODER, loadCallback, priority);
+	}
+	
+	/**
+	 * @param entry entry from createLoad() that has been submitted
+	 */
+	public void loadSubmitted(ResourceLoader.BatchEntry entry) {
+		request=entry.request;
 	}
 
 }
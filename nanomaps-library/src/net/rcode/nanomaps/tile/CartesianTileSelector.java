@@ -31,16 +31,107 @@ import net.rcode.nanomaps.util.DoubleBounds;
 public abstract class CartesianTileSelector extends TileSelector {
 	private int tileSize=256;
 	
+	/**
+	 * A rectangular block of tiles at one native level, as computed by
+	 * selectRange().  Keys are created on demand so that large ranges can be
+	 * walked without materializing them.
+	 */
+	public static final class TileRange {
+		private final CartesianTileSelector source;
+		private final double nativeResolution;
+		private final double nativeOriginX;
+		private final double nativeOriginY;
+		private final boolean xinversion;
+		private final boolean yinversion;
+		private final int tileSize;
+		
+		public final int level;
+		public final int startX;
+		public final int startY;
+		public final int endX;
+		public final int endY;
+		
+		TileRange(CartesianTileSelector source, int level, double nativeResolution,
+				double nativeOriginX, double nativeOriginY, boolean xinversion, boolean yinversion,
+				int tileSize, int startX, int startY, int endX, int endY) {
+			this.source=source;
+			this.level=level;
+			this.nativeResolution=nativeResolution;
+			this.nativeOriginX=nativeOriginX;
+			this.nativeOriginY=nativeOriginY;
+			this.xinversion=xinversion;
+			this.yinversion=yinversion;
+			this.tileSize=tileSize;
+			this.startX=startX;
+			this.startY=startY;
+			this.endX=endX;
+			this.endY=endY;
+		}
+		
+		/**
+		 * @return number of tiles in the range
+		 */
+		public long getCount() {
+			return (long)(endX-startX+1) * (endY-startY+1);
+		}
+		
+		/**
+		 * @param i tile x in [startX, endX]
+		 * @param j tile y in [startY, endY]
+		 * @return key for the tile
+		 */
+		public CartesianTileKey createKey(int i, int j) {
+			double projectedX;
+			double projectedY;
+			
+			if (yinversion) projectedY=nativeOriginY - j*tileSize;
+			else projectedY=nativeOriginY + j*tileSize;
+			
+			if (xinversion) projectedX=nativeOriginX - i*tileSize;
+			else projectedX=nativeOriginX + i*tileSize;
+			
+			return new CartesianTileKey(source,
+					level,
+					i,
+					j,
+					nativeResolution,
+					projectedX,
+					projectedY,
+					tileSize);
+		}
+	}
+	
 	@Override
 	public void select(Projection projection, double resolution, 
 			double x1, double y1, double x2, double y2, 
 			Collection<TileKey> destination) {
-		DoubleBounds projectedBounds=projection.getProjectedExtent();
-		boolean xinversion=projection.isXAxisInverted();
-		boolean yinversion=projection.isYAxisInverted();
 		int nativeLevel=(int) Math.round(projection.toLevel(resolution));
 			// Round to the closest integral resolution
 			// TODO: Constrain this based on supported levels configured on the selector
+		TileRange range=selectRange(projection, nativeLevel, x1, y1, x2, y2);
+		
+		for (int j=range.startY; j<=range.endY; j++) {
+			for (int i=range.startX; i<=range.endX; i++) {
+				destination.add(range.createKey(i, j));
+			}
+		}
+	}
+	
+	/**
+	 * Compute the tiles at a native level that cover a projected rectangle
+	 * @param projection
+	 * @param nativeLevel
+	 * @param x1
+	 * @param y1
+	 * @param x2
+	 * @param y2
+	 * @return range of tiles
+	 */
+	public TileRange selectRange(Projection projection, int nativeLevel,
+			double x1, double y1, double x2, double y2) {
+		DoubleBounds projectedBounds=projection.getProjectedExtent();
+		boolean xinversion=projection.isXAxisInverted();
+		boolean yinversion=projection.isYAxisInverted();
 		double nativeResolution=projection.fromLevel(nativeLevel);
 		
 		// Now get all coordinates into pixel units at nativeResolution
@@ -79,29 +170,8 @@ public abstract class CartesianTileSelector extends TileSelector {
 		int endX=(int) Math.floor(Math.max(x1, x2)/tileSize);
 		int endY=(int) Math.floor(Math.max(y1, y2)/tileSize);
 		
-		for (int j=startY; j<=endY; j++) {
-			for (int i=startX; i<=endX; i++) {
-				double projectedX;
-				double projectedY;
-				
-				if (yinversion) projectedY=nativeOriginY - j*tileSize;
-				else projectedY=nativeOriginY + j*tileSize;
-				
-				if (xinversion) projectedX=nativeOriginX - i*tileSize;
-				else projectedX=nativeOriginX + i*tileSize;
-				
-				
-				CartesianTileKey tk=new CartesianTileKey(this,
-						nativeLevel,
-						i,
-						j,
-						nativeResolution,
-						projectedX,
-						projectedY,
-						tileSize);
-				
-				destination.add(tk);
-			}
-		}
+		return new TileRange(this, nativeLevel, nativeResolution,
+				nativeOriginX, nativeOriginY, xinversion, yinversion,
+				tileSize, startX, startY, endX, endY);
 	}
 }
@@ -0,0 +1,30 @@
+package net.rcode.nanomaps.tile;
+
+import java.io.File;
+
+import net.rcode.nanomaps.io.MBTilesResourceLoader;
+
+/**
+ * Displays tiles from an MBTiles file.  Tiles are read and decoded
+ * through an MBTilesResourceLoader and otherwise behave like any other
+ * UriTileSelector tiles (memory cache, previews, priorities).
+ *
+ * @author stella
+ *
+ */
+public class MBTilesTileSelector extends UriTileSelector {
+	public static final String PATTERN=MBTilesResourceLoader.SCHEME + ":///${level}/${tilex}/${tiley}";
+
+	public MBTilesTileSelector(MBTilesResourceLoader loader) {
+		super(PATTERN, loader);
+	}
+
+	public MBTilesTileSelector(File file) {
+		this(new MBTilesResourceLoader(file));
+	}
+
+	@Override
+	public MBTilesResourceLoader getLoader() {
+		return (MBTilesResourceLoader) super.getLoader();
+	}
+}
@@ -7,6 +7,9 @@ import java.util.Comparator;
 import net.rcode.nanomaps.MapLayer;
 import net.rcode.nanomaps.MapState;
 import net.rcode.nanomaps.MapStateAware;
+import net.rcode.nanomaps.io.CompletionMailbox;
+import net.rcode.nanomaps.io.LoadTracer;
+import net.rcode.nanomaps.io.LoaderMetrics;
 import net.rcode.nanomaps.tile.TileSet.Record;
 import net.rcode.nanomaps.transition.Transition;
 import net.rcode.nanomaps.transition.TransitionController;
@@ -16,6 +19,7 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Paint.Style;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
 import android.view.View;
 
 /**
@@ -41,8 +45,35 @@ public class MapTileView extends View implements MapStateAware, Tile.StateChange
 	private TileSet oldTileSet=new TileSet();
 	private ArrayList<TileKey> updatedKeys=new ArrayList<TileKey>(32);
 	private ArrayList<TileSet.Record> newTileRecords=new ArrayList<TileSet.Record>(32);
+	private ArrayList<TileKey> resolveKeys=new ArrayList<TileKey>(32);
+	private ArrayList<TileSet.Record> resolveRecords=new ArrayList<TileSet.Record>(32);
+	private ArrayList<Tile> resolvedTiles=new ArrayList<Tile>(32);
+	private int[] resolvePriorities=new int[32];
+	
+	/**
+	 * Union of tiles changed during the current completion drain
+	 */
+	private Rect dirtyRect=new Rect();
+	private final Runnable invalidateDirty=new Runnable() {
+		public void run() {
+			if (!dirtyRect.isEmpty()) {
+				invalidate(dirtyRect);
+				dirtyRect.setEmpty();
+			}
+		}
+	};
 	private TransitionController transitionController;
 	
+	/**
+	 * Time to full screen recording.  fullScreenStart is the uptime of the
+	 * first update that left visible tiles unsettled or -1.  pendingTiles
+	 * counts the current records flagged pending so that completions do
+	 * not rescan the set.
+	 */
+	private LoaderMetrics.MapStats mapStats;
+	private long fullScreenStart=-1;
+	private int pendingTiles;
+	
 	public MapTileView(Context context, TileSelector selector) {
 		super(context);
 		this.selector=selector;
@@ -55,6 +86,8 @@ public class MapTileView extends View implements MapStateAware, Tile.StateChange
 	public void setSelector(TileSelector selector) {
 		if (selector==this.selector) return;
 		this.selector=selector;
+		// Attached views preconnect here, others in onAttachedToWindow()
+		if (selector!=null && getWindowToken()!=null) selector.preconnect();
 		
 		// Reset state
 		currentTileSet.clear();
@@ -64,12 +97,32 @@ public class MapTileView extends View implements MapStateAware, Tile.StateChange
 		updatedKeys.clear();
 		newTileRecords.clear();
 		transitionController=null;
+		pendingTiles=0;
 		
 		if (mapState!=null) {
 			mapStateUpdated(mapState, true);
 		}
 	}
 	
+	/**
+	 * Record the time from a map state update until every visible tile has
+	 * loaded.  If updates arrive while tiles are still loading, the time is
+	 * measured from the first of them.
+	 * @param metrics registry or null to stop recording
+	 * @param name name to report this view under
+	 */
+	public void setMetrics(LoaderMetrics metrics, String name) {
+		this.mapStats=metrics!=null ? metrics.getMapStats(name) : null;
+		this.fullScreenStart=-1;
+	}
+	
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		// Get connections going before the first screen of tiles is wanted
+		if (selector!=null) selector.preconnect();
+	}
+	
 	public MapLayer getContentView() {
 		return (MapLayer) getParent();
 	}
@@ -123,10 +176,61 @@ public class MapTileView extends View implements MapStateAware, Tile.StateChange
 		}
 		
 		sortTileSetRecords(newTileRecords);
-		for (int i=0; i<newTileRecords.size(); i++) {
-			TileSet.Record record=newTileRecords.get(i);
-			if (record.tile==null) record.tile=selector.resolve(record.key);
-		}		
+		resolveTiles(newTileRecords);
+		prioritizeLoads(transitionTileSet);
+	}
+	
+	/**
+	 * Resolve tiles for every record that does not have one with a single
+	 * call to the selector so that their loads are submitted as one batch
+	 * in priority order.
+	 * @param records
+	 */
+	private void resolveTiles(ArrayList<TileSet.Record> records) {
+		int centerX=getWidth()/2, centerY=getHeight()/2;
+		resolveKeys.clear();
+		resolveRecords.clear();
+		resolvedTiles.clear();
+		for (int i=0; i<records.size(); i++) {
+			TileSet.Record record=records.get(i);
+			if (record.tile!=null) continue;
+			if (resolvePriorities.length<=resolveKeys.size()) {
+				int[] grown=new int[Math.max(16, resolvePriorities.length*2)];
+				System.arraycopy(resolvePriorities, 0, grown, 0, resolvePriorities.length);
+				resolvePriorities=grown;
+			}
+			resolvePriorities[resolveKeys.size()]=scoreRecord(record, centerX, centerY);
+			resolveKeys.add(record.key);
+			resolveRecords.add(record);
+		}
+		if (resolveKeys.isEmpty()) return;
+		
+		selector.resolve(resolveKeys, resolvePriorities, resolvedTiles);
+		for (int i=0; i<resolveRecords.size(); i++) {
+			resolveRecords.get(i).tile=resolvedTiles.get(i);
+		}
+		resolveRecords.clear();
+		resolvedTiles.clear();
+	}
+	
+	/**
+	 * Rescore every tile in the set that is still loading by its distance
+	 * from the center of the view so that pending loads for tiles
+	 * under the viewport center go out first.
+	 * @param tileSet
+	 */
+	protected void prioritizeLoads(TileSet tileSet) {
+		int centerX=getWidth()/2, centerY=getHeight()/2;
+		for (TileSet.Record record: tileSet.records()) {
+			Tile tile=record.tile;
+			if (tile!=null && tile.getState()!=Tile.STATE_LOADED) {
+				tile.setLoadPriority(scoreRecord(record, centerX, centerY));
+			}
+		}
+	}
+	
+	static int scoreRecord(TileSet.Record record, int centerX, int centerY) {
+		return Math.abs(record.displayRect.centerX()-centerX) + Math.abs(record.displayRect.centerY()-centerY);
 	}
 	
 	@Override
@@ -202,17 +306,15 @@ public class MapTileView extends View implements MapStateAware, Tile.StateChange
 		// after we've iterated over all of them.  Think of this as the "initialize new
 		// tiles" loop
 		sortTileSetRecords(newTileRecords);
+		if (!transitionLocked) resolveTiles(newTileRecords);
 		for (int i=0; i<newTileRecords.size(); i++) {
 			TileSet.Record record=newTileRecords.get(i);
 			
 			if (record.tile==null) {
-				// Initialize the tile.  When in transitionLocked, only create
-				// temporary tiles (we don't want to do extra IO loading stuff that's going away)
-				if (transitionLocked) {
-					record.tile=new Tile(record.key);
-					record.tile.setTemporary(true);
-				}
-				else record.tile=selector.resolve(record.key);
+				// When in transitionLocked, only create temporary tiles (we
+				// don't want to do extra IO loading stuff that's going away)
+				record.tile=new Tile(record.key);
+				record.tile.setTemporary(true);
 			}
 			
 			// If there is no image, give it a chance to create a preview
@@ -231,6 +333,15 @@ public class MapTileView extends View implements MapStateAware, Tile.StateChange
 		currentTileSet.sweep();
 		oldTileSet.clear();
 		
+		// Reorder everything still loading against the new viewport
+		prioritizeLoads(currentTileSet);
+		
+		if (mapStats!=null) {
+			countPendingTiles();
+			if (pendingTiles==0) fullScreenStart=-1;
+			else if (fullScreenStart<0) fullScreenStart=SystemClock.uptimeMillis();
+		}
+		
 		invalidate();
 	}
 	
@@ -243,9 +354,7 @@ public class MapTileView extends View implements MapStateAware, Tile.StateChange
 		}
 		@Override
 		public int compare(Record object1, Record object2) {
-			int score1=Math.abs(object1.displayRect.centerX()-centerX) + Math.abs(object1.displayRect.centerY()-centerY);
-			int score2=Math.abs(object2.displayRect.centerX()-centerX) + Math.abs(object2.displayRect.centerY()-centerY);
-			return score1-score2;
+			return scoreRecord(object1, centerX, centerY) - scoreRecord(object2, centerX, centerY);
 		}
 	}
 	
@@ -285,6 +394,10 @@ public class MapTileView extends View implements MapStateAware, Tile.StateChange
 					// Draw it
 					drawable.setBounds(record.displayRect);
 					drawable.draw(canvas);
+					if (record.tile.trace!=null) {
+						record.tile.trace.end(LoadTracer.DRAWN);
+						record.tile.trace=null;
+					}
 				} else {
 					// Clear the area
 					//Log.d(Constants.LOG_TAG, "Clearing " + record.displayRect);
@@ -308,8 +421,41 @@ public class MapTileView extends View implements MapStateAware, Tile.StateChange
 		// If it is still in the current set, invalidate its bounds
 		TileSet.Record record=currentTileSet.get(tile.getKey());
 		if (record!=null) {
-			invalidate(record.displayRect);
+			// Completions arrive in batches.  Invalidate once per batch.
+			if (CompletionMailbox.runAfterDrain(invalidateDirty)) dirtyRect.union(record.displayRect);
+			else invalidate(record.displayRect);
+			
+			if (record.pending && isSettled(tile)) {
+				record.pending=false;
+				pendingTiles--;
+				if (mapStats!=null && fullScreenStart>=0 && pendingTiles==0) {
+					mapStats.fullScreen(SystemClock.uptimeMillis()-fullScreenStart);
+					fullScreenStart=-1;
+				}
+			}
 		}
 	}
 	
+	/**
+	 * Flag every record in the current set whose tile has not settled and
+	 * count them.  Only needed after the set changes.
+	 */
+	private void countPendingTiles() {
+		pendingTiles=0;
+		for (TileSet.Record record: currentTileSet.records()) {
+			record.pending=record.tile==null || !isSettled(record.tile);
+			if (record.pending) pendingTiles++;
+		}
+	}
+	
+	/**
+	 * @return true if the tile will not change again without a new load.
+	 * Failed tiles count so that one error does not hold off full screen
+	 * forever.
+	 */
+	private static boolean isSettled(Tile tile) {
+		int state=tile.getState();
+		return state==Tile.STATE_LOADED || state==Tile.STATE_ERROR;
+	}
+	
 }
@@ -0,0 +1,476 @@
+package net.rcode.nanomaps.tile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import net.rcode.nanomaps.Coordinate;
+import net.rcode.nanomaps.Projection;
+import net.rcode.nanomaps.io.CachingResourceLoader;
+import net.rcode.nanomaps.io.DiskCache;
+import net.rcode.nanomaps.io.ResourceLoader;
+import net.rcode.nanomaps.io.TileArchiveWriter;
+import net.rcode.nanomaps.util.DoubleBounds;
+import android.os.Handler;
+
+/**
+ * Bulk loads every tile of a UriTileSelector that covers a region over a
+ * range of levels so that it can be viewed later without a network.  The
+ * selector's loader should be a CachingResourceLoader: tiles are stored
+ * as they pass through it and tiles it already holds fresh are skipped.
+ * <p>
+ * Keys are enumerated lazily with the same math as
+ * CartesianTileSelector.select(), so regions of millions of tiles cost no
+ * more memory than small ones.  At most getConcurrency() loads are
+ * outstanding at a time and all of them are at PRIORITY_BACKGROUND so they
+ * only use capacity left over by the map.
+ * <p>
+ * All methods must be called on a thread with a Looper.  The listener is
+ * called on that thread.
+ *
+ * @author stella
+ *
+ */
+public class RegionDownloader {
+	public interface Listener {
+		/**
+		 * Called after each tile is stored, skipped or failed
+		 * @param downloader
+		 */
+		public void onProgress(RegionDownloader downloader);
+
+		/**
+		 * Called once when every tile has been dealt with
+		 * @param downloader
+		 */
+		public void onComplete(RegionDownloader downloader);
+	}
+
+	public static final int DEFAULT_CONCURRENCY=4;
+
+	/**
+	 * Bytes per tile assumed for estimates until some have been loaded
+	 */
+	public static final int DEFAULT_TILE_BYTES=15000;
+
+	/**
+	 * Keys examined per pass before yielding the looper
+	 */
+	static final int SCAN_BATCH=256;
+
+	/**
+	 * Loads the bytes (which the CachingResourceLoader stores on the way by)
+	 * and reports their size without decoding
+	 */
+	static final ResourceLoader.DataHandler STORE_HANDLER=new ResourceLoader.DataHandler() {
+		@Override
+		public Object transformResult(InputStream input, int size) {
+			return Integer.valueOf(size);
+		}
+	};
+
+	private UriTileSelector selector;
+	private ResourceLoader loader;
+	private CachingResourceLoader cachingLoader;
+	private Projection projection;
+	private int minLevel;
+	private int maxLevel;
+
+	/**
+	 * Projected bounds of the region and, for polygons, the projected
+	 * vertices
+	 */
+	private double minx, miny, maxx, maxy;
+	private double[] polygonX;
+	private double[] polygonY;
+
+	private Listener listener;
+	private int concurrency=DEFAULT_CONCURRENCY;
+	private Handler handler;
+	private ArrayList<ResourceLoader.Request> outstanding=new ArrayList<ResourceLoader.Request>();
+	private boolean started;
+	private boolean paused;
+	private boolean cancelled;
+	private boolean complete;
+
+	private KeyIterator keys;
+	private boolean exhausted;
+
+	private long stored;
+	private long skipped;
+	private long failed;
+	private long storedBytes;
+
+	private Runnable pumpRunnable=new Runnable() {
+		public void run() {
+			pump();
+		}
+	};
+
+	private ResourceLoader.Callback callback=new ResourceLoader.Callback() {
+		@Override
+		public void onComplete(ResourceLoader.Request request) {
+			if (!outstanding.remove(request)) return;
+			if (request.isLoaded()) {
+				stored++;
+				Object size=request.getResults();
+				if (size instanceof Integer && ((Integer)size).intValue()>0) {
+					storedBytes+=((Integer)size).intValue();
+				}
+			} else {
+				failed++;
+			}
+			if (listener!=null) listener.onProgress(RegionDownloader.this);
+			pump();
+		}
+	};
+
+	/**
+	 * Download a rectangular region
+	 * @param selector
+	 * @param projection
+	 * @param globalBounds bounds in global (lng/lat) coordinates
+	 * @param minLevel
+	 * @param maxLevel
+	 */
+	public RegionDownloader(UriTileSelector selector, Projection projection, DoubleBounds globalBounds, int minLevel, int maxLevel) {
+		this(selector, projection, minLevel, maxLevel);
+		setProjectedBounds(
+				projection.forwardX(globalBounds.getMinx()), projection.forwardY(globalBounds.getMiny()),
+				projection.forwardX(globalBounds.getMaxx()), projection.forwardY(globalBounds.getMaxy()));
+	}
+
+	/**
+	 * Download the tiles that intersect a polygon
+	 * @param selector
+	 * @param projection
+	 * @param polygon vertices in global (lng/lat) coordinates
+	 * @param minLevel
+	 * @param maxLevel
+	 */
+	public RegionDownloader(UriTileSelector selector, Projection projection, Coordinate[] polygon, int minLevel, int maxLevel) {
+		this(selector, projection, minLevel, maxLevel);
+		if (polygon.length<3) throw new IllegalArgumentException("Polygon must have at least 3 vertices");
+		polygonX=new double[polygon.length];
+		polygonY=new double[polygon.length];
+		double x1=Double.MAX_VALUE, y1=Double.MAX_VALUE, x2=-Double.MAX_VALUE, y2=-Double.MAX_VALUE;
+		for (int i=0; i<polygon.length; i++) {
+			polygonX[i]=projection.forwardX(polygon[i].getX());
+			polygonY[i]=projection.forwardY(polygon[i].getY());
+			x1=Math.min(x1, polygonX[i]);
+			y1=Math.min(y1, polygonY[i]);
+			x2=Math.max(x2, polygonX[i]);
+			y2=Math.max(y2, polygonY[i]);
+		}
+		setProjectedBounds(x1, y1, x2, y2);
+	}
+
+	private RegionDownloader(UriTileSelector selector, Projection projection, int minLevel, int maxLevel) {
+		this.selector=selector;
+		this.loader=selector.getLoader();
+		if (loader instanceof CachingResourceLoader) cachingLoader=(CachingResourceLoader) loader;
+		this.projection=projection;
+		this.minLevel=Math.max(minLevel, projection.getMinLevel());
+		this.maxLevel=Math.min(maxLevel, projection.getMaxLevel());
+		this.keys=new KeyIterator();
+	}
+
+	/**
+	 * Clamp to the projection's extent.  The max edges are pulled in
+	 * slightly so that a region touching the edge of the world does not
+	 * select a column or row past it.
+	 */
+	private void setProjectedBounds(double x1, double y1, double x2, double y2) {
+		DoubleBounds extent=projection.getProjectedExtent();
+		double epsilon=projection.fromLevel(projection.getMaxLevel()) * 1e-3;
+		minx=Math.max(Math.min(x1, x2), extent.getMinx());
+		miny=Math.max(Math.min(y1, y2), extent.getMiny());
+		maxx=Math.min(Math.max(x1, x2), extent.getMaxx()-epsilon);
+		maxy=Math.min(Math.max(y1, y2), extent.getMaxy()-epsilon);
+	}
+
+	public void setListener(Listener listener) {
+		this.listener=listener;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Set the maximum number of loads outstanding at once.  Takes effect
+	 * as loads complete.
+	 * @param concurrency
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency=concurrency>0 ? concurrency : 1;
+		if (started) pump();
+	}
+
+	/**
+	 * @return number of tiles in the region.  For polygons this is the
+	 * count for the bounding box and so is an upper bound.
+	 */
+	public long getEstimatedTileCount() {
+		long count=0;
+		for (int l=minLevel; l<=maxLevel; l++) {
+			count+=rangeFor(l).getCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return estimated bytes to store the region, based on the average
+	 * size of tiles loaded so far
+	 */
+	public long getEstimatedBytes() {
+		long perTile=stored>0 ? storedBytes/stored : DEFAULT_TILE_BYTES;
+		return getEstimatedTileCount() * perTile;
+	}
+
+	/**
+	 * @return tiles loaded and stored
+	 */
+	public long getStoredCount() {
+		return stored;
+	}
+
+	/**
+	 * @return tiles that were already stored and fresh
+	 */
+	public long getSkippedCount() {
+		return skipped;
+	}
+
+	public long getFailedCount() {
+		return failed;
+	}
+
+	public long getStoredBytes() {
+		return storedBytes;
+	}
+
+	public boolean isPaused() {
+		return paused;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Begin downloading
+	 */
+	public void start() {
+		if (started) return;
+		started=true;
+		handler=new Handler();
+		pump();
+	}
+
+	/**
+	 * Stop issuing new loads.  Loads already outstanding finish.
+	 */
+	public void pause() {
+		paused=true;
+	}
+
+	public void resume() {
+		if (!paused) return;
+		paused=false;
+		if (started) pump();
+	}
+
+	/**
+	 * Stop and cancel outstanding loads.  Tiles already stored are kept.
+	 */
+	public void cancel() {
+		cancelled=true;
+		for (int i=0; i<outstanding.size(); i++) {
+			outstanding.get(i).cancel();
+		}
+		outstanding.clear();
+		if (handler!=null) handler.removeCallbacks(pumpRunnable);
+	}
+
+	private CartesianTileSelector.TileRange rangeFor(int l) {
+		return selector.selectRange(projection, l, minx, miny, maxx, maxy);
+	}
+
+	/**
+	 * Walks the keys of the region level by level
+	 */
+	private class KeyIterator {
+		private CartesianTileSelector.TileRange range;
+		private int level=minLevel;
+		private int nextX;
+		private int nextY;
+
+		/**
+		 * @return the next key in the region or null when done
+		 */
+		public CartesianTileKey next() {
+			for (;;) {
+				if (range==null) {
+					if (level>maxLevel) return null;
+					range=rangeFor(level);
+					nextX=range.startX;
+					nextY=range.startY;
+				}
+				if (nextY>range.endY) {
+					range=null;
+					level++;
+					continue;
+				}
+
+				CartesianTileKey key=range.createKey(nextX, nextY);
+				if (++nextX>range.endX) {
+					nextX=range.startX;
+					nextY++;
+				}
+				if (polygonX==null || intersectsPolygon(key)) return key;
+			}
+		}
+	}
+
+	/**
+	 * Copy every tile of the region held by the CachingResourceLoader's
+	 * disk cache into an archive.  This does io and should not be called
+	 * on the ui thread.
+	 * @param writer
+	 * @return number of tiles copied
+	 * @throws IOException
+	 */
+	public int exportTo(TileArchiveWriter writer) throws IOException {
+		if (cachingLoader==null) throw new IllegalStateException("Selector does not load through a CachingResourceLoader");
+		DiskCache cache=cachingLoader.getCache();
+		KeyIterator iterator=new KeyIterator();
+		int copied=0;
+		for (;;) {
+			CartesianTileKey key=iterator.next();
+			if (key==null) break;
+			byte[] data=cache.get(selector.getPattern().uriFor(key).toString());
+			if (data==null) continue;
+			writer.add(key.level, key.tileX, key.tileY, data, 0, data.length);
+			copied++;
+		}
+		return copied;
+	}
+
+	/**
+	 * Issue loads until the concurrency limit is reached, yielding the
+	 * looper after each batch of keys.  Loads are submitted together at
+	 * PRIORITY_BACKGROUND so they never sit in the queue at default priority.
+	 */
+	private void pump() {
+		if (paused || cancelled || complete) return;
+
+		int scanned=0;
+		boolean yield=false;
+		ArrayList<ResourceLoader.BatchEntry> batch=new ArrayList<ResourceLoader.BatchEntry>();
+		while (outstanding.size()<concurrency) {
+			while (outstanding.size()+batch.size()<concurrency) {
+				if (++scanned>SCAN_BATCH) {
+					yield=true;
+					break;
+				}
+
+				CartesianTileKey key=keys.next();
+				if (key==null) {
+					exhausted=true;
+					break;
+				}
+
+				String uri=selector.getPattern().uriFor(key).toString();
+				if (cachingLoader!=null && cachingLoader.isFresh(uri)) {
+					skipped++;
+					continue;
+				}
+
+				batch.add(new ResourceLoader.BatchEntry(uri, STORE_HANDLER, callback, ResourceLoader.PRIORITY_BACKGROUND));
+			}
+
+			if (batch.isEmpty()) break;
+			loader.loadResources(batch);
+			for (int i=0; i<batch.size(); i++) {
+				ResourceLoader.Request request=batch.get(i).request;
+				if (!request.isComplete()) outstanding.add(request);
+			}
+			batch.clear();
+			if (yield || exhausted) break;
+		}
+
+		if (yield) {
+			handler.post(pumpRunnable);
+			return;
+		}
+
+		if (outstanding.isEmpty() && exhausted) {
+			complete=true;
+			if (listener!=null) listener.onComplete(this);
+		} else if (scanned>1 && listener!=null) {
+			// Report skips
+			listener.onProgress(this);
+		}
+	}
+
+	/**
+	 * @return true if the tile's projected rectangle intersects the polygon
+	 */
+	private boolean intersectsPolygon(CartesianTileKey key) {
+		double res=key.getResolution();
+		double x1=key.getScaledX() * res;
+		double y1=key.getScaledY() * res;
+		double x2=x1 + (projection.isXAxisInverted() ? -key.getSize() : key.getSize()) * res;
+		double y2=y1 + (projection.isYAxisInverted() ? -key.getSize() : key.getSize()) * res;
+		return rectIntersectsPolygon(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2),
+				polygonX, polygonY);
+	}
+
+	static boolean rectIntersectsPolygon(double rx1, double ry1, double rx2, double ry2, double[] px, double[] py) {
+		int n=px.length;
+
+		// Polygon vertex inside the rect
+		for (int i=0; i<n; i++) {
+			if (px[i]>=rx1 && px[i]<=rx2 && py[i]>=ry1 && py[i]<=ry2) return true;
+		}
+
+		// Rect inside the polygon
+		if (pointInPolygon((rx1+rx2)/2, (ry1+ry2)/2, px, py)) return true;
+
+		// Edges crossing
+		for (int i=0, j=n-1; i<n; j=i++) {
+			if (segmentsIntersect(px[j], py[j], px[i], py[i], rx1, ry1, rx2, ry1) ||
+					segmentsIntersect(px[j], py[j], px[i], py[i], rx2, ry1, rx2, ry2) ||
+					segmentsIntersect(px[j], py[j], px[i], py[i], rx2, ry2, rx1, ry2) ||
+					segmentsIntersect(px[j], py[j], px[i], py[i], rx1, ry2, rx1, ry1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static boolean pointInPolygon(double x, double y, double[] px, double[] py) {
+		boolean inside=false;
+		for (int i=0, j=px.length-1; i<px.length; j=i++) {
+			if (((py[i]>y) != (py[j]>y)) &&
+					(x < (px[j]-px[i]) * (y-py[i]) / (py[j]-py[i]) + px[i])) {
+				inside=!inside;
+			}
+		}
+		return inside;
+	}
+
+	private static boolean segmentsIntersect(double ax, double ay, double bx, double by,
+			double cx, double cy, double dx, double dy) {
+		double d1=cross(cx, cy, dx, dy, ax, ay);
+		double d2=cross(cx, cy, dx, dy, bx, by);
+		double d3=cross(ax, ay, bx, by, cx, cy);
+		double d4=cross(ax, ay, bx, by, dx, dy);
+		return ((d1>0 && d2<0) || (d1<0 && d2>0)) && ((d3>0 && d4<0) || (d3<0 && d4>0));
+	}
+
+	private static double cross(double ox, double oy, double ax, double ay, double bx, double by) {
+		return (ax-ox) * (by-oy) - (ay-oy) * (bx-ox);
+	}
+}
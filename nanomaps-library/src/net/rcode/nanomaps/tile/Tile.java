@@ -1,5 +1,6 @@
 package net.rcode.nanomaps.tile;
 
+import net.rcode.nanomaps.io.LoadTracer;
 import net.rcode.nanomaps.util.CompositeDrawable;
 import android.graphics.Rect;
 import android.graphics.RectF;
@@ -30,6 +31,12 @@ public class Tile {
 	private StateChangedListener stateChangedListener;
 	private boolean temporary;
 	
+	/**
+	 * Trace of the load that produced the content, ended by the view when
+	 * the content is first drawn
+	 */
+	LoadTracer.Trace trace;
+	
 	public Tile(TileKey key) {
 		this.key=key;
 	}
@@ -98,11 +105,25 @@ public class Tile {
 		this.stateChangedListener = stateChangedListener;
 	}
 	
+	/**
+	 * Hint how urgently this tile's content is needed relative to other
+	 * tiles.  Lower is more urgent.  Tiles that load asynchronously pass this
+	 * on to their pending load.  The default implementation does nothing.
+	 * @param priority
+	 */
+	public void setLoadPriority(int priority) {
+	}
+	
 	/**
 	 * Called when the Tile is no longer needed.  No further methods will be called
 	 * on tile by the requestor after this call.
 	 */
 	public void destroy() {
+		if (trace!=null) {
+			// Never drawn
+			trace.end();
+			trace=null;
+		}
 		this.stateChangedListener=null;
 		this.drawable=null;
 	}
@@ -0,0 +1,30 @@
+package net.rcode.nanomaps.tile;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.rcode.nanomaps.io.TileArchive;
+import net.rcode.nanomaps.io.TileArchiveResourceLoader;
+
+/**
+ * Displays tiles from a TileArchive
+ *
+ * @author stella
+ *
+ */
+public class TileArchiveTileSelector extends UriTileSelector {
+	public static final String PATTERN=TileArchiveResourceLoader.SCHEME + ":///${level}/${tilex}/${tiley}";
+
+	public TileArchiveTileSelector(TileArchiveResourceLoader loader) {
+		super(PATTERN, loader);
+	}
+
+	public TileArchiveTileSelector(File file) throws IOException {
+		this(new TileArchiveResourceLoader(new TileArchive(file)));
+	}
+
+	@Override
+	public TileArchiveResourceLoader getLoader() {
+		return (TileArchiveResourceLoader) super.getLoader();
+	}
+}
@@ -0,0 +1,108 @@
+package net.rcode.nanomaps.tile;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * In-memory cache of decoded tile bitmaps keyed by TileKey.  For
+ * CartesianTileKey, this means selector plus level/x/y.  The cache is
+ * sized in bytes of decoded bitmap data and evicts least recently used
+ * entries when over budget.
+ * <p>
+ * Tiles that scroll off of a MapTileView are put here when destroyed so that
+ * panning back to them does not cost any IO or decoding.  A single default
+ * instance is shared by all selectors unless configured otherwise.
+ * <p>
+ * Evicted bitmaps are not recycled since they may still be displayed.
+ *
+ * @author stella
+ *
+ */
+public class TileCache {
+	private static TileCache DEFAULT;
+
+	/**
+	 * @return the shared cache, sized to an eighth of the heap up to 8MB
+	 */
+	public static synchronized TileCache getDefault() {
+		if (DEFAULT==null) {
+			long maxBytes=Runtime.getRuntime().maxMemory() / 8;
+			if (maxBytes>8*1024*1024) maxBytes=8*1024*1024;
+			DEFAULT=new TileCache(maxBytes);
+		}
+		return DEFAULT;
+	}
+
+	private long maxBytes;
+	private long size;
+	private LinkedHashMap<TileKey, Bitmap> contents=new LinkedHashMap<TileKey, Bitmap>(64, 0.75f, true);
+
+	public TileCache(long maxBytes) {
+		this.maxBytes=maxBytes;
+	}
+
+	/**
+	 * @param key
+	 * @return cached bitmap or null
+	 */
+	public synchronized Bitmap get(TileKey key) {
+		return contents.get(key);
+	}
+
+	/**
+	 * Add a bitmap to the cache, evicting as needed
+	 * @param key
+	 * @param bitmap
+	 */
+	public synchronized void put(TileKey key, Bitmap bitmap) {
+		long bitmapSize=sizeOf(bitmap);
+		if (bitmapSize>maxBytes) return;
+
+		Bitmap prev=contents.put(key, bitmap);
+		if (prev!=null) size-=sizeOf(prev);
+		size+=bitmapSize;
+		trimToSize();
+	}
+
+	public synchronized void remove(TileKey key) {
+		Bitmap prev=contents.remove(key);
+		if (prev!=null) size-=sizeOf(prev);
+	}
+
+	public synchronized void clear() {
+		contents.clear();
+		size=0;
+	}
+
+	/**
+	 * @return bytes of decoded bitmap data currently held
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes=maxBytes;
+		trimToSize();
+	}
+
+	private void trimToSize() {
+		Iterator<Map.Entry<TileKey, Bitmap>> iter=contents.entrySet().iterator();
+		while (size>maxBytes && iter.hasNext()) {
+			Map.Entry<TileKey, Bitmap> eldest=iter.next();
+			size-=sizeOf(eldest.getValue());
+			iter.remove();
+		}
+	}
+
+	static long sizeOf(Bitmap bitmap) {
+		return (long)bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
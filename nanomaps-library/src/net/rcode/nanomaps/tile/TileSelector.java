@@ -1,6 +1,7 @@
 package net.rcode.nanomaps.tile;
 
 import java.util.Collection;
+import java.util.List;
 
 import net.rcode.nanomaps.Projection;
 
@@ -45,6 +46,30 @@ public abstract class TileSelector {
 	 */
 	public abstract Tile resolve(TileKey key);
 	
+	/**
+	 * Resolve several keys at once (ie. every new tile from one map update).
+	 * Selectors that load tiles submit all of the loads together, each at
+	 * its priority.  The default resolves each key and sets its priority.
+	 * @param keys
+	 * @param priorities load priority for each key
+	 * @param destination receives the tiles in key order
+	 */
+	public void resolve(List<TileKey> keys, int[] priorities, List<Tile> destination) {
+		for (int i=0; i<keys.size(); i++) {
+			Tile tile=resolve(keys.get(i));
+			tile.setLoadPriority(priorities[i]);
+			destination.add(tile);
+		}
+	}
+	
+	/**
+	 * Called when a view using the selector is attached so that any
+	 * connections tiles will be loaded over can be set up ahead of time.
+	 * The default does nothing.
+	 */
+	public void preconnect() {
+	}
+	
 
 
 }
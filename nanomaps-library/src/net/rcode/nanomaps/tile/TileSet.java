@@ -24,6 +24,11 @@ public class TileSet {
 		public Tile tile;
 		public Rect displayRect;
 		public boolean marked;
+		
+		/**
+		 * Set by MapTileView while the tile is counted as not yet settled
+		 */
+		boolean pending;
 	}
 	
 	/**
@@ -102,7 +107,8 @@ public class TileSet {
 	}
 	
 	/**
-	 * Remove and destroy all unmarked tiles
+	 * Remove and destroy all unmarked tiles.  Tiles that support it
+	 * (ie. BitmapTile) hand their content to a TileCache when destroyed.
 	 */
 	public final void sweep() {
 		Iterator<Record> iter=contents.values().iterator();
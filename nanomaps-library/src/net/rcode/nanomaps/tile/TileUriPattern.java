@@ -127,6 +127,38 @@ public class TileUriPattern {
 		return ret;
 	}
 
+	/**
+	 * Expand the pattern up to the first tile dependent parameter for every
+	 * ${modulo} choice.  For http patterns, this gives a uri on each shard
+	 * host (ie. for preconnecting).
+	 * @return distinct prefixes
+	 */
+	public String[] getShardPrefixes() {
+		ArrayList<String> prefixes=new ArrayList<String>();
+		prefixes.add("");
+		for (int i=0; i<parts.length; i++) {
+			Part part=parts[i];
+			if (part.opcode==OPCODE_LITERAL) {
+				for (int j=0; j<prefixes.size(); j++) {
+					prefixes.set(j, prefixes.get(j) + part.arg);
+				}
+			} else if (part.opcode==OPCODE_MODULO) {
+				String[] options=(String[]) part.arg;
+				ArrayList<String> expanded=new ArrayList<String>(prefixes.size() * options.length);
+				for (int j=0; j<prefixes.size(); j++) {
+					for (int k=0; k<options.length; k++) {
+						String prefix=prefixes.get(j) + options[k];
+						if (!expanded.contains(prefix)) expanded.add(prefix);
+					}
+				}
+				prefixes=expanded;
+			} else {
+				break;
+			}
+		}
+		return prefixes.toArray(new String[prefixes.size()]);
+	}
+
 	private void generateQuadKey(StringBuilder accum, CartesianTileKey ctk) {
 		int i, mask, value;
 		for (i=ctk.level; i>0; i--) {
@@ -1,7 +1,12 @@
 package net.rcode.nanomaps.tile;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import net.rcode.nanomaps.io.DefaultResourceLoader;
 import net.rcode.nanomaps.io.ResourceLoader;
+import android.graphics.Bitmap;
+import android.net.Uri;
 
 /**
  * Extends CartesianTileSelector to resolve tiles from external
@@ -13,6 +18,7 @@ import net.rcode.nanomaps.io.ResourceLoader;
 public class UriTileSelector extends CartesianTileSelector {
 	private TileUriPattern pattern;
 	private ResourceLoader loader;
+	private TileCache cache=TileCache.getDefault();
 	
 	public UriTileSelector(String pattern, ResourceLoader loader) throws IllegalArgumentException {
 		this(new TileUriPattern(pattern), loader);
@@ -32,11 +38,90 @@ public class UriTileSelector extends CartesianTileSelector {
 		this(pattern, null);
 	}
 	
+	public TileUriPattern getPattern() {
+		return pattern;
+	}
+	
+	public ResourceLoader getLoader() {
+		return loader;
+	}
+	
+	public TileCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * Set the memory cache consulted before loading and populated
+	 * with tiles that are no longer displayed.  Null disables.
+	 * @param cache
+	 */
+	public void setCache(TileCache cache) {
+		this.cache=cache;
+	}
+	
+	/**
+	 * Ask the loader to connect to every ${modulo} shard of the pattern
+	 */
+	@Override
+	public void preconnect() {
+		String[] prefixes=pattern.getShardPrefixes();
+		for (int i=0; i<prefixes.length; i++) {
+			try {
+				loader.preconnect(Uri.parse(prefixes[i]));
+			} catch (RuntimeException e) {
+				// Prefix is not a parseable uri
+			}
+		}
+	}
+	
+	/**
+	 * Tiles not in the memory cache are loaded as one batch
+	 */
+	@Override
+	public void resolve(List<TileKey> keys, int[] priorities, List<Tile> destination) {
+		ArrayList<ResourceLoader.BatchEntry> entries=null;
+		ArrayList<BitmapTile> loading=null;
+		for (int i=0; i<keys.size(); i++) {
+			TileKey key=keys.get(i);
+			BitmapTile tile=new BitmapTile(key, cache);
+			destination.add(tile);
+			if (cache!=null) {
+				Bitmap bitmap=cache.get(key);
+				if (bitmap!=null) {
+					tile.setBitmap(bitmap);
+					continue;
+				}
+			}
+			
+			if (entries==null) {
+				entries=new ArrayList<ResourceLoader.BatchEntry>(keys.size());
+				loading=new ArrayList<BitmapTile>(keys.size());
+			}
+			entries.add(tile.createLoad(pattern.uriFor(key), priorities[i]));
+			loading.add(tile);
+		}
+		
+		if (entries!=null) {
+			loader.loadResources(entries);
+			for (int i=0; i<entries.size(); i++) {
+				loading.get(i).loadSubmitted(entries.get(i));
+			}
+		}
+	}
+	
 	@Override
 	public Tile resolve(TileKey key) {
-		CharSequence uri=pattern.uriFor(key);
-		BitmapTile tile=new BitmapTile(key);
+		BitmapTile tile=new BitmapTile(key, cache);
+		if (cache!=null) {
+			Bitmap bitmap=cache.get(key);
+			if (bitmap!=null) {
+				tile.setBitmap(bitmap);
+				return tile;
+			}
+		}
+		
 		// Load it
+		CharSequence uri=pattern.uriFor(key);
 		tile.load(loader, uri);
 		return tile;
 	}
@@ -0,0 +1,54 @@
+package net.rcode.nanomaps.test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.DefaultResourceLoader;
+import net.rcode.nanomaps.io.ResourceLoader;
+
+public class BatchLoadTest extends TestCase {
+	private LocalHttpServer server;
+	private DefaultResourceLoader loader=DefaultResourceLoader.getInstance();
+
+	@Override
+	protected void setUp() throws Exception {
+		server=new LocalHttpServer("hello");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+	}
+
+	public void testBatchLoadsEveryEntry() throws Exception {
+		ResourceLoader.DataHandler handler=new ResourceLoader.DataHandler() {
+			public Object transformResult(InputStream input, int size) {
+				return "loaded";
+			}
+		};
+		ResourceLoader.Callback callback=new ResourceLoader.Callback() {
+			public void onComplete(ResourceLoader.Request request) {
+			}
+		};
+		ArrayList<ResourceLoader.BatchEntry> entries=new ArrayList<ResourceLoader.BatchEntry>();
+		for (int i=0; i<4; i++) {
+			entries.add(new ResourceLoader.BatchEntry(server.uri("/batch" + i + ".png"), handler, callback, 10-i));
+		}
+		// Joins the first entry's flight
+		entries.add(new ResourceLoader.BatchEntry(server.uri("/batch0.png"), handler, callback, 0));
+		loader.loadResources(entries);
+
+		for (ResourceLoader.BatchEntry entry: entries) {
+			assertNotNull(entry.request);
+		}
+		for (ResourceLoader.BatchEntry entry: entries) {
+			for (int i=0; i<50 && !entry.request.isLoaded(); i++) {
+				Thread.sleep(100);
+			}
+			assertTrue(entry.request.isLoaded());
+			assertEquals("loaded", entry.request.getResults());
+		}
+	}
+}
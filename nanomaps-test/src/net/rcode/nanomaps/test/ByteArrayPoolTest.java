@@ -0,0 +1,42 @@
+package net.rcode.nanomaps.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.BufferInputStream;
+import net.rcode.nanomaps.io.ByteArrayPool;
+
+public class ByteArrayPoolTest extends TestCase {
+	public void testSizeClassesAreReused() {
+		ByteArrayPool pool=new ByteArrayPool(1024*1024);
+		byte[] a=pool.get(5000);
+		assertEquals(8192, a.length);
+		pool.release(a);
+		assertEquals(8192, pool.getPooledBytes());
+		assertSame(a, pool.get(6000));
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	public void testForeignArraysIgnored() {
+		ByteArrayPool pool=new ByteArrayPool(1024*1024);
+		pool.release(new byte[5000]);
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	public void testReadFullyGrowsPastWrongLength() throws IOException {
+		ByteArrayPool pool=new ByteArrayPool(1024*1024);
+		byte[] data=new byte[20000];
+		for (int i=0; i<data.length; i++) data[i]=(byte)i;
+
+		BufferInputStream body=pool.readFully(new ByteArrayInputStream(data), 100);
+		assertEquals(data.length, body.getLength());
+		for (int i=0; i<data.length; i++) {
+			assertEquals(data[i], body.getBuffer()[body.getOffset()+i]);
+		}
+		body.release();
+		// Every array it grew through went back to the pool
+		assertEquals(4096+8192+16384+32768, pool.getPooledBytes());
+	}
+}
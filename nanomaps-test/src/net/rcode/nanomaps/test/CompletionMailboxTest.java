@@ -0,0 +1,135 @@
+package net.rcode.nanomaps.test;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.CompletionMailbox;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+
+public class CompletionMailboxTest extends TestCase {
+	static final int THREADS=4;
+	static final int PER_THREAD=500;
+
+	private HandlerThread looperThread;
+
+	@Override
+	protected void setUp() throws Exception {
+		looperThread=new HandlerThread("mailboxtest");
+		looperThread.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		looperThread.quit();
+	}
+
+	public void testDeliversInOrderInBatches() throws Exception {
+		final Looper looper=looperThread.getLooper();
+		final CompletionMailbox mailbox=CompletionMailbox.forLooper(looper);
+		assertSame(mailbox, CompletionMailbox.forLooper(looper));
+
+		// Runs on the looper only
+		final ArrayList<int[]> delivered=new ArrayList<int[]>();
+		final int[] drains=new int[1];
+		final boolean[] wrongThread=new boolean[1];
+		final Runnable countDrain=new Runnable() {
+			public void run() {
+				drains[0]++;
+			}
+		};
+
+		Thread[] posters=new Thread[THREADS];
+		for (int t=0; t<THREADS; t++) {
+			final int thread=t;
+			posters[t]=new Thread() {
+				public void run() {
+					for (int i=0; i<PER_THREAD; i++) {
+						final int seq=i;
+						mailbox.post(new Runnable() {
+							public void run() {
+								if (Thread.currentThread()!=looperThread) wrongThread[0]=true;
+								assertTrue(CompletionMailbox.runAfterDrain(countDrain));
+								delivered.add(new int[] { thread, seq });
+							}
+						});
+					}
+				}
+			};
+			posters[t].start();
+		}
+		for (int t=0; t<THREADS; t++) posters[t].join();
+
+		// Read the results on the looper once everything has drained
+		final int[] count=new int[1];
+		for (int i=0; i<100 && count[0]<THREADS*PER_THREAD; i++) {
+			Thread.sleep(50);
+			final Object lock=new Object();
+			synchronized (lock) {
+				mailbox.post(new Runnable() {
+					public void run() {
+						synchronized (lock) {
+							count[0]=delivered.size();
+							lock.notify();
+						}
+					}
+				});
+				lock.wait(1000);
+			}
+		}
+		assertEquals(THREADS*PER_THREAD, count[0]);
+		assertFalse(wrongThread[0]);
+
+		// Each poster's completions arrive in the order posted
+		int[] next=new int[THREADS];
+		for (int i=0; i<delivered.size(); i++) {
+			int[] d=delivered.get(i);
+			assertEquals(next[d[0]]++, d[1]);
+		}
+
+		// Deferred work runs once per drain, not once per completion
+		assertTrue(drains[0]>0);
+		assertTrue(drains[0]<THREADS*PER_THREAD);
+	}
+
+	public void testNoLooperDeliversInline() {
+		final Thread current=Thread.currentThread();
+		final boolean[] ran=new boolean[1];
+		CompletionMailbox.forLooper(null).post(new Runnable() {
+			public void run() {
+				assertSame(current, Thread.currentThread());
+				ran[0]=true;
+			}
+		});
+		assertTrue(ran[0]);
+	}
+
+	public void testQuitLooperReleased() throws Exception {
+		Looper looper=looperThread.getLooper();
+		CompletionMailbox mailbox=CompletionMailbox.forLooper(looper);
+		looperThread.quit();
+
+		// The refused post retires the mailbox
+		mailbox.post(new Runnable() {
+			public void run() {
+				fail("Delivered to a quit looper");
+			}
+		});
+		CompletionMailbox replacement=CompletionMailbox.forLooper(looper);
+		assertNotSame(mailbox, replacement);
+
+		// Mailboxes for loopers whose thread has exited are swept when another
+		// is created
+		looperThread.join(5000);
+		HandlerThread other=new HandlerThread("mailboxtest2");
+		other.start();
+		try {
+			CompletionMailbox.forLooper(other.getLooper());
+			assertNotSame(replacement, CompletionMailbox.forLooper(looper));
+		} finally {
+			other.quit();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package net.rcode.nanomaps.test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.ConnectionPool;
+
+public class ConnectionPoolTest extends TestCase {
+	private ServerSocket server;
+	private ArrayList<Socket> accepted=new ArrayList<Socket>();
+	private ConnectionPool pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		server=new ServerSocket(0);
+		Thread t=new Thread() {
+			public void run() {
+				try {
+					for (;;) {
+						Socket socket=server.accept();
+						synchronized (accepted) {
+							accepted.add(socket);
+						}
+					}
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		pool=new ConnectionPool();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		pool.evictAll();
+		server.close();
+		synchronized (accepted) {
+			for (Socket socket: accepted) socket.close();
+		}
+	}
+
+	private int getAccepted() {
+		synchronized (accepted) {
+			return accepted.size();
+		}
+	}
+
+	private void waitForIdle(int count) throws InterruptedException {
+		// The acceptor may record a connection after the pool has it
+		for (int i=0; i<200 && (pool.getIdleCount("127.0.0.1", server.getLocalPort())<count || getAccepted()<count); i++) {
+			Thread.sleep(10);
+		}
+	}
+
+	public void testPreconnectKeepsWarmConnections() throws Exception {
+		int port=server.getLocalPort();
+		pool.preconnect("127.0.0.1", port, 2);
+		waitForIdle(2);
+		assertEquals(2, pool.getIdleCount("127.0.0.1", port));
+		assertEquals(2, getAccepted());
+
+		// Already warm
+		pool.preconnect("127.0.0.1", port, 2);
+		Thread.sleep(50);
+		assertEquals(2, getAccepted());
+
+		pool.evictAll();
+		assertEquals(0, pool.getIdleCount("127.0.0.1", port));
+	}
+
+	public void testAddressesCached() throws Exception {
+		assertSame(pool.resolve("localhost"), pool.resolve("localhost"));
+	}
+}
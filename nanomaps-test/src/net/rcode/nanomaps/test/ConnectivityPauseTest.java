@@ -0,0 +1,57 @@
+package net.rcode.nanomaps.test;
+
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.DefaultResourceLoader;
+import net.rcode.nanomaps.io.ResourceLoader;
+import net.rcode.nanomaps.io.SimpleConnectivityMonitor;
+
+import android.net.Uri;
+
+public class ConnectivityPauseTest extends TestCase {
+	private LocalHttpServer server;
+	private DefaultResourceLoader loader=DefaultResourceLoader.getInstance();
+
+	@Override
+	protected void setUp() throws Exception {
+		server=new LocalHttpServer("ok");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		loader.setConnectivityMonitor(null);
+		server.close();
+	}
+
+	public void testQueuesParkWhileOffline() throws Exception {
+		SimpleConnectivityMonitor monitor=new SimpleConnectivityMonitor(false);
+		loader.setConnectivityMonitor(monitor);
+		assertTrue(loader.isOffline());
+
+		final Object[] result=new Object[1];
+		ResourceLoader.DataHandler handler=new ResourceLoader.DataHandler() {
+			public Object transformResult(InputStream input, int size) {
+				synchronized (result) {
+					result[0]="loaded";
+					result.notifyAll();
+				}
+				return result[0];
+			}
+		};
+		ResourceLoader.Request request=loader.loadResource(Uri.parse(server.uri("/tile.png")), handler, null);
+
+		Thread.sleep(300);
+		assertEquals(0, server.getAccepted());
+		assertFalse(request.isComplete());
+
+		monitor.setConnected(true);
+		assertFalse(loader.isOffline());
+		synchronized (result) {
+			if (result[0]==null) result.wait(5000);
+		}
+		assertEquals("loaded", result[0]);
+		assertEquals(1, server.getAccepted());
+	}
+}
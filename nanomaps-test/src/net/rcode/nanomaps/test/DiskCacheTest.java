@@ -0,0 +1,260 @@
+package net.rcode.nanomaps.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.CachingResourceLoader;
+import net.rcode.nanomaps.io.DiskCache;
+import net.rcode.nanomaps.io.ResourceLoader;
+import net.rcode.nanomaps.io.Validators;
+
+import android.net.Uri;
+
+public class DiskCacheTest extends TestCase {
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory=File.createTempFile("diskcache", "");
+		directory.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files=directory.listFiles();
+		if (files!=null) {
+			for (File f: files) f.delete();
+		}
+		directory.delete();
+	}
+
+	private DiskCache open(long maxBytes) throws IOException {
+		DiskCache cache=new DiskCache(directory, maxBytes);
+		cache.open();
+		return cache;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile in=new RandomAccessFile(file, "r");
+		try {
+			byte[] contents=new byte[(int)in.length()];
+			in.readFully(contents);
+			return contents;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeFile(File file, byte[] contents, int length) throws IOException {
+		FileOutputStream out=new FileOutputStream(file);
+		try {
+			out.write(contents, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void testPutGet() throws IOException {
+		DiskCache cache=open(1000);
+		byte[] data="hello".getBytes();
+		cache.put("http://a/1.png", data, 0, data.length);
+		assertTrue(cache.contains("http://a/1.png"));
+		assertEquals("hello", new String(cache.get("http://a/1.png")));
+		assertNull(cache.get("http://a/2.png"));
+		assertEquals(5, cache.getSize());
+		cache.close();
+	}
+
+	public void testEvictsLeastRecentlyUsed() throws IOException {
+		DiskCache cache=open(30);
+		byte[] data=new byte[10];
+		cache.put("a", data, 0, data.length);
+		cache.put("b", data, 0, data.length);
+		cache.put("c", data, 0, data.length);
+
+		// Touch a so that b is the eldest
+		assertNotNull(cache.get("a"));
+		cache.put("d", data, 0, data.length);
+
+		assertTrue(cache.contains("a"));
+		assertFalse(cache.contains("b"));
+		assertTrue(cache.contains("c"));
+		assertTrue(cache.contains("d"));
+		assertEquals(30, cache.getSize());
+		cache.close();
+	}
+
+	public void testJournalReplay() throws IOException {
+		DiskCache cache=open(30);
+		byte[] data=new byte[10];
+		cache.put("a", data, 0, data.length);
+		cache.put("b", data, 0, data.length);
+		cache.put("c", data, 0, data.length);
+		cache.remove("c");
+		assertNotNull(cache.get("a"));
+		cache.close();
+
+		// Reopen and make sure index and access order survived
+		cache=open(30);
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(20, cache.getSize());
+		assertFalse(cache.contains("c"));
+		cache.put("d", data, 0, data.length);
+		cache.put("e", data, 0, data.length);
+		assertFalse(cache.contains("b"));
+		assertTrue(cache.contains("a"));
+		cache.close();
+	}
+
+	public void testTornJournalLineSkipped() throws IOException {
+		DiskCache cache=open(1000);
+		byte[] data=new byte[10];
+		cache.put("a", data, 0, data.length);
+		cache.put("b", data, 0, data.length);
+		cache.put("c", data, 0, data.length);
+		cache.close();
+
+		// Cut the last line (c) in half as if the process died mid-write and
+		// leave an abandoned temp file behind
+		File journal=new File(directory, "journal");
+		byte[] contents=readFile(journal);
+		int lastLine=contents.length-1;
+		while (lastLine>0 && contents[lastLine-1]!='\n') lastLine--;
+		writeFile(journal, contents, lastLine + (contents.length-lastLine)/2);
+		writeFile(new File(directory, "abandoned.tmp"), data, data.length);
+
+		cache=open(1000);
+		assertTrue(cache.contains("a"));
+		assertTrue(cache.contains("b"));
+		assertFalse(cache.contains("c"));
+		assertEquals(2, cache.getEntryCount());
+		assertEquals(20, cache.getSize());
+		assertNotNull(cache.get("a"));
+
+		// Unindexed files were swept: only the journal and two entries remain
+		assertEquals(3, directory.listFiles().length);
+		cache.close();
+
+		// And the rewritten journal is clean
+		cache=open(1000);
+		assertEquals(2, cache.getEntryCount());
+		cache.close();
+	}
+
+	public void testUnindexedFilesSweptOnCleanOpen() throws IOException {
+		DiskCache cache=open(1000);
+		byte[] data=new byte[10];
+		cache.put("a", data, 0, data.length);
+		cache.close();
+
+		// A put killed before its journal line, one killed mid-write and a
+		// file that is not the cache's
+		File orphan=new File(directory, "0123456789abcdef0123456789abcdef");
+		File partial=new File(directory, "fedcba9876543210fedcba98765432101234.tmp");
+		File foreign=new File(directory, "notes.txt");
+		writeFile(orphan, data, data.length);
+		writeFile(partial, data, 5);
+		writeFile(foreign, data, data.length);
+
+		cache=open(1000);
+		assertFalse(orphan.exists());
+		assertFalse(partial.exists());
+		assertTrue(foreign.exists());
+		assertEquals(1, cache.getEntryCount());
+		assertNotNull(cache.get("a"));
+		cache.close();
+	}
+
+	public void testValidatorsSurviveReplay() throws IOException {
+		DiskCache cache=open(1000);
+		byte[] data=new byte[10];
+		cache.put("a", data, 0, data.length, new Validators("\"abc 123\"", "Wed, 21 Oct 2015 07:28:00 GMT", 1000));
+		cache.put("b", data, 0, data.length);
+		cache.updateValidators("a", new Validators(null, "Thu, 22 Oct 2015 07:28:00 GMT", 2000));
+		cache.close();
+
+		cache=open(1000);
+		Validators v=cache.getValidators("a");
+		assertNull(v.etag);
+		assertEquals("Thu, 22 Oct 2015 07:28:00 GMT", v.lastModified);
+		assertEquals(2000, v.expires);
+		v=cache.getValidators("b");
+		assertFalse(v.isConditional());
+		assertEquals(0, v.expires);
+		assertEquals(20, cache.getSize());
+		cache.close();
+	}
+
+	public void testValidatorsFromHeaders() {
+		Validators v=Validators.fromHeaders("\"x\"", null, "public, max-age=60", "Wed, 21 Oct 2015 07:28:00 GMT", 1000);
+		assertEquals(61000, v.expires);
+		assertTrue(v.isConditional());
+
+		v=Validators.fromHeaders(null, null, null, "Wed, 21 Oct 2015 07:28:00 GMT", 1000);
+		assertEquals(1445412480000L, v.expires);
+		assertFalse(v.isConditional());
+
+		v=Validators.fromHeaders(null, null, null, null, 1000);
+		assertEquals(0, v.expires);
+		assertTrue(v.isFresh(5000));
+	}
+
+	public void testCacheControlPrecedence() {
+		// no-cache wins regardless of order
+		Validators v=Validators.fromHeaders(null, null, "max-age=3600, no-cache", null, 1000);
+		assertEquals(1000, v.expires);
+		assertFalse(v.noStore);
+		v=Validators.fromHeaders(null, null, "no-cache, max-age=3600", null, 1000);
+		assertEquals(1000, v.expires);
+
+		v=Validators.fromHeaders(null, null, "public, max-age=3600, No-Store", "Wed, 21 Oct 2015 07:28:00 GMT", 1000);
+		assertEquals(1000, v.expires);
+		assertTrue(v.noStore);
+
+		// max-age beats Expires
+		v=Validators.fromHeaders(null, null, "private, max-age=60", "Wed, 21 Oct 2015 07:28:00 GMT", 1000);
+		assertEquals(61000, v.expires);
+		assertFalse(v.noStore);
+	}
+
+	public void testNoStoreResponsesNotCached() throws IOException {
+		final ArrayList<ResourceLoader.DataHandler> handlers=new ArrayList<ResourceLoader.DataHandler>();
+		ResourceLoader delegate=new ResourceLoader() {
+			@Override
+			public Request loadResource(Uri uri, DataHandler dataHandler, Callback callback) {
+				handlers.add(dataHandler);
+				return null;
+			}
+		};
+		DiskCache cache=open(1000);
+		CachingResourceLoader loader=new CachingResourceLoader(delegate, cache);
+		ResourceLoader.DataHandler target=new ResourceLoader.DataHandler() {
+			public Object transformResult(InputStream input, int size) {
+				return "decoded";
+			}
+		};
+		byte[] data="hello".getBytes();
+
+		loader.loadResource(Uri.parse("http://a/1.png"), target, null);
+		Object result=((ResourceLoader.ValidatingDataHandler)handlers.get(0)).transformValidatedResult(
+				new ByteArrayInputStream(data), data.length, Validators.fromHeaders(null, null, "no-store", null, 1000));
+		assertEquals("decoded", result);
+		assertFalse(cache.contains("http://a/1.png"));
+
+		// A stale copy is dropped when revalidation says no-store
+		cache.put("http://a/2.png", data, 0, data.length, new Validators("\"x\"", null, 1));
+		loader.loadResource(Uri.parse("http://a/2.png"), target, null);
+		result=((ResourceLoader.ValidatingDataHandler)handlers.get(1)).transformNotModified(
+				Validators.fromHeaders(null, null, "no-store", null, 1000));
+		assertEquals("decoded", result);
+		assertFalse(cache.contains("http://a/2.png"));
+		cache.close();
+	}
+}
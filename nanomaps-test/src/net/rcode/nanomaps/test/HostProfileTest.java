@@ -0,0 +1,102 @@
+package net.rcode.nanomaps.test;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.HostProfile;
+
+public class HostProfileTest extends TestCase {
+	private long now;
+
+	/**
+	 * Feed one full tuning window of results
+	 */
+	private void window(HostProfile profile, int successes, int failures, boolean backlogged) {
+		for (int i=0; i<successes; i++) profile.recordResult(true, backlogged, now+=10);
+		for (int i=0; i<failures; i++) profile.recordResult(false, backlogged, now+=10);
+		profile.recordResult(true, backlogged, now+=2000);
+	}
+
+	public void testAdditiveIncreaseWhileBacklogged() {
+		HostProfile profile=new HostProfile("a", 80);
+		int workers=profile.getWorkers(), depth=profile.getPipelineDepth();
+		window(profile, 20, 0, true);
+		assertEquals(depth+1, profile.getPipelineDepth());
+		assertEquals(workers, profile.getWorkers());
+		window(profile, 20, 0, true);
+		assertEquals(workers+1, profile.getWorkers());
+
+		// Demand limited windows say nothing about capacity
+		window(profile, 20, 0, false);
+		assertEquals(depth+1, profile.getPipelineDepth());
+		assertEquals(workers+1, profile.getWorkers());
+	}
+
+	public void testThroughputDropUndoesStep() {
+		HostProfile profile=new HostProfile("a", 80);
+		int depth=profile.getPipelineDepth();
+		window(profile, 20, 0, true);
+		assertEquals(depth+1, profile.getPipelineDepth());
+		window(profile, 8, 0, true);
+		assertEquals(depth, profile.getPipelineDepth());
+	}
+
+	public void testMultiplicativeDecreaseOnErrors() {
+		HostProfile profile=new HostProfile("a", 80);
+		profile.setWorkerBounds(2, 8);
+		int depth=profile.getPipelineDepth();
+		window(profile, 10, 5, true);
+		assertEquals(2, profile.getWorkers());
+		assertEquals(depth/2, profile.getPipelineDepth());
+	}
+
+	public void testFixedBounds() {
+		HostProfile profile=new HostProfile("a", 80);
+		profile.setWorkerBounds(2, 2);
+		profile.setPipelineDepthBounds(4, 4);
+		window(profile, 20, 0, true);
+		window(profile, 20, 0, true);
+		assertEquals(2, profile.getWorkers());
+		assertEquals(4, profile.getPipelineDepth());
+	}
+
+	public void testConnectionLimitNeedsConfirmation() {
+		HostProfile profile=new HostProfile("a", 80);
+		profile.observeConnectionLimit(2, 0);
+		assertEquals(0, profile.getMaxRequestsPerConnection(0));
+		profile.observeConnectionLimit(100, 10);
+		assertEquals(0, profile.getMaxRequestsPerConnection(10));
+		profile.observeConnectionLimit(100, 20);
+		assertEquals(100, profile.getMaxRequestsPerConnection(20));
+	}
+
+	public void testConnectionLimitExpires() {
+		HostProfile profile=new HostProfile("a", 80);
+		profile.observeConnectionLimit(2, 0);
+		profile.observeConnectionLimit(2, 10);
+		assertEquals(2, profile.getMaxRequestsPerConnection(1000));
+		assertEquals(0, profile.getMaxRequestsPerConnection(10+300000));
+	}
+
+	public void testIdleTimeNotCounted() {
+		HostProfile profile=new HostProfile("a", 80);
+		int depth=profile.getPipelineDepth();
+		burst(profile, 20);
+		assertEquals(depth+1, profile.getPipelineDepth());
+
+		// Same throughput after a long pause is not a drop
+		now+=60000;
+		burst(profile, 20);
+		assertEquals(depth+1, profile.getPipelineDepth());
+	}
+
+	/**
+	 * Start count requests together and finish them over a full window
+	 */
+	private void burst(HostProfile profile, int count) {
+		for (int i=0; i<count; i++) profile.requestStarted(now);
+		long step=2000/count;
+		for (int i=0; i<count; i++) profile.recordResult(true, true, now+=step);
+		profile.requestStarted(now);
+		profile.recordResult(true, true, now+=10);
+	}
+}
@@ -0,0 +1,177 @@
+package net.rcode.nanomaps.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.ConnectionPool;
+import net.rcode.nanomaps.io.DefaultResourceLoader;
+import net.rcode.nanomaps.io.HostProfile;
+import net.rcode.nanomaps.io.HttpAgent;
+import net.rcode.nanomaps.io.HttpTransport;
+import net.rcode.nanomaps.io.ResourceLoader;
+
+import android.net.Uri;
+
+/**
+ * Loads over https from a self-signed server on localhost that closes
+ * each connection after a few keep-alive responses
+ */
+public class HttpsTransportTest extends TestCase {
+	static final int PER_CONNECTION=4;
+
+	private ServerSocket server;
+	private int accepted;
+	private ConnectionPool pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		KeyStore keys=KeyStore.getInstance("PKCS12");
+		InputStream in=getClass().getResourceAsStream("loopback.p12");
+		try {
+			keys.load(in, "changeit".toCharArray());
+		} finally {
+			in.close();
+		}
+		KeyManagerFactory kmf=KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keys, "changeit".toCharArray());
+		TrustManagerFactory tmf=TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(keys);
+
+		SSLContext serverContext=SSLContext.getInstance("TLS");
+		serverContext.init(kmf.getKeyManagers(), null, null);
+		server=serverContext.getServerSocketFactory().createServerSocket(0);
+		Thread t=new Thread() {
+			public void run() {
+				try {
+					for (;;) {
+						final Socket socket=server.accept();
+						synchronized (HttpsTransportTest.this) {
+							accepted++;
+						}
+						Thread connection=new Thread() {
+							public void run() {
+								try {
+									serve(socket);
+								} catch (IOException e) {
+									// Client went away
+								}
+							}
+						};
+						connection.setDaemon(true);
+						connection.start();
+					}
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+
+		SSLContext clientContext=SSLContext.getInstance("TLS");
+		clientContext.init(null, tmf.getTrustManagers(), null);
+		pool=new ConnectionPool();
+		pool.setSSLSocketFactory(clientContext.getSocketFactory());
+		pool.setHostnameVerifier(new HostnameVerifier() {
+			public boolean verify(String host, SSLSession session) {
+				return "127.0.0.1".equals(host);
+			}
+		});
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		pool.evictAll();
+		server.close();
+	}
+
+	private synchronized int getAccepted() {
+		return accepted;
+	}
+
+	/**
+	 * Answer pipelined requests with their path, closing after PER_CONNECTION
+	 */
+	private void serve(Socket socket) throws IOException {
+		BufferedReader reader=new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+		OutputStream out=socket.getOutputStream();
+		int served=0;
+		String path=null;
+		String line;
+		while ((line=reader.readLine())!=null) {
+			if (path==null) {
+				path=line.split(" ")[1];
+				continue;
+			}
+			if (line.length()>0) continue;
+
+			served++;
+			boolean close=served==PER_CONNECTION;
+			out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + path.length() + "\r\n" +
+					(close ? "Connection: close\r\n" : "") + "\r\n" + path).getBytes("ISO-8859-1"));
+			out.flush();
+			path=null;
+			if (close) break;
+		}
+		socket.close();
+	}
+
+	public void testPipelinedWithResumedSessions() throws Exception {
+		HttpTransport transport=new HttpTransport() {
+			public HttpTransport.Agent createAgent(HostProfile profile, ConnectionPool unused) {
+				HttpAgent agent=new HttpAgent(profile);
+				agent.setConnectionPool(pool);
+				return agent;
+			}
+		};
+		DefaultResourceLoader loader=new DefaultResourceLoader(null, transport);
+
+		ResourceLoader.DataHandler handler=new ResourceLoader.DataHandler() {
+			public Object transformResult(InputStream input, int size) {
+				byte[] bytes=new byte[size];
+				int offset=0;
+				try {
+					while (offset<size) offset+=input.read(bytes, offset, size-offset);
+				} catch (java.io.IOException e) {
+					return null;
+				}
+				return new String(bytes);
+			}
+		};
+		ResourceLoader.Callback callback=new ResourceLoader.Callback() {
+			public void onComplete(ResourceLoader.Request request) {
+			}
+		};
+		ResourceLoader.Request[] requests=new ResourceLoader.Request[24];
+		for (int i=0; i<requests.length; i++) {
+			requests[i]=loader.loadResource(Uri.parse("https://127.0.0.1:" + server.getLocalPort() + "/" + i), handler, callback);
+		}
+
+		for (int i=0; i<requests.length; i++) {
+			for (int j=0; j<100 && !requests[i].isLoaded(); j++) {
+				Thread.sleep(100);
+			}
+			assertTrue(requests[i].isLoaded());
+			assertEquals("/" + i, requests[i].getResults());
+		}
+
+		// Kept alive, reconnected when the server closed and resumed
+		assertTrue(getAccepted()<requests.length);
+		assertTrue(pool.getHandshakeCount()>1);
+		assertTrue(pool.getResumedHandshakeCount()>0);
+	}
+}
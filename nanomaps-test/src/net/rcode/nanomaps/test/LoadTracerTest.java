@@ -0,0 +1,55 @@
+package net.rcode.nanomaps.test;
+
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.LoadTracer;
+
+public class LoadTracerTest extends TestCase {
+	public void testSampling() {
+		LoadTracer tracer=new LoadTracer(16);
+		tracer.setSampleRate(0.5f);
+		int sampled=0;
+		for (int i=0; i<10; i++) {
+			if (tracer.start("http://example.com/" + i)!=null) sampled++;
+		}
+		assertEquals(5, sampled);
+
+		tracer.setSampleRate(0);
+		assertNull(tracer.start("http://example.com/off"));
+	}
+
+	public void testSpansExported() throws Exception {
+		LoadTracer tracer=new LoadTracer();
+		LoadTracer.Trace trace=tracer.start("http://example.com/\"quoted\"");
+		trace.stamp(LoadTracer.DEQUEUED);
+		trace.stamp(LoadTracer.WRITTEN);
+		trace.stamp(LoadTracer.FIRST_BYTE);
+		trace.claim();
+		trace.end(LoadTracer.DRAWN);
+		trace.end();
+
+		// queue, write, ttfb, display and the enclosing load
+		assertEquals(5, tracer.getSpanCount());
+		StringWriter out=new StringWriter();
+		tracer.writeJson(out);
+		String json=out.toString();
+		assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+		assertTrue(json.indexOf("\"name\":\"queue\"")>0);
+		assertTrue(json.indexOf("\"name\":\"ttfb\"")>0);
+		assertTrue(json.indexOf("\"name\":\"display\"")>0);
+		assertTrue(json.indexOf("\\\"quoted\\\"")>0);
+		assertTrue(json.indexOf("\"name\":\"connect\"")<0);
+	}
+
+	public void testRingOverwritesOldest() {
+		LoadTracer tracer=new LoadTracer(4);
+		for (int i=0; i<3; i++) {
+			tracer.start("http://example.com/" + i).end(LoadTracer.DEQUEUED);
+		}
+		assertEquals(4, tracer.getSpanCount());
+		tracer.clear();
+		assertEquals(0, tracer.getSpanCount());
+	}
+}
@@ -0,0 +1,55 @@
+package net.rcode.nanomaps.test;
+
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.DefaultResourceLoader;
+import net.rcode.nanomaps.io.LoaderMetrics;
+import net.rcode.nanomaps.io.ResourceLoader;
+
+import android.net.Uri;
+
+public class LoaderMetricsTest extends TestCase {
+	private LocalHttpServer server;
+	private DefaultResourceLoader loader=DefaultResourceLoader.getInstance();
+
+	@Override
+	protected void setUp() throws Exception {
+		server=new LocalHttpServer("hello");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		loader.setMetrics(null);
+		server.close();
+	}
+
+	public void testHostStatsRecorded() throws Exception {
+		LoaderMetrics metrics=new LoaderMetrics();
+		loader.setMetrics(metrics);
+
+		ResourceLoader.DataHandler handler=new ResourceLoader.DataHandler() {
+			public Object transformResult(InputStream input, int size) {
+				return "loaded";
+			}
+		};
+		for (int i=0; i<3; i++) {
+			loader.loadResource(Uri.parse(server.uri("/" + i + ".png")), handler, null);
+		}
+
+		// Completion is counted after the decode stage
+		LoaderMetrics.HostStats stats=null;
+		for (int i=0; i<50; i++) {
+			stats=metrics.snapshot().getHost(server.getHost());
+			if (stats!=null && stats.getRequests()==3) break;
+			Thread.sleep(100);
+		}
+		assertNotNull(stats);
+		assertEquals(3, stats.getRequests());
+		assertEquals(15, stats.getBytes());
+		assertEquals(0, stats.getErrors());
+		assertEquals(0, stats.getQueueDepth());
+		assertTrue(stats.getMeanPipelineOccupancy()>=1);
+	}
+}
@@ -0,0 +1,66 @@
+package net.rcode.nanomaps.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Minimal http server on localhost for loader tests.  Answers every
+ * request with a fixed body and closes the connection.
+ */
+public class LocalHttpServer {
+	private ServerSocket server;
+	private int accepted;
+	private String body;
+
+	public LocalHttpServer(String body) throws IOException {
+		this.body=body;
+		server=new ServerSocket(0);
+		Thread t=new Thread() {
+			public void run() {
+				try {
+					for (;;) serve(server.accept());
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public String uri(String path) {
+		return "http://127.0.0.1:" + server.getLocalPort() + path;
+	}
+
+	public String getHost() {
+		return "127.0.0.1:" + server.getLocalPort();
+	}
+
+	public synchronized int getAccepted() {
+		return accepted;
+	}
+
+	public void close() throws IOException {
+		server.close();
+	}
+
+	private void serve(Socket socket) throws IOException {
+		synchronized (this) {
+			accepted++;
+		}
+		BufferedReader reader=new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+		OutputStream out=socket.getOutputStream();
+		String line;
+		while ((line=reader.readLine())!=null) {
+			if (line.length()>0) continue;
+			out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\nConnection: close\r\n\r\n" + body).getBytes("ISO-8859-1"));
+			out.flush();
+			break;
+		}
+		socket.close();
+	}
+}
@@ -0,0 +1,233 @@
+package net.rcode.nanomaps.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import net.rcode.nanomaps.io.ConnectionPool;
+import net.rcode.nanomaps.io.DefaultResourceLoader;
+import net.rcode.nanomaps.io.HostProfile;
+import net.rcode.nanomaps.io.HttpAgent;
+import net.rcode.nanomaps.io.HttpInteraction;
+import net.rcode.nanomaps.io.HttpTransport;
+import net.rcode.nanomaps.io.LoaderMetrics;
+import net.rcode.nanomaps.io.ResourceLoader;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Runs a loader on a shared executor with a transport that answers every
+ * request with its own path instead of going to the network
+ */
+public class LoopbackTransportTest extends TestCase {
+	static class LoopbackAgent implements HttpTransport.Agent {
+		private LinkedList<HttpInteraction> pending=new LinkedList<HttpInteraction>();
+
+		public void submit(HttpInteraction interaction) {
+			pending.add(interaction);
+		}
+
+		public int getPendingCount() {
+			return pending.size();
+		}
+
+		public void doIO(HttpAgent.Source source) throws java.io.IOException {
+			for (;;) {
+				HttpInteraction interaction=!pending.isEmpty() ? pending.removeFirst() : (source!=null ? source.nextInteraction() : null);
+				if (interaction==null) return;
+				byte[] body=interaction.getHttpRequest().getRequestLine().getUri().getBytes();
+				BasicHttpResponse response=new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+				BasicHttpEntity entity=new BasicHttpEntity();
+				entity.setContent(new ByteArrayInputStream(body));
+				entity.setContentLength(body.length);
+				response.setEntity(entity);
+				interaction.httpResponse=response;
+				interaction.callback.handleHttpResponse(interaction);
+			}
+		}
+
+		public void failAll(Throwable t) {
+			pending.clear();
+		}
+
+		public void shutdown() {
+		}
+
+		public void releaseConnection() {
+		}
+
+		public void setPipelineDepth(int pipelineDepth) {
+		}
+
+		public void setStats(LoaderMetrics.HostStats stats) {
+		}
+
+		public void setAbandonThreshold(float abandonThreshold) {
+		}
+	}
+
+	public void testExecutorAndTransportUsed() throws Exception {
+		final AtomicInteger agents=new AtomicInteger();
+		HttpTransport transport=new HttpTransport() {
+			public HttpTransport.Agent createAgent(HostProfile profile, ConnectionPool pool) {
+				agents.incrementAndGet();
+				return new LoopbackAgent();
+			}
+		};
+		ExecutorService executor=Executors.newCachedThreadPool();
+		DefaultResourceLoader loader=new DefaultResourceLoader(executor, transport);
+
+		ResourceLoader.DataHandler handler=new ResourceLoader.DataHandler() {
+			public Object transformResult(InputStream input, int size) {
+				byte[] bytes=new byte[size];
+				int offset=0;
+				try {
+					while (offset<size) offset+=input.read(bytes, offset, size-offset);
+				} catch (java.io.IOException e) {
+					return null;
+				}
+				return new String(bytes);
+			}
+		};
+		ResourceLoader.Callback callback=new ResourceLoader.Callback() {
+			public void onComplete(ResourceLoader.Request request) {
+			}
+		};
+		ResourceLoader.Request[] requests=new ResourceLoader.Request[5];
+		for (int i=0; i<requests.length; i++) {
+			requests[i]=loader.loadResource(Uri.parse("http://loopback.invalid/" + i), handler, callback);
+		}
+
+		for (int i=0; i<requests.length; i++) {
+			for (int j=0; j<50 && !requests[i].isLoaded(); j++) {
+				Thread.sleep(100);
+			}
+			assertTrue(requests[i].isLoaded());
+			assertEquals("/" + i, requests[i].getResults());
+		}
+		assertTrue(agents.get()>0);
+		executor.shutdownNow();
+	}
+
+	public void testThrowingHandlerFinishesRequest() throws Exception {
+		HttpTransport transport=new HttpTransport() {
+			public HttpTransport.Agent createAgent(HostProfile profile, ConnectionPool pool) {
+				return new LoopbackAgent();
+			}
+		};
+		ExecutorService executor=Executors.newCachedThreadPool();
+		DefaultResourceLoader loader=new DefaultResourceLoader(executor, transport);
+		ResourceLoader.Callback callback=new ResourceLoader.Callback() {
+			public void onComplete(ResourceLoader.Request request) {
+			}
+		};
+
+		ResourceLoader.Request failed=loader.loadResource(Uri.parse("http://loopback.invalid/oom"), new ResourceLoader.DataHandler() {
+			public Object transformResult(InputStream input, int size) {
+				throw new OutOfMemoryError("decode");
+			}
+		}, callback);
+		for (int j=0; j<50 && !failed.isComplete(); j++) {
+			Thread.sleep(100);
+		}
+		assertTrue(failed.isComplete());
+		assertFalse(failed.isLoaded());
+
+		// Not stuck joining the failed flight
+		ResourceLoader.Request retry=loader.loadResource(Uri.parse("http://loopback.invalid/oom"), new ResourceLoader.DataHandler() {
+			public Object transformResult(InputStream input, int size) {
+				return "ok";
+			}
+		}, callback);
+		for (int j=0; j<50 && !retry.isLoaded(); j++) {
+			Thread.sleep(100);
+		}
+		assertEquals("ok", retry.getResults());
+		executor.shutdownNow();
+	}
+
+	public void testRequestDuringIdleExitStarted() throws Exception {
+		HttpTransport transport=new HttpTransport() {
+			public HttpTransport.Agent createAgent(HostProfile profile, ConnectionPool pool) {
+				return new LoopbackAgent();
+			}
+		};
+		ExecutorService executor=Executors.newCachedThreadPool();
+		DefaultResourceLoader loader=new DefaultResourceLoader(executor, transport);
+		// One worker that gives up almost as soon as it goes idle, so the
+		// next load keeps landing while it is on its way out
+		loader.setHttpWorkerBounds(1, 1);
+		loader.setIdleLinger(1);
+		ResourceLoader.DataHandler handler=new ResourceLoader.DataHandler() {
+			public Object transformResult(InputStream input, int size) {
+				return "ok";
+			}
+		};
+		ResourceLoader.Callback callback=new ResourceLoader.Callback() {
+			public void onComplete(ResourceLoader.Request request) {
+			}
+		};
+
+		for (int i=0; i<200; i++) {
+			ResourceLoader.Request request=loader.loadResource(Uri.parse("http://loopback.invalid/" + i), handler, callback);
+			for (int j=0; j<500 && !request.isComplete(); j++) {
+				Thread.sleep(10);
+			}
+			assertTrue("Stuck at " + i, request.isLoaded());
+			Thread.sleep(i%3);
+		}
+		executor.shutdownNow();
+	}
+
+	public void testRejectingExecutorFailsQueuedRequests() throws Exception {
+		Executor rejecting=new Executor() {
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException();
+			}
+		};
+		final DefaultResourceLoader loader=new DefaultResourceLoader(rejecting, null);
+		final ResourceLoader.Request[] request=new ResourceLoader.Request[1];
+		final Thread[] completedOn=new Thread[1];
+		final HandlerThread caller=new HandlerThread("rejectingcaller");
+		caller.start();
+		try {
+			synchronized (completedOn) {
+				new Handler(caller.getLooper()).post(new Runnable() {
+					public void run() {
+						request[0]=loader.loadResource(Uri.parse("file:///rejected"), new ResourceLoader.DataHandler() {
+							public Object transformResult(InputStream input, int size) {
+								return "unexpected";
+							}
+						}, new ResourceLoader.Callback() {
+							public void onComplete(ResourceLoader.Request request) {
+								synchronized (completedOn) {
+									completedOn[0]=Thread.currentThread();
+									completedOn.notify();
+								}
+							}
+						});
+					}
+				});
+				completedOn.wait(5000);
+			}
+			assertSame(caller, completedOn[0]);
+			assertTrue(request[0].isComplete());
+			assertFalse(request[0].isLoaded());
+		} finally {
+			caller.quit();
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package net.rcode.nanomaps.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.Coordinate;
+import net.rcode.nanomaps.WebMercatorProjection;
+import net.rcode.nanomaps.io.CachingResourceLoader;
+import net.rcode.nanomaps.io.DiskCache;
+import net.rcode.nanomaps.io.ResourceLoader;
+import net.rcode.nanomaps.io.Validators;
+import net.rcode.nanomaps.tile.RegionDownloader;
+import net.rcode.nanomaps.tile.TileKey;
+import net.rcode.nanomaps.tile.UriTileSelector;
+import net.rcode.nanomaps.util.DoubleBounds;
+
+import android.net.Uri;
+import android.os.Looper;
+
+public class RegionDownloaderTest extends TestCase {
+	static final String PATTERN="http://localhost/${level}/${tilex}/${tiley}.png";
+	static final DoubleBounds WORLD=new DoubleBounds(-180, -85, 180, 85);
+
+	private WebMercatorProjection prj=WebMercatorProjection.DEFAULT;
+	private UriTileSelector selector=new UriTileSelector(PATTERN);
+
+	@Override
+	protected void setUp() throws Exception {
+		// The downloader must be driven from a looper thread.  Nothing here
+		// needs the looper to run since the fake loads complete inline.
+		if (Looper.myLooper()==null) Looper.prepare();
+	}
+
+	/**
+	 * Records loads and leaves them outstanding until the test completes
+	 * them
+	 */
+	static class FakeLoader extends ResourceLoader {
+		ArrayList<FakeRequest> requests=new ArrayList<FakeRequest>();
+
+		@Override
+		public Request loadResource(Uri uri, DataHandler dataHandler, Callback callback) {
+			FakeRequest request=new FakeRequest(uri.toString(), callback, PRIORITY_DEFAULT);
+			requests.add(request);
+			return request;
+		}
+
+		@Override
+		public void loadResources(List<BatchEntry> entries) {
+			for (int i=0; i<entries.size(); i++) {
+				BatchEntry entry=entries.get(i);
+				FakeRequest request=new FakeRequest(entry.uri.toString(), entry.callback, entry.priority);
+				requests.add(request);
+				entry.request=request;
+			}
+		}
+
+		int outstanding() {
+			int count=0;
+			for (int i=0; i<requests.size(); i++) {
+				if (!requests.get(i).complete) count++;
+			}
+			return count;
+		}
+
+		/**
+		 * Complete the oldest outstanding load
+		 */
+		void completeNext() {
+			for (int i=0; i<requests.size(); i++) {
+				FakeRequest request=requests.get(i);
+				if (!request.complete) {
+					request.complete=true;
+					request.callback.onComplete(request);
+					return;
+				}
+			}
+			fail("Nothing outstanding");
+		}
+	}
+
+	static class FakeRequest implements ResourceLoader.Request {
+		final String uri;
+		final ResourceLoader.Callback callback;
+		final int submittedPriority;
+		int priority;
+		boolean complete;
+
+		FakeRequest(String uri, ResourceLoader.Callback callback, int priority) {
+			this.uri=uri;
+			this.callback=callback;
+			this.submittedPriority=priority;
+			this.priority=priority;
+		}
+
+		public boolean isComplete() {
+			return complete;
+		}
+
+		public boolean isLoaded() {
+			return complete;
+		}
+
+		public Object getResults() {
+			return Integer.valueOf(100);
+		}
+
+		public void cancel() {
+			complete=true;
+		}
+
+		public void setPriority(int priority) {
+			this.priority=priority;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+	}
+
+	public void testConcurrencyCapAndBackgroundPriority() {
+		FakeLoader loader=new FakeLoader();
+		RegionDownloader downloader=new RegionDownloader(new UriTileSelector(PATTERN, loader), prj, WORLD, 1, 2);
+		downloader.setConcurrency(3);
+		downloader.start();
+		assertEquals(3, loader.requests.size());
+
+		while (!downloader.isComplete()) {
+			assertTrue(loader.outstanding()<=3);
+			loader.completeNext();
+		}
+		assertEquals(4+16, loader.requests.size());
+		assertEquals(4+16, downloader.getStoredCount());
+		assertEquals((4+16)*100, downloader.getStoredBytes());
+		for (int i=0; i<loader.requests.size(); i++) {
+			// Submitted in the background, never reprioritized from default
+			assertEquals(ResourceLoader.PRIORITY_BACKGROUND, loader.requests.get(i).submittedPriority);
+		}
+	}
+
+	public void testPauseAndResume() {
+		FakeLoader loader=new FakeLoader();
+		RegionDownloader downloader=new RegionDownloader(new UriTileSelector(PATTERN, loader), prj, WORLD, 1, 2);
+		downloader.setConcurrency(2);
+		downloader.start();
+		downloader.pause();
+		assertTrue(downloader.isPaused());
+
+		// Outstanding loads finish but nothing new is issued
+		loader.completeNext();
+		loader.completeNext();
+		assertEquals(2, loader.requests.size());
+		assertEquals(0, loader.outstanding());
+
+		downloader.resume();
+		assertFalse(downloader.isPaused());
+		assertEquals(4, loader.requests.size());
+		assertEquals(2, loader.outstanding());
+	}
+
+	public void testKeysEnumeratedLazily() {
+		FakeLoader loader=new FakeLoader();
+		RegionDownloader downloader=new RegionDownloader(new UriTileSelector(PATTERN, loader), prj, WORLD, 1, 18);
+		assertTrue(downloader.getEstimatedTileCount()>1000000000L);
+		downloader.setConcurrency(2);
+		downloader.start();
+
+		// Only what the concurrency allows, in level order
+		assertEquals(2, loader.requests.size());
+		assertEquals("http://localhost/1/0/0.png", loader.requests.get(0).uri);
+		loader.completeNext();
+		assertEquals(3, loader.requests.size());
+		downloader.cancel();
+		assertFalse(downloader.isComplete());
+	}
+
+	public void testFreshTilesSkipped() throws Exception {
+		File directory=File.createTempFile("regiondownloader", "");
+		directory.delete();
+		DiskCache cache=new DiskCache(directory, 1000000);
+		cache.open();
+		try {
+			byte[] data=new byte[10];
+			cache.put("http://localhost/1/0/0.png", data, 0, data.length, null);
+			cache.put("http://localhost/1/1/1.png", data, 0, data.length, null);
+			// Expired long ago
+			cache.put("http://localhost/1/0/1.png", data, 0, data.length, new Validators(null, null, 1));
+
+			FakeLoader delegate=new FakeLoader();
+			CachingResourceLoader loader=new CachingResourceLoader(delegate, cache);
+			RegionDownloader downloader=new RegionDownloader(new UriTileSelector(PATTERN, loader), prj, WORLD, 1, 1);
+			downloader.start();
+
+			assertEquals(2, downloader.getSkippedCount());
+			assertEquals(2, delegate.requests.size());
+			assertEquals("http://localhost/1/1/0.png", delegate.requests.get(0).uri);
+			assertEquals("http://localhost/1/0/1.png", delegate.requests.get(1).uri);
+		} finally {
+			cache.close();
+			File[] files=directory.listFiles();
+			if (files!=null) {
+				for (File f: files) f.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	public void testWholeWorldCount() {
+		RegionDownloader downloader=new RegionDownloader(selector, prj,
+				new DoubleBounds(-180, -85, 180, 85), 1, 4);
+		assertEquals(4+16+64+256, downloader.getEstimatedTileCount());
+		assertEquals(downloader.getEstimatedTileCount() * RegionDownloader.DEFAULT_TILE_BYTES,
+				downloader.getEstimatedBytes());
+	}
+
+	public void testCountMatchesSelect() {
+		DoubleBounds bounds=new DoubleBounds(-122.5, 37.7, -122.3, 37.85);
+		int level=12;
+		RegionDownloader downloader=new RegionDownloader(selector, prj, bounds, level, level);
+
+		ArrayList<TileKey> keys=new ArrayList<TileKey>();
+		selector.select(prj, prj.fromLevel(level),
+				prj.forwardX(bounds.getMinx()), prj.forwardY(bounds.getMiny()),
+				prj.forwardX(bounds.getMaxx()), prj.forwardY(bounds.getMaxy()),
+				keys);
+		assertEquals(keys.size(), downloader.getEstimatedTileCount());
+	}
+
+	public void testPolygonEstimateIsBoundingBox() {
+		Coordinate[] triangle=new Coordinate[] {
+				Coordinate.latLng(37.7, -122.5),
+				Coordinate.latLng(37.7, -122.3),
+				Coordinate.latLng(37.85, -122.5)
+		};
+		RegionDownloader polygon=new RegionDownloader(selector, prj, triangle, 10, 12);
+		RegionDownloader box=new RegionDownloader(selector, prj,
+				new DoubleBounds(-122.5, 37.7, -122.3, 37.85), 10, 12);
+		assertEquals(box.getEstimatedTileCount(), polygon.getEstimatedTileCount());
+	}
+}
@@ -0,0 +1,58 @@
+package net.rcode.nanomaps.test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.RequestTemplate;
+import net.rcode.nanomaps.io.Validators;
+
+public class RequestTemplateTest extends TestCase {
+	private static String encode(RequestTemplate template, String path, Validators validators) throws IOException {
+		int length=template.length(path, validators);
+		ByteBuffer out=ByteBuffer.allocate(length+16);
+		template.write(out, path, validators);
+		assertEquals(length, out.position());
+		return new String(out.array(), 0, out.position(), "ISO-8859-1");
+	}
+
+	public void testPlainRequest() throws IOException {
+		RequestTemplate template=new RequestTemplate("tiles.example.com", 80, false);
+		assertEquals("GET /1/2/3.png HTTP/1.1\r\nHost: tiles.example.com\r\nUser-Agent: nanomaps-droid\r\n\r\n",
+				encode(template, "/1/2/3.png", null));
+	}
+
+	public void testNonDefaultPort() throws IOException {
+		RequestTemplate template=new RequestTemplate("localhost", 8443, true);
+		assertEquals("localhost:8443", template.getHostHeader());
+		assertEquals("localhost", new RequestTemplate("localhost", 443, true).getHostHeader());
+	}
+
+	public void testConditionalRequest() throws IOException {
+		RequestTemplate template=new RequestTemplate("a", 80, false);
+		String request=encode(template, "/t", new Validators("\"abc\"", "Wed, 21 Oct 2015 07:28:00 GMT", 0));
+		assertTrue(request.contains("\r\nIf-None-Match: \"abc\"\r\n"));
+		assertTrue(request.contains("\r\nIf-Modified-Since: Wed, 21 Oct 2015 07:28:00 GMT\r\n"));
+	}
+
+	public void testLatin1ValidatorSentVerbatim() throws IOException {
+		RequestTemplate template=new RequestTemplate("a", 80, false);
+		String request=encode(template, "/t", new Validators("\"caf\u00e9\"", null, 0));
+		assertTrue(request.contains("\r\nIf-None-Match: \"caf\u00e9\"\r\n"));
+	}
+
+	public void testUnencodableValidatorsLeftOff() throws IOException {
+		RequestTemplate template=new RequestTemplate("a", 80, false);
+		String request=encode(template, "/t", new Validators("\"\u4e2d\"", "Wed, 21 Oct 2015\r\nX-Injected: 1", 0));
+		assertFalse(request.contains("If-None-Match"));
+		assertFalse(request.contains("If-Modified-Since"));
+		assertFalse(request.contains("X-Injected"));
+		assertTrue(request.endsWith("\r\n\r\n"));
+	}
+
+	public void testUnmappablePathCharacter() throws IOException {
+		RequestTemplate template=new RequestTemplate("a", 80, false);
+		assertTrue(encode(template, "/\u4e2d.png", null).startsWith("GET /?.png HTTP/1.1\r\n"));
+	}
+}
@@ -0,0 +1,171 @@
+package net.rcode.nanomaps.test;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.BufferInputStream;
+import net.rcode.nanomaps.io.ByteArrayPool;
+import net.rcode.nanomaps.io.ResponseParser;
+
+public class ResponseParserTest extends TestCase {
+	private ResponseParser parser;
+
+	@Override
+	protected void setUp() throws Exception {
+		parser=new ResponseParser(new ByteArrayPool(1024*1024));
+	}
+
+	private static ByteBuffer buffer(String s) throws IOException {
+		return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+	}
+
+	private String body() throws IOException {
+		BufferInputStream body=parser.takeBody();
+		if (body==null) return null;
+		String ret=new String(body.getBuffer(), body.getOffset(), body.getLength(), "ISO-8859-1");
+		body.release();
+		return ret;
+	}
+
+	/**
+	 * Feed the response split into pieces of the given size, as if they
+	 * arrived in separate reads
+	 * @return true if the response completed
+	 */
+	private boolean parseSplit(String response, int pieceSize) throws IOException {
+		byte[] bytes=response.getBytes("ISO-8859-1");
+		ByteBuffer in=ByteBuffer.allocate(bytes.length);
+		in.flip();
+		for (int offset=0; offset<bytes.length; offset+=pieceSize) {
+			in.compact();
+			in.put(bytes, offset, Math.min(pieceSize, bytes.length-offset));
+			in.flip();
+			if (parser.parse(in)) return offset+pieceSize>=bytes.length;
+		}
+		return false;
+	}
+
+	public void testFixedLength() throws IOException {
+		assertTrue(parser.parse(buffer("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nETag: \"x\"\r\n\r\nhello")));
+		assertEquals(200, parser.getStatusCode());
+		assertEquals(5, parser.getContentLength());
+		assertEquals("\"x\"", parser.getValidators().etag);
+		assertEquals("hello", body());
+	}
+
+	public void testSplitBuffers() throws IOException {
+		String response="HTTP/1.1 200 OK\r\nContent-Length: 11\r\nConnection: close\r\n\r\nhello world";
+		for (int pieceSize=1; pieceSize<8; pieceSize++) {
+			parser.reset();
+			assertTrue(parseSplit(response, pieceSize));
+			assertEquals(200, parser.getStatusCode());
+			assertTrue(parser.isClose());
+			assertEquals("hello world", body());
+		}
+	}
+
+	public void testPartialResponseWaits() throws IOException {
+		ByteBuffer in=buffer("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhel");
+		assertFalse(parser.parse(in));
+		assertTrue(parser.hasHeaders());
+		assertEquals(3, parser.getBodyBytes());
+		assertFalse(in.hasRemaining());
+	}
+
+	public void testChunkedWithExtensionsAndTrailers() throws IOException {
+		String response="HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" +
+				"5;name=value\r\nhello\r\n" +
+				"6 ; other\r\n world\r\n" +
+				"0\r\nX-Trailer: yes\r\nX-Other: no\r\n\r\n";
+		for (int pieceSize=1; pieceSize<=response.length(); pieceSize*=3) {
+			parser.reset();
+			assertTrue(parseSplit(response, pieceSize));
+			assertTrue(parser.isChunked());
+			assertEquals("hello world", body());
+		}
+	}
+
+	public void testInterimResponsesSkipped() throws IOException {
+		ByteBuffer in=buffer("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 103 Early Hints\r\nLink: </a>\r\n\r\n" +
+				"HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+		assertTrue(parser.parse(in));
+		assertEquals(200, parser.getStatusCode());
+		assertEquals("ok", body());
+	}
+
+	public void testNoBodyResponses() throws IOException {
+		// Neither may have a body even with Content-Length, so the next
+		// response follows immediately
+		ByteBuffer in=buffer("HTTP/1.1 304 Not Modified\r\nContent-Length: 100\r\n\r\n" +
+				"HTTP/1.1 204 No Content\r\n\r\n" +
+				"HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+		assertTrue(parser.parse(in));
+		assertEquals(304, parser.getStatusCode());
+		assertNull(body());
+		parser.reset();
+		assertTrue(parser.parse(in));
+		assertEquals(204, parser.getStatusCode());
+		assertNull(body());
+		parser.reset();
+		assertTrue(parser.parse(in));
+		assertEquals("ok", body());
+	}
+
+	public void testChunkedTakesPrecedenceOverLength() throws IOException {
+		ByteBuffer in=buffer("HTTP/1.1 200 OK\r\nContent-Length: 3\r\nTransfer-Encoding: chunked\r\n\r\n" +
+				"5\r\nhello\r\n0\r\n\r\n");
+		assertTrue(parser.parse(in));
+		assertEquals("hello", body());
+		assertFalse(in.hasRemaining());
+	}
+
+	public void testOversizedLineRejected() throws IOException {
+		StringBuilder sb=new StringBuilder("HTTP/1.1 200 OK\r\nX-Big: ");
+		while (sb.length()<ResponseParser.MAX_LINE_LENGTH+64) sb.append("xxxxxxxx");
+		try {
+			parser.parse(buffer(sb.toString()));
+			fail();
+		} catch (ProtocolException e) {
+			// Expected
+		}
+	}
+
+	public void testOversizedBodyRejected() throws IOException {
+		try {
+			parser.parse(buffer("HTTP/1.1 200 OK\r\nContent-Length: 99999999999999999999\r\n\r\n"));
+			fail();
+		} catch (ProtocolException e) {
+			// Expected
+		}
+
+		parser.reset();
+		try {
+			parser.parse(buffer("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nffffffffffff\r\n"));
+			fail();
+		} catch (ProtocolException e) {
+			// Expected
+		}
+	}
+
+	public void testMalformedStatusLineRejected() throws IOException {
+		String[] bad=new String[] {
+			"ICY 200 OK\r\n\r\n",
+			"HTTP/1.1 2x0 OK\r\n\r\n",
+			"HTTP/1.1 2000 OK\r\n\r\n",
+			"HTTP/1.1200 OK\r\n\r\n",
+			"HTTP/1.1 099 Low\r\n\r\n",
+		};
+		for (int i=0; i<bad.length; i++) {
+			parser.reset();
+			try {
+				parser.parse(buffer(bad[i]));
+				fail(bad[i]);
+			} catch (ProtocolException e) {
+				// Expected
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package net.rcode.nanomaps.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import net.rcode.nanomaps.io.TileArchive;
+import net.rcode.nanomaps.io.TileArchiveWriter;
+
+public class TileArchiveTest extends TestCase {
+	private File file;
+	private File directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		file=File.createTempFile("tilearchive", ".nmta");
+		directory=File.createTempFile("tiles", "");
+		directory.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		delete(directory);
+	}
+
+	private static void delete(File f) {
+		File[] children=f.listFiles();
+		if (children!=null) {
+			for (File child: children) delete(child);
+		}
+		f.delete();
+	}
+
+	private static String read(ByteBuffer buffer) {
+		byte[] bytes=new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return new String(bytes);
+	}
+
+	private void add(TileArchiveWriter writer, int level, int x, int y, String data) throws IOException {
+		byte[] bytes=data.getBytes();
+		writer.add(level, x, y, bytes, 0, bytes.length);
+	}
+
+	public void testWriteAndLookup() throws IOException {
+		TileArchiveWriter writer=new TileArchiveWriter();
+		add(writer, 2, 3, 1, "two-three-one");
+		add(writer, 0, 0, 0, "root");
+		add(writer, 2, 1, 3, "two-one-three");
+		add(writer, 0, 0, 0, "root again");
+		writer.write(file);
+		writer.close();
+
+		TileArchive archive=new TileArchive(file);
+		assertEquals(3, archive.getCount());
+		assertEquals("root again", read(archive.get(0, 0, 0)));
+		assertEquals("two-three-one", read(archive.get(2, 3, 1)));
+		assertEquals("two-one-three", read(archive.get(2, 1, 3)));
+		assertNull(archive.get(2, 3, 3));
+		assertNull(archive.get(1, 0, 0));
+		assertFalse(archive.contains(5, 0, 0));
+		archive.close();
+	}
+
+	public void testAddDirectory() throws IOException {
+		File column=new File(directory, "3/4");
+		column.mkdirs();
+		FileOutputStream out=new FileOutputStream(new File(column, "5.png"));
+		out.write("tile".getBytes());
+		out.close();
+		new File(column, "README").createNewFile();
+
+		TileArchiveWriter writer=new TileArchiveWriter();
+		assertEquals(1, writer.addDirectory(directory));
+		writer.write(file);
+		writer.close();
+
+		TileArchive archive=new TileArchive(file);
+		assertEquals("tile", read(archive.get(3, 4, 5)));
+		archive.close();
+	}
+}